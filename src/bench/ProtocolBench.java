@@ -0,0 +1,331 @@
+package bench;
+
+import client.controller.mid.UtilHandler;
+import client.media.CallOffer;
+import common.Capabilities;
+import common.Frame;
+import common.FrameDecoder;
+import common.FrameEncoder;
+import common.FrameIO;
+import common.FrameInflater;
+import common.FrameMeta;
+import common.JsonFields;
+import common.MessageType;
+import server.dao.MessageDao;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * Micro-benchmark cho giao thức: FrameIO, Frame builder, parser JSON (jsonGet / JsonFields), normalizeAscii.
+ *
+ *   java -Dbench.out=bench/protocol.json bench.ProtocolBench [regex lọc tên]
+ *
+ * Mỗi benchmark: WARMUP vòng làm nóng + MEASURE vòng đo, mỗi vòng ~ITER_MS ms trên 1 thread.
+ * Kết quả: ns/op (trung bình ± sai số 99.9%) và B/op cấp phát (ThreadMXBean), ghi ra JSON
+ * dạng giống JMH (-rf json) để so giữa các lần chạy. Benchmark nén ghi thêm số byte trên dây
+ * (wire.bytes) của 1 trang lịch sử để so băng thông giữa các chế độ.
+ * Trong lúc đo stdout bị tắt để log của code được đo không đo luôn tốc độ console.
+ */
+public final class ProtocolBench {
+    private static final int WARMUP  = Integer.getInteger("bench.warmup", 5);
+    private static final int MEASURE = Integer.getInteger("bench.iterations", 10);
+    private static final long ITER_MS = Long.getLong("bench.iterMs", 500);
+    private static final String OUT = System.getProperty("bench.out", "protocol-bench.json");
+
+    private static final com.sun.management.ThreadMXBean MX =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // kết quả được cộng dồn vào đây để JIT không loại bỏ phép tính
+    private static volatile long sink;
+    // số byte trên dây của benchmark nén (ghi kèm vào JSON)
+    private static final Map<String, Long> WIRE = new LinkedHashMap<>();
+
+    /* ===== dữ liệu mẫu ===== */
+    private static final Frame DM = Frame.dm("nguyenvana", "tranthib",
+            "Chào bạn, tối nay 8h họp nhóm ở phòng 302 nhé, nhớ mang laptop 💻");
+    private static final Frame CHUNK;
+    private static final Frame HISTORY;
+    static {
+        byte[] data = new byte[Frame.CHUNK_SIZE];
+        new java.util.Random(42).nextBytes(data);
+        CHUNK = Frame.fileChunk("nguyenvana", "tranthib", "3f1c2a9e-5b7d-4e61-9a0f-1c2b3d4e5f60", 17, false, data);
+        HISTORY = new Frame(MessageType.HISTORY, "tranthib", "nguyenvana",
+                "[HIST IN] tranthib: Ok mình sẽ tới sớm, bạn gửi lại file báo cáo giúp mình nhé");
+        HISTORY.transferId = "184467";
+    }
+    private static final Frame META = Frame.fileMeta("nguyenvana", "tranthib", "Báo cáo tuần 12.pdf",
+            "application/pdf", "3f1c2a9e-5b7d-4e61-9a0f-1c2b3d4e5f60", 1_482_113);
+    private static final String META_JSON = FrameMeta.bodyFor(META, false);
+    private static final String OFFER_JSON = new CallOffer("192.168.1.23", 50432, 50434).toJson();
+    private static final String SEARCH_TEXT = "Tối nay HỌP nhóm ở phòng 302, nhớ mang Laptop và tài liệu đầy đủ";
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = args.length > 0 ? Pattern.compile(args[0]) : null;
+        PrintStream console = System.out;
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(quiet);
+        Map<String, Callable<Object>> benches;
+        try {
+            benches = benchmarks();
+        } finally {
+            System.setOut(console);
+        }
+        List<Result> results = new ArrayList<>();
+
+        for (var e : benches.entrySet()) {
+            if (filter != null && !filter.matcher(e.getKey()).find()) continue;
+            System.setOut(quiet);
+            Result r;
+            try {
+                r = run(e.getKey(), e.getValue());
+            } finally {
+                System.setOut(console);
+            }
+            results.add(r);
+            Long wire = WIRE.get(r.name);
+            console.printf("%-32s %10.1f ± %6.1f ns/op %10.1f B/op%s%n", r.name, r.score, r.error, r.allocPerOp,
+                    wire == null ? "" : String.format("%10d wire B", wire));
+        }
+
+        Path out = Path.of(OUT);
+        if (out.getParent() != null) Files.createDirectories(out.getParent());
+        Files.writeString(out, toJson(results), StandardCharsets.UTF_8);
+        console.println("[BENCH] " + results.size() + " results → " + out.toAbsolutePath());
+    }
+
+    private static Map<String, Callable<Object>> benchmarks() throws Exception {
+        Map<String, Callable<Object>> m = new LinkedHashMap<>();
+
+        // ---- FrameIO stream (đường client dùng) ----
+        DataOutputStream nullOut = new DataOutputStream(new BufferedOutputStream(OutputStream.nullOutputStream(), 64 * 1024));
+        for (var s : shapes().entrySet()) {
+            Frame f = s.getValue();
+            m.put("frameio.write." + s.getKey(), () -> { FrameIO.write(nullOut, f); return nullOut.size(); });
+        }
+        for (var s : shapes().entrySet()) {
+            DataInputStream in = new DataInputStream(new LoopInput(FrameIO.encode(s.getValue())));
+            m.put("frameio.read." + s.getKey(), () -> FrameIO.read(in));
+        }
+
+        // ---- encoder/decoder ByteBuffer (đường server dùng) ----
+        for (var s : shapes().entrySet()) {
+            Frame f = s.getValue();
+            FrameEncoder enc = new FrameEncoder(true);
+            m.put("encoder.encode." + s.getKey(), () -> { enc.clear(); enc.encode(f); return enc.size(); });
+        }
+        for (var s : shapes().entrySet()) {
+            byte[] full = FrameIO.encode(s.getValue());
+            ByteBuffer body = ByteBuffer.wrap(full, 4, full.length - 4).slice();
+            m.put("decoder.decode." + s.getKey(), () -> FrameDecoder.decode(body.duplicate(), false));
+        }
+
+        // ---- builder chuỗi JSON trong Frame ----
+        m.put("frame.fileMeta", () -> Frame.fileMeta("nguyenvana", "tranthib", "Báo cáo tuần 12.pdf",
+                "application/pdf", "3f1c2a9e-5b7d-4e61-9a0f-1c2b3d4e5f60", 1_482_113));
+        m.put("frame.audioMeta", () -> Frame.audioMeta("nguyenvana", "tranthib", "pcm_s16le", 16000, 12,
+                "a7d0c1e2-0b4f-4f6e-8c3a-2d1e0f9a8b7c", 384_000));
+
+        // ---- metadata: JSON (kết nối cũ) vs TLV; encode gồm cả dựng meta ----
+        m.put("meta.json.encode.fileMeta", () -> FrameMeta.bodyFor(newMeta(), false)
+                .getBytes(StandardCharsets.UTF_8).length);
+        m.put("meta.json.decode.fileMeta", () -> FrameMeta.of(new Frame(MessageType.FILE_META, "", "", META_JSON))
+                .getLong("size", 0));
+        ByteBuffer tlv = ByteBuffer.allocate(256);
+        META.meta.writeTo(tlv);
+        tlv.flip();
+        m.put("meta.tlv.encode.fileMeta", () -> {
+            FrameMeta fm = newMeta().meta;
+            ByteBuffer out = ByteBuffer.allocate(fm.encodedLength());
+            fm.writeTo(out);
+            return out.position();
+        });
+        m.put("meta.tlv.decode.fileMeta", () -> FrameMeta.read(tlv.duplicate()).getLong("size", 0));
+
+        // ---- parser JSON viết tay ----
+        m.put("json.jsonGet.fileMeta3", () -> {
+            String a = UtilHandler.jsonGet(META_JSON, "name");
+            String b = UtilHandler.jsonGet(META_JSON, "fileId");
+            String c = UtilHandler.jsonGet(META_JSON, "size");
+            return a.length() + b.length() + c.length();
+        });
+        JsonFields view = new JsonFields();
+        m.put("json.fields.fileMeta3", () -> {
+            view.reset(META_JSON);
+            return view.get("name").length() + view.get("fileId").length() + view.getLong("size", 0);
+        });
+        m.put("json.callOffer.fromJson", () -> CallOffer.fromJson(OFFER_JSON));
+
+        // ---- nén: 1 trang 50 dòng HISTORY, encode cả lô / decode lại ----
+        List<Frame> page = historyPage(50);
+        Map<String, Integer> modes = new LinkedHashMap<>();
+        modes.put("plain", 0);
+        modes.put("deflate", Capabilities.COMPRESS);
+        modes.put("batch", Capabilities.COMPRESS | Capabilities.BATCH);
+        for (var mode : modes.entrySet()) {
+            FrameEncoder enc = new FrameEncoder(false);
+            enc.configure(new Capabilities.Handshake(Capabilities.PROTOCOL_VERSION, mode.getValue()));
+            String name = "compress.encode.history50." + mode.getKey();
+            Callable<Object> op = () -> {
+                enc.clear();
+                for (Frame f : page) enc.encode(f);
+                return enc.flip().remaining();
+            };
+            enc.clear();
+            for (Frame f : page) enc.encode(f);
+            ByteBuffer wire = enc.flip();
+            byte[] bytes = new byte[wire.remaining()];
+            wire.get(bytes);
+            WIRE.put(name, (long) bytes.length);
+            m.put(name, op);
+
+            FrameInflater z = new FrameInflater();
+            String dname = "compress.decode.history50." + mode.getKey();
+            WIRE.put(dname, (long) bytes.length);
+            m.put(dname, () -> {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                int n = 0;
+                for (int i = 0; i < page.size(); i++) n += FrameIO.read(in, z).body.length();
+                return n;
+            });
+        }
+
+        // ---- chuẩn hoá tìm kiếm ----
+        m.put("dao.normalizeAscii", () -> MessageDao.normalizeAscii(SEARCH_TEXT));
+        return m;
+    }
+
+    /** Trang lịch sử giống ClientHandler.handleHistory gửi: prefix lặp lại, nội dung tiếng Việt. */
+    private static List<Frame> historyPage(int n) {
+        String[] lines = {
+            "Ok mình sẽ tới sớm, bạn gửi lại file báo cáo giúp mình nhé",
+            "Tối nay 8h họp nhóm ở phòng 302, nhớ mang laptop",
+            "Đã nhận, cảm ơn bạn nhiều!",
+            "[FILE] Báo cáo tuần 12.pdf",
+            "Mai mình nộp bài trước 10h sáng nha, đừng quên phần kết luận",
+        };
+        List<Frame> page = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            boolean in = (i % 3) != 0;
+            String from = in ? "tranthib" : "nguyenvana", to = in ? "nguyenvana" : "tranthib";
+            Frame h = new Frame(MessageType.HISTORY, from, to,
+                    (in ? "[HIST IN] " : "[HIST OUT] ") + from + ": " + lines[i % lines.length]);
+            h.transferId = String.valueOf(184_000 + i);
+            page.add(h);
+        }
+        return page;
+    }
+
+    private static Frame newMeta() {
+        return Frame.fileMeta("nguyenvana", "tranthib", "Báo cáo tuần 12.pdf",
+                "application/pdf", "3f1c2a9e-5b7d-4e61-9a0f-1c2b3d4e5f60", 1_482_113);
+    }
+
+    private static Map<String, Frame> shapes() {
+        Map<String, Frame> m = new LinkedHashMap<>();
+        m.put("dm", DM);
+        m.put("chunk64k", CHUNK);
+        m.put("history", HISTORY);
+        return m;
+    }
+
+    /* ===== runner ===== */
+
+    private record Result(String name, double score, double error, double allocPerOp, int samples) {}
+
+    private static Result run(String name, Callable<Object> op) throws Exception {
+        for (int i = 0; i < WARMUP; i++) iteration(op);
+        double[] nsPerOp = new double[MEASURE];
+        long ops = 0, bytes = 0;
+        for (int i = 0; i < MEASURE; i++) {
+            long a0 = MX.getCurrentThreadAllocatedBytes();
+            long[] r = iteration(op);
+            bytes += MX.getCurrentThreadAllocatedBytes() - a0;
+            ops += r[0];
+            nsPerOp[i] = (double) r[1] / r[0];
+        }
+        double mean = 0;
+        for (double v : nsPerOp) mean += v;
+        mean /= MEASURE;
+        double var = 0;
+        for (double v : nsPerOp) var += (v - mean) * (v - mean);
+        double sd = MEASURE > 1 ? Math.sqrt(var / (MEASURE - 1)) : 0;
+        // ~ khoảng tin cậy 99.9% (t ≈ 3.3 cho 10 mẫu) như scoreError của JMH
+        double err = MEASURE > 1 ? 3.3 * sd / Math.sqrt(MEASURE) : Double.NaN;
+        return new Result(name, mean, err, (double) bytes / ops, MEASURE);
+    }
+
+    /** Chạy op liên tục ~ITER_MS; trả {số op, ns đã chạy}. */
+    private static long[] iteration(Callable<Object> op) throws Exception {
+        long end = System.nanoTime() + ITER_MS * 1_000_000;
+        long ops = 0, acc = 0, t0 = System.nanoTime(), now;
+        do {
+            for (int k = 0; k < 64; k++) {
+                Object o = op.call();
+                acc += (o == null) ? 0 : o.hashCode();
+            }
+            ops += 64;
+        } while ((now = System.nanoTime()) < end);
+        sink += acc;
+        return new long[] { ops, now - t0 };
+    }
+
+    private static String toJson(List<Result> results) {
+        StringBuilder sb = new StringBuilder("[\n");
+        String when = Instant.now().toString();
+        String jvm = System.getProperty("java.vm.name") + " " + System.getProperty("java.version");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            sb.append("  {\"benchmark\":\"").append(r.name)
+              .append("\",\"mode\":\"avgt\",\"threads\":1,\"warmupIterations\":").append(WARMUP)
+              .append(",\"measurementIterations\":").append(r.samples)
+              .append(",\"measurementTime\":\"").append(ITER_MS).append(" ms\"")
+              .append(",\"jvm\":\"").append(jvm).append("\",\"date\":\"").append(when).append('"')
+              .append(",\"primaryMetric\":{\"score\":").append(num(r.score))
+              .append(",\"scoreError\":").append(num(r.error)).append(",\"scoreUnit\":\"ns/op\"}")
+              .append(",\"secondaryMetrics\":{\"gc.alloc.rate.norm\":{\"score\":").append(num(r.allocPerOp))
+              .append(",\"scoreUnit\":\"B/op\"}");
+            Long wire = WIRE.get(r.name);
+            if (wire != null) sb.append(",\"wire.bytes\":{\"score\":").append(wire).append(",\"scoreUnit\":\"B\"}");
+            sb.append("}}")
+              .append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        return sb.append("]\n").toString();
+    }
+
+    private static String num(double v) {
+        return Double.isFinite(v) ? String.format(java.util.Locale.ROOT, "%.3f", v) : "\"NaN\"";
+    }
+
+    /** InputStream lặp vô hạn trên 1 mảng byte — đọc cùng 1 frame mãi mà không tạo stream mới. */
+    private static final class LoopInput extends InputStream {
+        private final byte[] data;
+        private int pos;
+
+        LoopInput(byte[] data) { this.data = data; }
+
+        @Override public int read() {
+            int b = data[pos] & 0xFF;
+            if (++pos == data.length) pos = 0;
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            if (pos == data.length) pos = 0;
+            return n;
+        }
+    }
+}
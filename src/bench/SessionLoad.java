@@ -0,0 +1,182 @@
+package bench;
+
+import common.Frame;
+import common.FrameIO;
+import common.MessageType;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tải thử số phiên đồng thời mà 1 server giữ được.
+ *
+ * Chạy server ở từng chế độ rồi chạy công cụ này với cùng tham số để so sánh:
+ *   java -Dserver.threads=platform server.ServerMain
+ *   java -Dserver.threads=virtual  server.ServerMain
+ *   java -Dserver.mode=nio         server.ServerMain
+ *
+ *   java bench.SessionLoad [host] [port] [sessions] [connectPerSec] [holdSec]
+ *
+ * Mỗi phiên: connect → LOGIN → chờ "OK LOGIN" → giữ kết nối, đọc hết frame được đẩy tới.
+ * Trong lúc giữ, định kỳ gửi DM cho chính mình để đo RTT đi qua server (gồm cả insert DB).
+ */
+public final class SessionLoad {
+    private static final long LOGIN_TIMEOUT_MS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        String host   = args.length > 0 ? args[0] : "127.0.0.1";
+        int port      = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int sessions  = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int perSec    = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+        int holdSec   = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+        String prefix = "load-" + Long.toString(System.currentTimeMillis() % 100000, 36) + "-";
+
+        AtomicInteger established = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger dropped = new AtomicInteger();
+        List<Long> loginNanos = Collections.synchronizedList(new ArrayList<>());
+        List<Long> rttNanos = Collections.synchronizedList(new ArrayList<>());
+        List<Session> open = Collections.synchronizedList(new ArrayList<>());
+
+        System.out.printf("[LOAD] %s:%d sessions=%d rate=%d/s hold=%ds%n", host, port, sessions, perSec, holdSec);
+        ExecutorService exec = Executors.newVirtualThreadPerTaskExecutor();
+        long start = System.nanoTime();
+        long gapNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, perSec);
+
+        for (int i = 0; i < sessions; i++) {
+            final String user = prefix + i;
+            exec.execute(() -> {
+                Session s = new Session(user);
+                try {
+                    long t0 = System.nanoTime();
+                    s.open(host, port);
+                    loginNanos.add(System.nanoTime() - t0);
+                    established.incrementAndGet();
+                    open.add(s);
+                    s.readLoop(rttNanos);
+                } catch (Exception e) {
+                    if (s.loggedIn) dropped.incrementAndGet(); else failed.incrementAndGet();
+                } finally {
+                    s.close();
+                }
+            });
+            long due = start + (i + 1) * gapNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        }
+
+        // chờ các phiên cuối đăng nhập xong
+        long deadline = System.currentTimeMillis() + LOGIN_TIMEOUT_MS;
+        while (established.get() + failed.get() < sessions && System.currentTimeMillis() < deadline) Thread.sleep(100);
+        double rampSec = (System.nanoTime() - start) / 1e9;
+        System.out.printf("[LOAD] ramp done in %.1fs: established=%d failed=%d%n", rampSec, established.get(), failed.get());
+
+        long holdEnd = System.currentTimeMillis() + holdSec * 1000L;
+        while (System.currentTimeMillis() < holdEnd) {
+            List<Session> snapshot;
+            synchronized (open) { snapshot = new ArrayList<>(open); }
+            // mỗi giây thăm dò ~1% số phiên
+            int step = Math.max(1, snapshot.size() / 100);
+            for (int i = 0; i < snapshot.size(); i += step) snapshot.get(i).probe();
+            Thread.sleep(1000);
+            System.out.printf("[LOAD] alive=%d dropped=%d probes=%d%n",
+                    established.get() - dropped.get(), dropped.get(), rttNanos.size());
+        }
+
+        System.out.println("==== SUMMARY ====");
+        System.out.printf("sessions requested : %d%n", sessions);
+        System.out.printf("established        : %d%n", established.get());
+        System.out.printf("failed to login    : %d%n", failed.get());
+        System.out.printf("dropped while held : %d%n", dropped.get());
+        System.out.println("login latency      : " + percentiles(loginNanos));
+        System.out.println("DM self RTT        : " + percentiles(rttNanos));
+
+        synchronized (open) { for (Session s : open) s.close(); }
+        exec.shutdownNow();
+        System.exit(0);
+    }
+
+    private static String percentiles(List<Long> samples) {
+        List<Long> c;
+        synchronized (samples) { c = new ArrayList<>(samples); }
+        if (c.isEmpty()) return "n/a";
+        Collections.sort(c);
+        return String.format("p50=%.2fms p99=%.2fms max=%.2fms (n=%d)",
+                c.get(c.size() / 2) / 1e6,
+                c.get(Math.min(c.size() - 1, (int) (c.size() * 0.99))) / 1e6,
+                c.get(c.size() - 1) / 1e6, c.size());
+    }
+
+    private static final class Session {
+        final String user;
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+        volatile boolean loggedIn;
+        private final ConcurrentHashMap<String, Long> pendingProbes = new ConcurrentHashMap<>();
+        private final AtomicInteger probeSeq = new AtomicInteger();
+        private final ReentrantLock sendLock = new ReentrantLock();
+
+        Session(String user) { this.user = user; }
+
+        void open(String host, int port) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), (int) LOGIN_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) LOGIN_TIMEOUT_MS);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            send(new Frame(MessageType.LOGIN, user, "", ""));
+            while (true) {
+                Frame f = FrameIO.read(in);
+                if (f == null) throw new EOFException("closed before login");
+                if (f.type == MessageType.ERROR) throw new IOException(f.body);
+                if (f.type == MessageType.ACK && f.body != null && f.body.startsWith("OK LOGIN")) break;
+            }
+            loggedIn = true;
+            socket.setSoTimeout(0);
+        }
+
+        void readLoop(List<Long> rtt) throws IOException {
+            while (true) {
+                Frame f = FrameIO.read(in);
+                if (f == null) throw new EOFException("server closed");
+                if (f.type == MessageType.DM && user.equals(f.sender)) {
+                    Long t0 = pendingProbes.remove(f.body);
+                    if (t0 != null) rtt.add(System.nanoTime() - t0);
+                }
+            }
+        }
+
+        void probe() {
+            String body = "probe-" + probeSeq.incrementAndGet();
+            pendingProbes.put(body, System.nanoTime());
+            try {
+                send(Frame.dm(user, user, body));
+            } catch (IOException e) {
+                pendingProbes.remove(body);
+            }
+        }
+
+        private void send(Frame f) throws IOException {
+            sendLock.lock();
+            try {
+                FrameIO.write(out, f);
+                out.flush();
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        void close() {
+            try { if (socket != null) socket.close(); } catch (IOException ignored) {}
+        }
+    }
+}
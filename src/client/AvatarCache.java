@@ -0,0 +1,300 @@
+package client;
+
+import common.AvatarVariant;
+import common.Capabilities;
+import common.Frame;
+import common.JsonFields;
+import common.Log;
+import common.User;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import server.dao.UserDAO;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Avatar phía client: thay cho đọc BLOB gốc qua JDBC ngay trên luồng FX mỗi lần vẽ 1 dòng.
+ *
+ * - Xin server đúng cỡ cần ({@link AvatarVariant}) bằng frame AVATAR, kèm hash của bản đang có;
+ *   server trả payload rỗng nếu không đổi.
+ * - Bộ nhớ: tối đa -Dchat.avatar.memEntries ảnh (LRU). Đĩa: thư mục -Dchat.avatar.dir, tối đa
+ *   -Dchat.avatar.diskMB (bỏ file lâu không dùng nhất); tên file = variant_hash_user.
+ * - Ảnh đã được server xác nhận trong phiên này không hỏi lại.
+ * - Đọc/ghi đĩa và đường cũ (server chưa có {@link Capabilities#AVATAR}: đọc DB) chạy trên luồng
+ *   "avatar-io"; mọi hàm public và callback chạy trên luồng FX.
+ */
+public final class AvatarCache {
+    private static final int MEM_ENTRIES = Integer.getInteger("chat.avatar.memEntries", 256);
+    private static final long DISK_BYTES = Long.getLong("chat.avatar.diskMB", 20L) * 1024 * 1024;
+    private static final Path DIR = Path.of(System.getProperty("chat.avatar.dir",
+            System.getProperty("user.home") + File.separator + ".socialchat" + File.separator + "avatars"));
+
+    // --- luồng FX ---
+    private final Map<String, Image> mem = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > MEM_ENTRIES;
+        }
+    };
+    private final Map<String, String> memHash = new HashMap<>();        // hash của ảnh trong mem ("" = mặc định)
+    private final Set<String> validated = new HashSet<>();
+    private final Map<String, List<Consumer<Image>>> waiting = new HashMap<>();
+    private final Map<String, String> sent = new HashMap<>();           // hash đã gửi kèm lượt hỏi đang chờ
+    private ClientConnection connection;
+    private String me;
+    private Image placeholder;
+
+    // --- luồng avatar-io ---
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "avatar-io");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<String, String> disk = new HashMap<>();           // key → hash của file trên đĩa
+    private boolean diskReady;
+
+    public AvatarCache() {
+        io.execute(this::scanDisk);
+    }
+
+    public void setConnection(ClientConnection conn) {
+        this.connection = conn;
+        // phiên mới: hỏi lại server (lượt chờ của kết nối cũ sẽ không có trả lời)
+        validated.clear();
+        waiting.clear();
+        sent.clear();
+    }
+
+    public void setCurrentUser(User u) {
+        this.me = (u == null) ? null : u.getUsername();
+    }
+
+    /** Ảnh mặc định khi user chưa có avatar / đang tải. */
+    public Image placeholder() {
+        if (placeholder == null) {
+            placeholder = new Image(Objects.requireNonNull(
+                    getClass().getResource("/client/view/images/default user.png")).toExternalForm());
+        }
+        return placeholder;
+    }
+
+    private static String key(String username, AvatarVariant v) {
+        return v.key + "_" + username;
+    }
+
+    /**
+     * Gọi {@code cb} với avatar của {@code username}: ngay nếu đã có trong RAM, sau khi đọc đĩa / hỏi server nếu
+     * chưa. Có thể gọi 2 lần (bản cũ trong cache, rồi bản mới nếu server báo đã đổi).
+     */
+    public void load(String username, AvatarVariant v, Consumer<Image> cb) {
+        if (username == null || username.isEmpty()) { cb.accept(placeholder()); return; }
+        String key = key(username, v);
+        Image img = mem.get(key);
+        if (img != null) {
+            cb.accept(img);
+            if (validated.contains(key)) return;
+        }
+        List<Consumer<Image>> w = waiting.get(key);
+        if (w != null) { w.add(cb); return; } // đang hỏi
+        w = new ArrayList<>();
+        w.add(cb);
+        waiting.put(key, w);
+
+        if (img != null) { request(username, v, memHash.getOrDefault(key, "")); return; }
+        io.execute(() -> {
+            String hash = disk.get(key);
+            Image cachedImg = hash == null ? null : readDisk(key, hash);
+            String have = cachedImg == null ? "" : hash;
+            Platform.runLater(() -> {
+                if (cachedImg != null) {
+                    remember(key, have, cachedImg);
+                    List<Consumer<Image>> cbs = waiting.get(key);
+                    if (cbs != null) for (Consumer<Image> c : new ArrayList<>(cbs)) c.accept(cachedImg);
+                }
+                request(username, v, have);
+            });
+        });
+    }
+
+    private void request(String username, AvatarVariant v, String have) {
+        String key = key(username, v);
+        ClientConnection c = connection;
+        if (c != null && me != null && c.isAlive() && c.handshakeDone() && c.serverProtocol().has(Capabilities.AVATAR)) {
+            try {
+                sent.put(key, have);
+                c.requestAvatar(me, username, v, have);
+                return;
+            } catch (IOException e) {
+                sent.remove(key);
+                Log.warn("AVATAR", "Request failed: " + e.getMessage());
+            }
+        }
+        if (!have.isEmpty()) { settle(key); return; } // không hỏi được: dùng tạm bản trên đĩa
+        io.execute(() -> {
+            Image img = null;
+            try {
+                User u = UserDAO.findByUsername(username);
+                byte[] bytes = (u == null) ? null : UserDAO.getAvatarById(u.getId());
+                if (bytes != null && bytes.length > 0) img = decode(bytes, v);
+            } catch (Exception e) {
+                Log.warn("AVATAR", "Load from DB failed: " + e.getMessage());
+            }
+            Image got = img;
+            Platform.runLater(() -> finish(key, "", got));
+        });
+    }
+
+    /** Frame AVATAR từ server (luồng FX). */
+    public void onFrame(Frame f) {
+        JsonFields body = JsonFields.parse(f.body);
+        String user = body.get("user", "");
+        AvatarVariant v = AvatarVariant.of(body.get("variant", ""));
+        String key = key(user, v);
+        String have = sent.remove(key);
+        if (body.getBoolean("error", false)) { waiting.remove(key); return; }
+
+        String hash = f.transferId == null ? "" : f.transferId;
+        byte[] data = f.bin == null ? new byte[0] : f.bin;
+        if (hash.isEmpty()) {
+            // không có avatar
+            io.execute(() -> deleteDisk(key));
+            finish(key, "", null);
+            return;
+        }
+        if (data.length == 0) {
+            if (hash.equals(have) && mem.containsKey(key)) { settle(key); return; }
+            // bản cũ đã rời RAM trong lúc chờ: hỏi lại không kèm hash
+            if (waiting.containsKey(key)) request(user, v, "");
+            return;
+        }
+        Image img = decode(data, v);
+        if (img == null) { waiting.remove(key); return; }
+        io.execute(() -> writeDisk(key, hash, data));
+        finish(key, hash, img);
+    }
+
+    // bản đang có đã đúng: chỉ bỏ lượt chờ (callback đã nhận ảnh)
+    private void settle(String key) {
+        waiting.remove(key);
+        validated.add(key);
+    }
+
+    private void finish(String key, String hash, Image img) {
+        Image shown = img == null ? placeholder() : img;
+        remember(key, hash, shown);
+        validated.add(key);
+        List<Consumer<Image>> cbs = waiting.remove(key);
+        if (cbs != null) for (Consumer<Image> c : cbs) c.accept(shown);
+    }
+
+    private void remember(String key, String hash, Image img) {
+        mem.put(key, img);
+        memHash.put(key, hash);
+        if (memHash.size() > MEM_ENTRIES * 2) memHash.keySet().retainAll(mem.keySet());
+    }
+
+    private static Image decode(byte[] data, AvatarVariant v) {
+        // giải mã thẳng về cỡ variant: ảnh gốc (đường cũ) có thể lớn hơn nhiều
+        Image img = new Image(new ByteArrayInputStream(data), v.size, v.size, true, true);
+        return img.isError() ? null : img;
+    }
+
+    /* ===== đĩa (luồng avatar-io) ===== */
+
+    private void scanDisk() {
+        try {
+            Files.createDirectories(DIR);
+            File[] files = DIR.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    String[] p = f.getName().split("_", 3);
+                    if (p.length < 3) continue;
+                    String user = URLDecoder.decode(p[2], StandardCharsets.UTF_8);
+                    String key = key(user, AvatarVariant.of(p[0]));
+                    String old = disk.put(key, p[1]);
+                    if (old != null) { // còn sót bản cũ: giữ file mới hơn
+                        File other = file(key, old);
+                        if (other.lastModified() > f.lastModified()) { disk.put(key, old); f.delete(); }
+                        else other.delete();
+                    }
+                }
+            }
+            diskReady = true;
+        } catch (IOException | RuntimeException e) {
+            Log.warn("AVATAR", "Disk cache disabled: " + e.getMessage());
+        }
+    }
+
+    private static File file(String key, String hash) {
+        int i = key.indexOf('_');
+        String user = URLEncoder.encode(key.substring(i + 1), StandardCharsets.UTF_8);
+        return DIR.resolve(key.substring(0, i) + "_" + hash + "_" + user).toFile();
+    }
+
+    private Image readDisk(String key, String hash) {
+        File f = file(key, hash);
+        try (InputStream in = Files.newInputStream(f.toPath())) {
+            Image img = new Image(in);
+            if (img.isError()) { deleteDisk(key); return null; }
+            f.setLastModified(System.currentTimeMillis()); // cho việc dọn theo lần dùng cuối
+            return img;
+        } catch (IOException e) {
+            disk.remove(key);
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, String hash, byte[] data) {
+        if (!diskReady) return;
+        try {
+            deleteDisk(key);
+            Files.write(file(key, hash).toPath(), data);
+            disk.put(key, hash);
+            trimDisk();
+        } catch (IOException e) {
+            Log.warn("AVATAR", "Write cache failed: " + e.getMessage());
+        }
+    }
+
+    private void deleteDisk(String key) {
+        String old = disk.remove(key);
+        if (old != null) file(key, old).delete();
+    }
+
+    private void trimDisk() {
+        File[] files = DIR.toFile().listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) total += f.length();
+        if (total <= DISK_BYTES) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (total <= DISK_BYTES) break;
+            total -= f.length();
+            String[] p = f.getName().split("_", 3);
+            if (p.length == 3) disk.remove(key(URLDecoder.decode(p[2], StandardCharsets.UTF_8), AvatarVariant.of(p[0])));
+            f.delete();
+        }
+    }
+}
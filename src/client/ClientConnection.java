@@ -2,15 +2,25 @@ package client;
 
 import client.controller.MidController;
 import client.signaling.CallSignalingService;
+import common.AvatarVariant;
+import common.Capabilities;
 import common.Frame;
 import common.FrameIO;
+import common.FrameInflater;
+import common.JsonWriter;
+import common.Log;
 import common.MessageType;
+import common.PresenceUpdate;
+import common.UserList;
 import javafx.scene.layout.HBox;
 
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -27,6 +37,14 @@ public class ClientConnection {
     private Consumer<Exception> onError;
     private final ConcurrentHashMap<String, CompletableFuture<Frame>> pendingAcks = new ConcurrentHashMap<>();
     private MidController midController;
+    private volatile String currentUser; // chỉ dùng để lọc trace frame theo user
+    // handshake server trả trong ACK đăng nhập; tới lúc đó gửi theo định dạng cũ
+    private volatile Capabilities.Handshake serverProto = Capabilities.Handshake.LEGACY;
+    private final FrameInflater inflater = new FrameInflater(); // chỉ thread listener dùng
+    // các việc chờ ACK đăng nhập (đã biết serverProto); mỗi việc chạy 1 lần
+    private final Object handshakeLock = new Object();
+    private boolean handshakeDone;
+    private final List<Runnable> onHandshake = new ArrayList<>();
 
     public boolean connect(String host, int port) {
         try {
@@ -72,14 +90,22 @@ public class ClientConnection {
         readerThread = new Thread(() -> {
             try {
                 while (true) {
-                    Frame f = FrameIO.read(binIn);
+                    Frame f = FrameIO.read(binIn, inflater);
                     if (f == null) break;
 
                     if (callService != null && callService.tryHandleIncoming(f)) {
                         continue;
                     }
 
-                    System.out.println("[NET] RECV type=" + f.type + " transferId=" + f.transferId + " body=" + f.body);
+                    Log.frame("IN", currentUser, f);
+
+                    if (f.type == MessageType.ACK) {
+                        Capabilities.Handshake hs = Capabilities.Handshake.fromLoginAck(f.body);
+                        if (hs != null) {
+                            serverProto = hs;
+                            handshakeReceived();
+                        }
+                    }
 
                     if (f.type == MessageType.ACK && f.transferId != null && !f.transferId.isEmpty()) {
                         CompletableFuture<Frame> fut = pendingAcks.remove(f.transferId);
@@ -107,6 +133,8 @@ public class ClientConnection {
                 if (this.onError != null) this.onError.accept(new EOFException("Server closed connection"));
             } catch (IOException e) {
                 if (this.onError != null) this.onError.accept(e);
+            } finally {
+                inflater.close(); // close() đóng socket nên listener luôn ra tới đây
             }
         }, "server-listener");
 
@@ -115,18 +143,55 @@ public class ClientConnection {
     }
 
     public void loginFrame(String username) throws IOException {
-        sendFrame(new Frame(MessageType.LOGIN, username, "", ""));
+        currentUser = username;
+        // body: handshake phiên bản/khả năng; server cũ bỏ qua body LOGIN
+        sendFrame(new Frame(MessageType.LOGIN, username, "", Capabilities.Handshake.LOCAL.toJson()));
     }
 
     public synchronized void sendFrame(Frame f) throws IOException {
-        System.out.println("[DEBUG] sendFrame: type=" + f.type + ", transferId=" + f.transferId);
-        FrameIO.write(binOut, f);
+        Log.frame("OUT", currentUser, f);
+        FrameIO.write(binOut, f, serverProto.has(Capabilities.META_TLV));
+        binOut.flush();
     }
 
     public void register(String username) throws IOException {
+        currentUser = username;
         sendFrame(Frame.register(username));
     }
 
+    /** Chạy {@code r} khi đã nhận ACK đăng nhập (ngay nếu đã nhận); r chạy trên thread đọc socket. */
+    public void onHandshake(Runnable r) {
+        synchronized (handshakeLock) {
+            if (!handshakeDone) { onHandshake.add(r); return; }
+        }
+        r.run();
+    }
+
+    public boolean handshakeDone() {
+        synchronized (handshakeLock) { return handshakeDone; }
+    }
+
+    private void handshakeReceived() {
+        List<Runnable> rs;
+        synchronized (handshakeLock) {
+            handshakeDone = true;
+            rs = new ArrayList<>(onHandshake);
+            onHandshake.clear();
+        }
+        for (Runnable r : rs) r.run();
+    }
+
+    /** Phiên bản/khả năng server đã chấp nhận (LEGACY nếu server cũ). */
+    public Capabilities.Handshake serverProtocol() { return serverProto; }
+
+    /**
+     * Server tự ghi online/last_seen theo kết nối ({@link Capabilities#PRESENCE}): client không được gọi
+     * {@code UserDAO.setOnline} nữa (ghi đè trạng thái server vừa đẩy). Chưa có handshake thì coi như server cũ.
+     */
+    public boolean serverTracksPresence() {
+        return handshakeDone() && serverProto.has(Capabilities.PRESENCE);
+    }
+
     public void dm(String from, String to, String text) throws IOException {
         sendFrame(Frame.dm(from, to, text));
     }
@@ -136,8 +201,15 @@ public class ClientConnection {
         sendFrame(f);
     }
 
-    public void deleteMessage(long id) throws IOException {
-        Frame f = new Frame(MessageType.DELETE_MSG, "", "", String.valueOf(id));
+    /** Trang cũ hơn tin có id {@code beforeId} (keyset); chỉ server có HISTORY_BATCH hiểu. */
+    public void historyBefore(String from, String peer, int limit, long beforeId) throws IOException {
+        String body = new JsonWriter().field("limit", limit).field("beforeId", beforeId).end();
+        sendFrame(new Frame(MessageType.HISTORY, from, peer, body));
+    }
+
+    /** Xoá tin {@code id} trong hội thoại với {@code peer} (server xếp cùng làn với lịch sử/tìm kiếm của hội thoại). */
+    public void deleteMessage(long id, String from, String peer) throws IOException {
+        Frame f = new Frame(MessageType.DELETE_MSG, from, peer, String.valueOf(id));
         sendFrame(f);
     }
     
@@ -149,24 +221,72 @@ public class ClientConnection {
     
     public void search(String from, String peer, String query, int limit, int offset) throws IOException {
         String q = (query == null) ? "" : query;
-        String body = "{\"q\":\"" + q.replace("\\","\\\\").replace("\"","\\\"") + "\",\"offset\":" + Math.max(0, offset) + "}";
+        String body = new JsonWriter().field("q", q).field("offset", Math.max(0, offset)).end();
         Frame f = new Frame(common.MessageType.SEARCH, from, peer, body);
         f.seq = limit;
         sendFrame(f);
     }
     
+    /** Tìm trong mọi hội thoại (server có {@link Capabilities#SEARCH_ALL}); cursor null/"" = trang đầu. */
+    public void searchAll(String from, String query, int limit, String cursor) throws IOException {
+        String body = new JsonWriter()
+                .field("q", query == null ? "" : query)
+                .field("limit", limit)
+                .field("cursor", cursor == null ? "" : cursor)
+                .end();
+        sendFrame(new Frame(MessageType.SEARCH_ALL, from, "", body));
+    }
+
+    /**
+     * 1 trang danh sách user (server có {@link Capabilities#USER_DIRECTORY}); trả lời USER_LIST mang lại
+     * {@code walk} ở dòng đầu để bỏ trang của lượt gom cũ.
+     */
+    public void listUsers(String from, String walk, int offset, int limit) throws IOException {
+        String body = new JsonWriter(48)
+                .field("q", UserList.oneLine(walk))
+                .field("offset", offset)
+                .field("limit", limit)
+                .end();
+        sendFrame(new Frame(MessageType.USER_LIST, from, "", body));
+    }
+
+    /** Tìm user theo tên trên server; trả lời USER_SEARCH mang lại câu tìm để bỏ trả lời cũ. */
+    public void searchUsers(String from, String query, int offset, int limit) throws IOException {
+        String body = new JsonWriter(64)
+                .field("q", UserList.oneLine(query))
+                .field("offset", offset)
+                .field("limit", limit)
+                .end();
+        sendFrame(new Frame(MessageType.USER_SEARCH, from, "", body));
+    }
+
+    /** Xin avatar cỡ {@code variant} của {@code user} (server có {@link Capabilities#AVATAR}); hash = bản đang có, "" nếu chưa. */
+    public void requestAvatar(String from, String user, AvatarVariant variant, String hash) throws IOException {
+        String body = new JsonWriter(96)
+                .field("user", user)
+                .field("variant", variant.key)
+                .field("hash", hash)
+                .end();
+        sendFrame(new Frame(MessageType.AVATAR, from, "", body));
+    }
+
+    /** Thay danh sách user cần nhận PRESENCE (server có {@link Capabilities#PRESENCE}). */
+    public void subscribePresence(String from, Collection<String> usernames) throws IOException {
+        sendFrame(new Frame(MessageType.PRESENCE_SUB, from, "", PresenceUpdate.names(usernames)));
+    }
+
     public void downloadFileByFileId(long fileId) throws IOException {
-        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", "{\"fileId\":" + fileId + "}");
+        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", new JsonWriter(32).field("fileId", fileId).end());
         sendFrame(req);
     }
 
     public void downloadFileByMsgId(long msgId) throws IOException {
-        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", "{\"messageId\":" + msgId + "}");
+        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", new JsonWriter(32).field("messageId", msgId).end());
         sendFrame(req);
     }
 
     public void downloadFileLegacy(String uuidOrLegacyId) throws IOException {
-        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", "{\"id\":\"" + uuidOrLegacyId + "\"}");
+        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", new JsonWriter(64).field("id", uuidOrLegacyId).end());
         sendFrame(req);
     }
 
@@ -207,7 +327,7 @@ public class ClientConnection {
                 if (midController != null) {
                     javafx.application.Platform.runLater(() -> {
                         try { midController.showOutgoingFile(fName, fMime, fSize, fFileId, fDuration); }
-                        catch (Exception uiEx) { System.err.println("[UI] showOutgoingFile failed: " + uiEx.getMessage()); }
+                        catch (Exception uiEx) { Log.warn("UI", "showOutgoingFile failed: " + uiEx.getMessage()); }
                     });
                 }
 
@@ -249,7 +369,7 @@ public class ClientConnection {
                                 }
                             }
                         } catch (Exception uiEx) {
-                            System.err.println("[UI] finalize bubble failed: " + uiEx.getMessage());
+                            Log.warn("UI", "finalize bubble failed: " + uiEx.getMessage());
                         }
                     });
                 }
@@ -259,11 +379,11 @@ public class ClientConnection {
             } catch (java.util.concurrent.TimeoutException te) {
                 pendingAcks.remove(fileId);
                 lastEx = te;
-                System.err.println("[RETRY] Attempt " + (attempt + 1) + " timed out");
+                Log.warn("RETRY", "Attempt " + (attempt + 1) + " timed out");
                 Thread.sleep(1000);
             } catch (IOException ioex) {
                 lastEx = ioex;
-                System.err.println("[RETRY] Attempt " + (attempt + 1) + " failed: " + ioex.getMessage());
+                Log.warn("RETRY", "Attempt " + (attempt + 1) + " failed: " + ioex.getMessage());
                 Thread.sleep(1000);
             }
         }
@@ -326,7 +446,7 @@ public class ClientConnection {
                 return ack;
             } catch (IOException e) {
                 lastEx = e;
-                System.err.println("[RETRY] Attempt " + (i + 1) + " failed: " + e.getMessage());
+                Log.warn("RETRY", "Attempt " + (i + 1) + " failed: " + e.getMessage());
                 Thread.sleep(1000);
                 continue;
             } catch (TimeoutException te) {
@@ -352,11 +472,11 @@ public class ClientConnection {
         try {
             String m = Files.probeContentType(f.toPath());
             if (m != null && !m.isBlank()) {
-                System.out.println("[DEBUG] Mime from probe: " + m);
+                if (Log.DEBUG_ON) Log.debug("MIME", "from probe: " + m);
                 return m;
             }
         } catch (IOException e) {
-            System.err.println("[DEBUG] Probe failed: " + e.getMessage());
+            if (Log.DEBUG_ON) Log.debug("MIME", "probe failed: " + e.getMessage());
         }
         String name = f.getName().toLowerCase();
         if (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg") ||
@@ -370,7 +490,7 @@ public class ClientConnection {
         if (name.endsWith(".mp4") || name.endsWith(".mov")) return "video/mp4";
         if (name.endsWith(".mkv")) return "video/x-matroska";
         if (name.endsWith(".webm")) return "video/webm";
-        System.out.println("[DEBUG] Fallback mime: application/octet-stream");
+        if (Log.DEBUG_ON) Log.debug("MIME", "fallback: application/octet-stream");
         return "application/octet-stream";
     }
 }
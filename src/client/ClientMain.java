@@ -6,6 +6,7 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import server.dao.DBConnection;
 
 public class ClientMain extends Application {
 
@@ -23,6 +24,12 @@ public class ClientMain extends Application {
         });
     }
     
+    @Override
+    public void stop() {
+        // UserDAO (danh sách/avatar khi server chưa có USER_DIRECTORY) mượn kết nối từ pool dùng chung
+        DBConnection.closePool();
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
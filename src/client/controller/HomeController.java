@@ -1,5 +1,6 @@
 package client.controller;
 
+import client.AvatarCache;
 import client.ClientConnection;
 import client.controller.right.SearchMessageHandler;
 import client.signaling.CallSignalingService;
@@ -70,6 +71,7 @@ public class HomeController {
     private User currentUser;
     private ClientConnection connection;
     private CallSignalingService callSvc;
+    private final AvatarCache avatars = new AvatarCache();
     private String currentPeerUsername = null;
 
     @FXML
@@ -83,6 +85,10 @@ public class HomeController {
         midCtrl.bind(currentChatName, currentChatStatus, messageContainer, messageField, midHeaderAvatar);
 
         midCtrl.setRightController(rightCtrl);
+        midCtrl.setPresenceListener(leftCtrl::applyPresence);
+        midCtrl.setDirectoryListener(leftCtrl::onDirectory);
+        midCtrl.setAvatars(avatars);
+        leftCtrl.setAvatars(avatars);
 
         leftCtrl.setOnOpenConversation(user -> {
             currentPeerUsername = (user != null ? user.getUsername() : null);
@@ -133,6 +139,7 @@ public class HomeController {
 
     public void setCurrentUser(User user) {
         this.currentUser = user;
+        avatars.setCurrentUser(user);
         leftCtrl.setCurrentUser(user);
         midCtrl.setCurrentUser(user);
         leftCtrl.reloadAll();
@@ -140,6 +147,7 @@ public class HomeController {
 
     public void setConnection(ClientConnection conn) {
         this.connection = conn;
+        avatars.setConnection(conn);
         midCtrl.setConnection(conn);
         leftCtrl.setConnection(conn);
     }
@@ -1,7 +1,14 @@
 package client.controller;
 
+import client.AvatarCache;
 import client.ClientConnection;
+import common.AvatarVariant;
+import common.Capabilities;
+import common.Frame;
+import common.MessageType;
+import common.PresenceUpdate;
 import common.User;
+import common.UserList;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Platform;
@@ -15,7 +22,6 @@ import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.*;
 import javafx.scene.shape.Circle;
@@ -23,7 +29,6 @@ import javafx.stage.Stage;
 import javafx.util.Duration;
 import server.dao.UserDAO;
 
-import java.io.ByteArrayInputStream;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.util.*;
@@ -45,6 +50,16 @@ public class LeftController {
     private final Map<Integer, Label> lastLabels = new HashMap<>();
     private final Map<Integer, User> idToUser = new HashMap<>();
     private Timeline poller;
+    // server đẩy PRESENCE: chỉ còn làm mới danh sách user, thưa hơn (-Dchat.users.refreshSec)
+    private static final int USERS_REFRESH_SEC = Integer.getInteger("chat.users.refreshSec", 60);
+    private boolean pushPresence;
+    // danh bạ qua server (Capabilities.USER_DIRECTORY): trang USER_LIST đang gom, câu tìm đang hiện ("" = tất cả)
+    private static final int USERS_PAGE = Integer.getInteger("chat.users.page", 200);
+    private static final int USERS_SEARCH_LIMIT = Integer.getInteger("chat.users.searchLimit", 50);
+    private List<User> loadingUsers;
+    private boolean loadingReplace;
+    private int usersWalk; // mã lượt gom hiện tại: reloadAll gọi chồng nhau thì trang của lượt cũ bị bỏ
+    private String searchQuery = "";
 
     private final BooleanProperty collapsed = new SimpleBooleanProperty(false);
     private final BooleanProperty dark = new SimpleBooleanProperty(false);
@@ -52,9 +67,8 @@ public class LeftController {
     private User currentUser;
     private Consumer<User> onOpenConversation;
 
-    // Cache avatar để tránh query lặp
-    private final Map<Integer, Image> avatarCache = new HashMap<>();
-    private Image defaultAvatar; // lazy-load
+    // avatar cỡ nhỏ tải nền (bộ nhớ + đĩa), dùng chung với khung chat
+    private AvatarCache avatars;
 
     public void bind(
             VBox sidebar,
@@ -122,8 +136,13 @@ public class LeftController {
     }
 
     public void setCurrentUser(User user) { this.currentUser = user; }
+    public void setAvatars(AvatarCache a) { this.avatars = a; }
     public void setOnOpenConversation(Consumer<User> cb) { this.onOpenConversation = cb; }
-    public void setConnection(ClientConnection conn) { this.connection = conn; }
+    public void setConnection(ClientConnection conn) {
+        this.connection = conn;
+        // biết server hỗ trợ gì rồi mới nạp danh sách (USER_LIST hay JDBC)
+        if (conn != null) conn.onHandshake(() -> Platform.runLater(this::reloadAll));
+    }
     public void setHostStage(Stage stage) { this.hostStage = stage; }
 
     private void renderUsers(List<User> users) {
@@ -135,10 +154,19 @@ public class LeftController {
             idToUser.put(u.getId(), u);
             chatList.getChildren().add(createChatItem(u));
         }
+        if (pushPresence) subscribePresence();
     }
 
     public void reloadAll() {
         if (currentUser == null || chatList == null) return;
+        // chưa có kết nối / chưa nhận ACK đăng nhập: setConnection sẽ gọi lại sau handshake
+        if (connection == null || (connection.isAlive() && !connection.handshakeDone())) return;
+        if (directory()) {
+            searchQuery = "";
+            requestUsers(0, true);
+            if (poller == null) startPollingPresence();
+            return;
+        }
         try {
             List<User> others = UserDAO.listOthers(currentUser.getId());
             renderUsers(others);
@@ -153,6 +181,13 @@ public class LeftController {
         String k = (keyword == null) ? "" : keyword.trim();
         if (k.isEmpty()) {
             reloadAll();
+        } else if (directory()) {
+            searchQuery = UserList.oneLine(k);
+            try {
+                connection.searchUsers(currentUser.getUsername(), searchQuery, 0, USERS_SEARCH_LIMIT);
+            } catch (Exception e) {
+                System.err.println("[USERS] search failed: " + e.getMessage());
+            }
         } else {
             try {
                 List<User> res = UserDAO.searchUsers(k, currentUser.getId());
@@ -164,14 +199,58 @@ public class LeftController {
         }
     }
 
+    private boolean directory() {
+        return connection != null && connection.isAlive()
+                && connection.serverProtocol().has(Capabilities.USER_DIRECTORY);
+    }
+
+    // offset 0 = bắt đầu gom lại từ đầu; replace = vẽ lại toàn bộ (false = chỉ thêm/bớt dòng khác biệt)
+    private void requestUsers(int offset, boolean replace) {
+        if (offset == 0) {
+            usersWalk++;
+            loadingUsers = new ArrayList<>();
+            loadingReplace = replace;
+        }
+        try {
+            connection.listUsers(currentUser.getUsername(), String.valueOf(usersWalk), offset, USERS_PAGE);
+        } catch (Exception e) {
+            loadingUsers = null;
+            System.err.println("[USERS] list failed: " + e.getMessage());
+        }
+    }
+
+    /** Trả lời USER_LIST / USER_SEARCH (đã trên FX thread). */
+    public void onDirectory(Frame f) {
+        UserList page = UserList.parse(f.body);
+        String next = f.transferId == null ? "" : f.transferId;
+        if (f.type == MessageType.USER_SEARCH) {
+            if (page.query.equals(searchQuery)) renderUsers(page.users); // bỏ trả lời của câu tìm cũ
+            return;
+        }
+        if (!searchQuery.isEmpty() || loadingUsers == null) return; // đang hiện kết quả tìm
+        if (!page.query.equals(String.valueOf(usersWalk))) return;  // trang của lượt gom cũ
+        loadingUsers.addAll(page.users);
+        if (!next.isEmpty()) {
+            try {
+                requestUsers(Integer.parseInt(next), loadingReplace);
+                return;
+            } catch (NumberFormatException ignore) {}
+        }
+        List<User> all = loadingUsers;
+        loadingUsers = null;
+        if (loadingReplace) renderUsers(all); else applyUsersDiff(all);
+    }
+
     private HBox createChatItem(User u) {
         HBox row = new HBox(10);
         row.getStyleClass().add("chat-item");
         row.setPadding(new Insets(8));
         row.setUserData(u.getId());
 
-        Image img = loadAvatarImage(u.getId());
-        StackPane avatarPane = buildCircularAvatar(img, 40);
+        // ảnh mặc định ngay, avatar thật thay vào khi tải xong
+        ImageView avatar = new ImageView(avatars.placeholder());
+        avatars.load(u.getUsername(), AvatarVariant.LIST, avatar::setImage);
+        StackPane avatarPane = buildCircularAvatar(avatar, 40);
 
         VBox textBox = new VBox(2);
         HBox.setHgrow(textBox, Priority.ALWAYS);
@@ -200,42 +279,12 @@ public class LeftController {
         return row;
     }
 
-    private Image loadAvatarImage(int userId) {
-        try {
-            Image cached = avatarCache.get(userId);
-            if (cached != null) return cached;
-
-            byte[] bytes = UserDAO.getAvatarById(userId); 
-            Image img;
-            if (bytes != null && bytes.length > 0) {
-                img = new Image(new ByteArrayInputStream(bytes));
-            } else {
-                if (defaultAvatar == null) {
-                    defaultAvatar = new Image(
-                        Objects.requireNonNull(
-                            getClass().getResource("/client/view/images/default user.png")
-                        ).toExternalForm()
-                    );
-                }
-                img = defaultAvatar;
-            }
-            avatarCache.put(userId, img);
-            return img;
-        } catch (Exception e) {
-            if (defaultAvatar == null) {
-                defaultAvatar = new Image(
-                    Objects.requireNonNull(
-                        getClass().getResource("/client/view/images/default user.png")
-                    ).toExternalForm()
-                );
-            }
-            return defaultAvatar;
-        }
-    }
-
     public void startPollingPresence() {
         stopPolling();
+        if (presencePushed()) { startPresencePush(); return; }
         poller = new Timeline(new KeyFrame(Duration.seconds(3), e -> {
+            // handshake tới sau lần poll đầu: server hỗ trợ thì chuyển sang nhận PRESENCE
+            if (presencePushed()) { startPresencePush(); return; }
             refreshPresenceOnce();
             refreshUsersDiff();
         }));
@@ -245,7 +294,60 @@ public class LeftController {
         refreshUsersDiff();
     }
 
-    public void stopPolling() { if (poller != null) { poller.stop(); poller = null; } }
+    public void stopPolling() {
+        if (poller != null) { poller.stop(); poller = null; }
+        pushPresence = false;
+    }
+
+    private boolean presencePushed() {
+        return connection != null && connection.isAlive()
+                && connection.serverProtocol().has(Capabilities.PRESENCE);
+    }
+
+    /** Server đẩy trạng thái: đăng ký các user đang hiện, bỏ vòng quét bảng users mỗi 3 giây. */
+    private void startPresencePush() {
+        stopPolling();
+        pushPresence = true;
+        subscribePresence();
+        poller = new Timeline(new KeyFrame(Duration.seconds(USERS_REFRESH_SEC), e -> refreshUsersDiff()));
+        poller.setCycleCount(Timeline.INDEFINITE);
+        poller.play();
+    }
+
+    private void subscribePresence() {
+        if (connection == null || currentUser == null) return;
+        if (idToUser.isEmpty()) return; // danh sách chưa về: renderUsers sẽ đăng ký
+        List<String> names = new ArrayList<>(idToUser.size());
+        for (User u : idToUser.values()) names.add(u.getUsername());
+        try {
+            connection.subscribePresence(currentUser.getUsername(), names);
+        } catch (Exception e) {
+            System.err.println("[PRESENCE] subscribe failed: " + e.getMessage());
+        }
+    }
+
+    /** Frame PRESENCE (đã trên FX thread): chỉ các user có thay đổi. */
+    public void applyPresence(List<PresenceUpdate> list) {
+        for (PresenceUpdate p : list) {
+            for (User u : idToUser.values()) {
+                if (!u.getUsername().equals(p.username)) continue;
+                Label lbl = lastLabels.get(u.getId());
+                if (lbl != null) applyStatus(lbl, p.online, p.lastSeenIso);
+                break;
+            }
+        }
+    }
+
+    private void applyStatus(Label lbl, boolean online, String lastSeenIso) {
+        lbl.getStyleClass().removeAll("chat-status-online", "chat-status-offline");
+        if (online) {
+            lbl.setText("Online");
+            lbl.getStyleClass().add("chat-status-online");
+        } else {
+            lbl.setText("Offline • " + humanize(lastSeenIso, false));
+            lbl.getStyleClass().add("chat-status-offline");
+        }
+    }
 
     private void refreshPresenceOnce() {
         try {
@@ -256,15 +358,7 @@ public class LeftController {
                     Label lbl = entry.getValue();
                     UserDAO.Presence p = map.get(userId);
                     if (p == null) continue;
-
-                    lbl.getStyleClass().removeAll("chat-status-online", "chat-status-offline");
-                    if (p.online) {
-                        lbl.setText("Online");
-                        lbl.getStyleClass().add("chat-status-online");
-                    } else {
-                        lbl.setText("Offline • " + humanize(p.lastSeenIso, false));
-                        lbl.getStyleClass().add("chat-status-offline");
-                    }
+                    applyStatus(lbl, p.online, p.lastSeenIso);
                 }
             });
         } catch (SQLException ex) {
@@ -274,36 +368,46 @@ public class LeftController {
     
     private void refreshUsersDiff() {
         if (currentUser == null || chatList == null) return;
+        if (directory()) {
+            if (searchQuery.isEmpty() && loadingUsers == null) requestUsers(0, false);
+            return;
+        }
         try {
-            List<User> latest = UserDAO.listOthers(currentUser.getId());
-
-            Set<Integer> latestIds = new HashSet<>();
-            for (User u : latest) {
-                latestIds.add(u.getId());
-                if (!idToUser.containsKey(u.getId())) {
-                    idToUser.put(u.getId(), u);
-                    Platform.runLater(() -> chatList.getChildren().add(createChatItem(u)));
-                } else {
-                    idToUser.put(u.getId(), u);
-                }
-            }
+            applyUsersDiff(UserDAO.listOthers(currentUser.getId()));
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
 
-            List<Node> toRemove = new ArrayList<>();
-            for (Node n : chatList.getChildren()) {
-                Object ud = n.getUserData();
-                if (ud instanceof Integer id && !latestIds.contains(id)) {
-                    toRemove.add(n);
-                    lastLabels.remove(id);
-                    idToUser.remove(id);
-                }
-            }
-            if (!toRemove.isEmpty()) {
-                Platform.runLater(() -> chatList.getChildren().removeAll(toRemove));
+    private void applyUsersDiff(List<User> latest) {
+        Set<Integer> latestIds = new HashSet<>();
+        boolean changed = false;
+        for (User u : latest) {
+            latestIds.add(u.getId());
+            if (!idToUser.containsKey(u.getId())) {
+                changed = true;
+                idToUser.put(u.getId(), u);
+                Platform.runLater(() -> chatList.getChildren().add(createChatItem(u)));
+            } else {
+                idToUser.put(u.getId(), u);
             }
+        }
 
-        } catch (SQLException ex) {
-            ex.printStackTrace();
+        List<Node> toRemove = new ArrayList<>();
+        for (Node n : chatList.getChildren()) {
+            Object ud = n.getUserData();
+            if (ud instanceof Integer id && !latestIds.contains(id)) {
+                toRemove.add(n);
+                lastLabels.remove(id);
+                idToUser.remove(id);
+            }
+        }
+        if (!toRemove.isEmpty()) {
+            changed = true;
+            Platform.runLater(() -> chatList.getChildren().removeAll(toRemove));
         }
+        // sau khi các dòng mới đã vẽ, để PRESENCE trả về có nhãn mà cập nhật
+        if (changed && pushPresence) Platform.runLater(this::subscribePresence);
     }
 
     private void applyCollapsedUI(boolean isCollapsed) {
@@ -366,7 +470,9 @@ public class LeftController {
     }
 
     private void performLogout() {
-        try { if (currentUser != null) UserDAO.setOnline(currentUser.getId(), false); } catch (SQLException ignored) {}
+        // server có PRESENCE tự ghi offline khi kết nối đóng
+        boolean serverTracks = connection != null && connection.serverTracksPresence();
+        try { if (currentUser != null && !serverTracks) UserDAO.setOnline(currentUser.getId(), false); } catch (SQLException ignored) {}
 
         stopPolling();
 
@@ -391,8 +497,7 @@ public class LeftController {
         }
     }
 
-    private StackPane buildCircularAvatar(Image img, double size) {
-        ImageView iv = new ImageView(img);
+    private StackPane buildCircularAvatar(ImageView iv, double size) {
         iv.setFitWidth(size);
         iv.setFitHeight(size);
         iv.setPreserveRatio(true);
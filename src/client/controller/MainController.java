@@ -170,7 +170,6 @@ public class MainController {
                         return;
                     }
                     User loggedIn = UserDAO.findByUsername(username.getText());
-                    UserDAO.setOnline(loggedIn.getId(), true);
                     goToHome(loggedIn);
                 }
             } catch (SQLException e) {
@@ -202,6 +201,12 @@ public class MainController {
                 return;
             }
             conn.register(loggedInUser.getUsername());
+            // server cũ: client tự ghi online; server có PRESENCE đã ghi khi nhận đăng nhập
+            conn.onHandshake(() -> {
+                if (conn.serverTracksPresence()) return;
+                try { UserDAO.setOnline(loggedInUser.getId(), true); }
+                catch (SQLException e) { System.err.println("[PRESENCE] setOnline failed: " + e.getMessage()); }
+            });
             CallSignalingService callSvc = new CallSignalingService(conn);
             Stage stage = (Stage) loginBtn.getScene().getWindow();
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/client/view/Home.fxml"));
@@ -216,7 +221,9 @@ public class MainController {
             stage.setScene(scene);
             stage.centerOnScreen();
             stage.setOnCloseRequest(ev -> {
-                try { UserDAO.setOnline(loggedInUser.getId(), false); } catch (Exception ignore) {}
+                if (!conn.serverTracksPresence()) {
+                    try { UserDAO.setOnline(loggedInUser.getId(), false); } catch (Exception ignore) {}
+                }
                 try { conn.close(); } catch (Exception ignore) {}
             });
         } catch (Exception e) {
@@ -1,8 +1,10 @@
 package client.controller;
 
+import client.AvatarCache;
 import client.ClientConnection;
 import client.controller.mid.CallHandler;
 import client.controller.mid.FileHandler;
+import client.controller.mid.HistoryPager;
 import client.controller.mid.MediaHandler;
 import client.controller.mid.MessageHandler;
 import client.controller.mid.UIMessageHandler;
@@ -12,7 +14,9 @@ import client.media.LanAudioSession;
 import client.media.LanVideoSession;
 import client.signaling.CallSignalListener;
 import client.signaling.CallSignalingService;
+import common.AvatarVariant;
 import common.Frame;
+import common.PresenceUpdate;
 import common.User;
 import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
@@ -89,6 +93,17 @@ public class MidController implements CallSignalListener {
     private final ArrayDeque<HBox> pendingOutgoingTexts = new ArrayDeque<>();
     
     private final CallHandler callHandler = new CallHandler(this);
+    // tạo trong bind(), không phải lúc khởi tạo field: tránh lộ this khi đối tượng chưa dựng xong
+    private HistoryPager historyPager;
+    // nhận trang kết quả SEARCH_ALL cho hộp thoại tìm kiếm đang mở (null = không có)
+    private Consumer<Frame> searchListener;
+    // trạng thái server đẩy về (Capabilities.PRESENCE); danh sách bên trái nghe qua presenceListener
+    private final Map<String, PresenceUpdate> presence = new HashMap<>();
+    private Consumer<List<PresenceUpdate>> presenceListener;
+    // trả lời USER_LIST / USER_SEARCH → danh sách bên trái
+    private Consumer<Frame> directoryListener;
+    // avatar theo cỡ (Capabilities.AVATAR), dùng chung với danh sách bên trái
+    private AvatarCache avatars;
     private final Set<String> shownCallLogs = ConcurrentHashMap.newKeySet();
     private final Map<String, HBox> pendingHistoryFileRows = new ConcurrentHashMap<>();
     private final Map<String, MediaPlayer> videoPlayers = new ConcurrentHashMap<>();
@@ -110,6 +125,7 @@ public class MidController implements CallSignalListener {
         this.messageContainer = messageContainer;
         this.messageField = messageField;
         this.midHeaderAvatar = midHeaderAvatar;
+        this.historyPager = new HistoryPager(this);
 
         if (this.messageField != null) this.messageField.setOnAction(e -> onSendMessage());
     }
@@ -117,6 +133,27 @@ public class MidController implements CallSignalListener {
     public void setRightController(RightController rc) { this.rightController = rc; }
     public void setCurrentUser(User user) { this.currentUser = user; }
     public CallHandler getCallHandler() { return callHandler; }
+    public HistoryPager getHistoryPager() { return historyPager; }
+    public Consumer<Frame> getSearchListener() { return searchListener; }
+    public void setSearchListener(Consumer<Frame> l) { this.searchListener = l; }
+    public void setPresenceListener(Consumer<List<PresenceUpdate>> l) { this.presenceListener = l; }
+    public Consumer<Frame> getDirectoryListener() { return directoryListener; }
+    public void setDirectoryListener(Consumer<Frame> l) { this.directoryListener = l; }
+    public AvatarCache getAvatars() { return avatars; }
+    public void setAvatars(AvatarCache a) { this.avatars = a; }
+
+    /** Frame PRESENCE: cập nhật header nếu đang chat với user đó, rồi báo danh sách bên trái. */
+    public void onPresence(Frame f) {
+        List<PresenceUpdate> list = PresenceUpdate.parse(f.body);
+        for (PresenceUpdate p : list) {
+            presence.put(p.username, p);
+            if (selectedUser != null && p.username.equals(selectedUser.getUsername())) {
+                applyStatusLabel(currentChatStatus, p.online, p.lastSeenIso);
+                if (rightController != null) rightController.showUser(selectedUser, p.online, p.lastSeenIso);
+            }
+        }
+        if (presenceListener != null) presenceListener.accept(list);
+    }
     public void setConnection(ClientConnection conn) {
         this.connection = conn;
         if (this.connection != null) {
@@ -133,24 +170,33 @@ public class MidController implements CallSignalListener {
         this.selectedUser = u;
         if (currentChatName != null) currentChatName.setText(u.getUsername());
 
-        try {
-            UserDAO.Presence p = UserDAO.getPresence(u.getId());
-            boolean online = p != null && p.online;
-            String lastSeen = (p != null) ? p.lastSeenIso : null;
-            applyStatusLabel(currentChatStatus, online, lastSeen);
-            if (rightController != null) rightController.showUser(u, online, lastSeen);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            applyStatusLabel(currentChatStatus, false, null);
-            if (rightController != null) rightController.showUser(u, false, null);
+        PresenceUpdate pushed = presence.get(u.getUsername());
+        if (pushed != null) {
+            // server đẩy trạng thái: DB chỉ được ghi dồn nên có thể trễ vài giây
+            applyStatusLabel(currentChatStatus, pushed.online, pushed.lastSeenIso);
+            if (rightController != null) rightController.showUser(u, pushed.online, pushed.lastSeenIso);
+        } else {
+            try {
+                UserDAO.Presence p = UserDAO.getPresence(u.getId());
+                boolean online = p != null && p.online;
+                String lastSeen = (p != null) ? p.lastSeenIso : null;
+                applyStatusLabel(currentChatStatus, online, lastSeen);
+                if (rightController != null) rightController.showUser(u, online, lastSeen);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                applyStatusLabel(currentChatStatus, false, null);
+                if (rightController != null) rightController.showUser(u, false, null);
+            }
         }
         
-        Image peerAvatar = loadAvatarImage(u.getId());
-        if (midHeaderAvatar != null && peerAvatar != null) {
-            midHeaderAvatar.setImage(peerAvatar);
-        }
-        if (rightController != null) {
-            rightController.setAvatar(peerAvatar);
+        if (avatars != null) {
+            if (midHeaderAvatar != null) midHeaderAvatar.setImage(avatars.placeholder());
+            if (rightController != null) rightController.setAvatar(avatars.placeholder());
+            avatars.load(u.getUsername(), AvatarVariant.HEADER, img -> {
+                if (selectedUser != u) return; // đã chuyển sang hội thoại khác
+                if (midHeaderAvatar != null) midHeaderAvatar.setImage(img);
+                if (rightController != null) rightController.setAvatar(img);
+            });
         }
 
         if (messageContainer != null) {
@@ -166,7 +212,7 @@ public class MidController implements CallSignalListener {
 
         if (connection != null && connection.isAlive()) {
             try {
-                connection.history(currentUser.getUsername(), u.getUsername(), 50);
+                historyPager.open(currentUser.getUsername(), u.getUsername());
             } catch (Exception e) {
                 System.err.println("[HISTORY] Failed to load history: " + e.getMessage());
                 Platform.runLater(() -> showErrorAlert("Lịch sử tin nhắn không tải được: " + e.getMessage()));
@@ -179,21 +225,6 @@ public class MidController implements CallSignalListener {
     }
     
 
-	private Image loadAvatarImage(int userId) {
-	    try {
-	        byte[] bytes = server.dao.UserDAO.getAvatarById(userId); 
-	        if (bytes != null && bytes.length > 0) {
-	            return new Image(new java.io.ByteArrayInputStream(bytes));
-	        }
-	    } catch (Exception ignore) { }
-	    // fallback default
-	    return new Image(
-	        Objects.requireNonNull(
-	            getClass().getResource("/client/view/images/default user.png")
-	        ).toExternalForm()
-	    );
-	}
-    
     private void snapshotText(String text, boolean incoming) {
         if (text == null) return;
         messageSnapshot.add(new MsgView(System.currentTimeMillis(), incoming, text));
@@ -235,7 +266,7 @@ public class MidController implements CallSignalListener {
         new MessageHandler(this).onSendMessage();
     }
 
-    private ScrollPane findMessageScrollPane() {
+    public ScrollPane findMessageScrollPane() {
         if (messageContainer == null) return null;
         Node p = messageContainer.getParent();
         while (p != null && !(p instanceof ScrollPane)) p = p.getParent();
@@ -250,10 +281,13 @@ public class MidController implements CallSignalListener {
             messageContainer.heightProperty().removeListener(autoScrollListener);
         }
 
-        autoScrollListener = (obs, oldV, newV) -> Platform.runLater(() -> {
-            sp.layout();
-            sp.setVvalue(1.0);
-        });
+        autoScrollListener = (obs, oldV, newV) -> {
+            if (historyPager.isPrepending()) return; // chèn trang cũ: giữ nguyên vị trí đang xem
+            Platform.runLater(() -> {
+                sp.layout();
+                sp.setVvalue(1.0);
+            });
+        };
         messageContainer.heightProperty().addListener(autoScrollListener);
 
         Platform.runLater(() -> {
@@ -1,9 +1,11 @@
 package client.controller;
 
 import client.signaling.CallSignalingService;
+import common.AvatarVariant;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.ContentDisplay;
 import javafx.scene.control.Label;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
@@ -56,6 +58,20 @@ public class VideoCallController {
         String initials = (peer == null || peer.isEmpty())
                 ? "?" : String.valueOf(Character.toUpperCase(peer.charAt(0)));
         avatarLabel.setText(initials);
+        var avatars = (controller != null) ? controller.getAvatars() : null;
+        if (avatars != null && peer != null) {
+            // có avatar thật thì thay chữ cái đầu; chưa có thì giữ chữ
+            avatars.load(peer, AvatarVariant.CALL, img -> {
+                if (img == avatars.placeholder()) return;
+                ImageView iv = new ImageView(img);
+                iv.setFitWidth(56);
+                iv.setFitHeight(56);
+                iv.setPreserveRatio(true);
+                iv.setSmooth(true);
+                avatarLabel.setGraphic(iv);
+                avatarLabel.setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+            });
+        }
 
         remoteVideo.setPreserveRatio(true);
         remoteVideo.setSmooth(true);
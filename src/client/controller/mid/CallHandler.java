@@ -8,6 +8,7 @@ import client.media.CallOffer;
 import client.media.LanAudioSession;
 import client.media.LanVideoSession;
 import client.media.LanVideoSession.OfferInfo;
+import common.JsonWriter;
 import common.User;
 import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
@@ -215,18 +216,18 @@ public class CallHandler {
             String callerName = controller.isCaller() ? self : peer;
             String calleeName = controller.isCaller() ? peer : self;
 
-            String payload = "[CALLLOG]{"
-                + "\"type\":\"video\","
-                + "\"title\":\"" + escape(title) + "\","
-                + "\"subtitle\":\"" + escape(subtitle) + "\","
-                + "\"icon\":\"" + escape(icon) + "\","
-                + "\"started\":" + started + ","
-                + "\"ended\":" + ended + ","
-                + "\"durationMs\":" + duration + ","
-                + "\"callId\":\"" + controller.getCurrentCallId() + "\","
-                + "\"caller\":\"" + escape(callerName) + "\","
-                + "\"callee\":\"" + escape(calleeName) + "\""
-                + "}";
+            String payload = "[CALLLOG]" + new JsonWriter(256)
+                .field("type", "video")
+                .field("title", title)
+                .field("subtitle", subtitle)
+                .field("icon", icon)
+                .field("started", started)
+                .field("ended", ended)
+                .field("durationMs", duration)
+                .field("callId", controller.getCurrentCallId())
+                .field("caller", callerName)
+                .field("callee", calleeName)
+                .end();
             try {
                 conn.dm(self, peer, payload);
             } catch (Exception e) {
@@ -238,10 +239,6 @@ public class CallHandler {
         controller.addCallLog(icon, title, subtitle, incoming);
     }
 
-    private static String escape(String s) {
-        return (s == null) ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"");
-    }
-
     public void localCancelBeforeConnect() {
         try { controller.getCallSvc().sendCancel(controller.getCurrentPeer(), controller.getCurrentCallId()); }
         catch (Exception ignore) {}
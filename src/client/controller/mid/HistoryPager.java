@@ -0,0 +1,156 @@
+package client.controller.mid;
+
+import java.io.IOException;
+
+import client.ClientConnection;
+import client.controller.MidController;
+import common.Capabilities;
+import common.Frame;
+import common.HistoryPage;
+import common.Log;
+import javafx.scene.control.ScrollPane;
+
+/**
+ * Cuộn vô hạn cho lịch sử hội thoại đang mở (chỉ dùng trên FX thread).
+ *
+ * Trang mới nhất render ngay khi mở; ngay sau đó tải trước trang cũ hơn (keyset theo id nhỏ
+ * nhất đã hiện) và giữ sẵn. Khi cuộn gần đỉnh thì chèn trang giữ sẵn lên đầu — không chờ mạng —
+ * rồi lại tải trước trang kế. Server cũ (không HISTORY_BATCH) chỉ có trang đầu như trước.
+ */
+public class HistoryPager {
+    /** Số tin mỗi trang. */
+    public static final int PAGE_SIZE = Integer.getInteger("chat.history.page", 50);
+    // vvalue dưới ngưỡng này coi như đã tới đỉnh
+    private static final double TOP_THRESHOLD = 0.05;
+
+    private final MidController controller;
+
+    private String peer;
+    private long oldestId;       // beforeId cho trang kế; 0 = chưa có
+    private boolean loading;     // đang chờ 1 trang cũ hơn
+    private boolean exhausted;   // đã hết tin cũ hơn
+    private HistoryPage buffered; // trang cũ hơn đã tải trước, chưa hiện
+    private int insertAt = -1;   // >= 0 khi đang chèn trang cũ lên đầu
+    private ScrollPane watched;
+
+    public HistoryPager(MidController controller) {
+        this.controller = controller;
+    }
+
+    /** Mở hội thoại: xoá trạng thái cũ và xin trang mới nhất. */
+    public void open(String me, String peer) throws IOException {
+        this.peer = peer;
+        oldestId = 0L;
+        loading = false;
+        exhausted = false;
+        buffered = null;
+        insertAt = -1;
+        watchScroll();
+        ClientConnection c = controller.getConnection();
+        if (c != null && c.isAlive()) c.history(me, peer, PAGE_SIZE);
+    }
+
+    /** 1 frame HISTORY_BATCH tới: trang đầu thì render ngay, trang cũ hơn thì giữ sẵn. */
+    public void onPage(Frame f) {
+        if (peer == null || !peer.equals(f.sender)) return; // trang của hội thoại đã đóng
+        HistoryPage page;
+        try {
+            page = HistoryPage.from(f);
+        } catch (IOException e) {
+            Log.warn("HISTORY", "Bad history page: " + e.getMessage());
+            return;
+        }
+        long cursor = HistoryPage.cursor(f);
+        if (cursor == 0L) {
+            new MessageHandler(controller).renderHistoryPage(page, f.recipient, peer);
+            accept(page);
+            prefetch();
+            return;
+        }
+        if (cursor != oldestId || !loading) return; // trả lời cho con trỏ đã bỏ
+        loading = false;
+        buffered = page;
+        if (atTop()) showBuffered();
+    }
+
+    /** Chỉ số để chèn dòng kế tiếp; -1 = thêm vào cuối như bình thường. */
+    public int nextInsertIndex() {
+        return insertAt < 0 ? -1 : insertAt++;
+    }
+
+    public boolean isPrepending() { return insertAt >= 0; }
+
+    /** Đầu danh sách bị cắt bớt (giới hạn số dòng): trang cũ hơn phải tải lại từ dòng đầu còn lại. */
+    public void onFrontTrimmed(long firstRemainingId) {
+        if (firstRemainingId <= 0) return;
+        oldestId = firstRemainingId;
+        buffered = null;
+        loading = false;
+        exhausted = false;
+    }
+
+    private void accept(HistoryPage page) {
+        if (page.rows.size() < PAGE_SIZE) exhausted = true;
+        long id = page.oldestId();
+        if (id > 0) oldestId = id;
+    }
+
+    private void prefetch() {
+        if (exhausted || loading || buffered != null || oldestId <= 0 || peer == null) return;
+        ClientConnection c = controller.getConnection();
+        if (c == null || !c.isAlive() || !c.serverProtocol().has(Capabilities.HISTORY_BATCH)) return;
+        try {
+            c.historyBefore(controller.getCurrentUser().getUsername(), peer, PAGE_SIZE, oldestId);
+            loading = true;
+        } catch (IOException e) {
+            Log.warn("HISTORY", "Prefetch failed: " + e.getMessage());
+        }
+    }
+
+    private void showBuffered() {
+        HistoryPage page = buffered;
+        if (page == null) { prefetch(); return; }
+        buffered = null;
+        if (!page.rows.isEmpty()) prepend(page);
+        accept(page);
+        prefetch();
+    }
+
+    /** Chèn trang lên đầu và giữ nguyên nội dung đang nhìn (không nhảy xuống cuối). */
+    private void prepend(HistoryPage page) {
+        ScrollPane sp = watched;
+        var box = controller.getMessageContainer();
+        double h0 = box.getHeight();
+        double v0 = sp == null ? 0 : sp.getVvalue();
+        insertAt = 0;
+        try {
+            new MessageHandler(controller).renderHistoryPage(page, controller.getCurrentUser().getUsername(), peer);
+            if (sp == null) return;
+            sp.applyCss();
+            sp.layout();
+            double view = sp.getViewportBounds().getHeight();
+            double h1 = box.getHeight();
+            double y = v0 * Math.max(0, h0 - view) + (h1 - h0);
+            sp.setVvalue(h1 > view ? Math.min(1.0, y / (h1 - view)) : 0);
+        } finally {
+            insertAt = -1;
+        }
+    }
+
+    // đang ở đỉnh, hoặc nội dung chưa đủ dài để cuộn
+    private boolean atTop() {
+        return watched != null && (watched.getVvalue() <= TOP_THRESHOLD
+                || controller.getMessageContainer().getHeight() <= watched.getViewportBounds().getHeight());
+    }
+
+    private void watchScroll() {
+        ScrollPane sp = controller.findMessageScrollPane();
+        if (sp == null || sp == watched) return;
+        watched = sp;
+        sp.vvalueProperty().addListener((obs, oldV, newV) -> {
+            if (!isPrepending() && newV.doubleValue() <= TOP_THRESHOLD && newV.doubleValue() < oldV.doubleValue()) {
+                showBuffered();
+            }
+        });
+    }
+}
@@ -1,6 +1,9 @@
 package client.controller.mid;
 
 import common.Frame;
+import common.FrameMeta;
+import common.HistoryPage;
+import common.JsonFields;
 import javafx.application.Platform;
 import javafx.scene.layout.HBox;
 import java.io.BufferedOutputStream;
@@ -191,123 +194,52 @@ public class MessageHandler {
                     int p = payload.indexOf(": ");
                     if (p > 0) {
                         String sender = payload.substring(0, p);
-                        String body = payload.substring(p + 2);
-
-                        if (body.startsWith("[CALLLOG]")) {
-                            if (openPeer != null && openPeer.equals(sender)) {
-                                CallLogData d = parseCallLog(body);
-                                renderCallLogOnce(d, true);
-                            }
-                            break;
-                        }
-
                         if (openPeer != null && openPeer.equals(sender)) {
-                            long msgId = 0L;
-                            try { msgId = Long.parseLong(String.valueOf(f.transferId)); } catch (Exception ignore) {}
-                            String msgIdStr = (msgId > 0 ? String.valueOf(msgId) : null);
-
-                            if (body.startsWith("[FILE]")) {
-                                String name = body.substring(6).trim();
-                                String meta = "";
-                                HBox row = controller.addFileMessage(name, meta, true, msgIdStr);
-                                if (msgIdStr != null) controller.getPendingHistoryFileRows().put(msgIdStr, row);
-                                if (controller.getConnection() != null && controller.getConnection().isAlive() && msgId > 0) {
-                                    String key = String.valueOf(msgId);
-                                    if (markDownloadRequested(key)) {
-                                        try { controller.getConnection().downloadFileByMsgId(msgId); } catch (IOException ignore) {}
-                                    }
-                                }
-                            } else if (body.startsWith("[AUDIO]")) {
-                                String dur = "--:--";
-                                HBox row = controller.addVoiceMessage(dur, true, msgIdStr);
-                                if (msgIdStr != null) controller.getPendingHistoryFileRows().put(msgIdStr, row);
-                                if (controller.getConnection() != null && controller.getConnection().isAlive() && msgId > 0) {
-                                    String key = String.valueOf(msgId);
-                                    if (markDownloadRequested(key)) {
-                                        try { controller.getConnection().downloadFileByMsgId(msgId); } catch (IOException ignore) {}
-                                    }
-                                }
-                            } else if (body.startsWith("[VIDEO]")) {
-                                String name = body.substring(7).trim();
-                                String meta = "";
-                                HBox row = controller.addVideoMessage(name, meta, true, msgIdStr);
-                                if (msgIdStr != null) controller.getPendingHistoryFileRows().put(msgIdStr, row);
-                                if (controller.getConnection() != null && controller.getConnection().isAlive() && msgId > 0) {
-                                    String key = String.valueOf(msgId);
-                                    if (markDownloadRequested(key)) {
-                                        try { controller.getConnection().downloadFileByMsgId(msgId); } catch (IOException ignore) {}
-                                    }
-                                }
-                            } else {
-                                controller.addTextMessage(body, true, f.transferId);
-                            }
+                            renderHistoryRow(payload.substring(p + 2), true, f.transferId, "");
                         }
                     }
-
                 } else if (line.startsWith("[HIST OUT]")) {
-                    String body = line.substring(10).trim();
+                    renderHistoryRow(line.substring(10).trim(), false, f.transferId, "");
+                }
+            }
 
-                    if (body.startsWith("[CALLLOG]")) {
-                        CallLogData d = parseCallLog(body);
-                        renderCallLogOnce(d, false);
-                        break;
-                    }
+            // === HISTORY_BATCH: cả trang trong 1 frame (trang đầu hoặc trang cũ hơn) ===
+            case HISTORY_BATCH -> controller.getHistoryPager().onPage(f);
 
-                    long msgId = 0L;
-                    try { msgId = Long.parseLong(String.valueOf(f.transferId)); } catch (Exception ignore) {}
-                    String msgIdStr = (msgId > 0 ? String.valueOf(msgId) : null);
-
-                    if (body.startsWith("[FILE]")) {
-                        String name = body.substring(6).trim();
-                        String meta = "";
-                        HBox row = controller.addFileMessage(name, meta, false, msgIdStr);
-                        if (msgIdStr != null) controller.getPendingHistoryFileRows().put(msgIdStr, row);
-                        if (controller.getConnection() != null && controller.getConnection().isAlive() && msgId > 0) {
-                            String key = String.valueOf(msgId);
-                            if (markDownloadRequested(key)) {
-                                try { controller.getConnection().downloadFileByMsgId(msgId); } catch (IOException ignore) {}
-                            }
-                        }
-                    } else if (body.startsWith("[AUDIO]")) {
-                        String dur = "--:--";
-                        HBox row = controller.addVoiceMessage(dur, false, msgIdStr);
-                        if (msgIdStr != null) controller.getPendingHistoryFileRows().put(msgIdStr, row);
-                        if (controller.getConnection() != null && controller.getConnection().isAlive() && msgId > 0) {
-                            String key = String.valueOf(msgId);
-                            if (markDownloadRequested(key)) {
-                                try { controller.getConnection().downloadFileByMsgId(msgId); } catch (IOException ignore) {}
-                            }
-                        }
-                    } else if (body.startsWith("[VIDEO]")) {
-                        String name = body.substring(7).trim();
-                        String meta = "";
-                        HBox row = controller.addVideoMessage(name, meta, false, msgIdStr);
-                        if (msgIdStr != null) controller.getPendingHistoryFileRows().put(msgIdStr, row);
-                        if (controller.getConnection() != null && controller.getConnection().isAlive() && msgId > 0) {
-                            String key = String.valueOf(msgId);
-                            if (markDownloadRequested(key)) {
-                                try { controller.getConnection().downloadFileByMsgId(msgId); } catch (IOException ignore) {}
-                            }
-                        }
-                    } else {
-                        controller.addTextMessage(body, false, f.transferId);
-                    }
-                }
+            // === PRESENCE: trạng thái online/last_seen server đẩy về ===
+            case PRESENCE -> controller.onPresence(f);
+
+            // === USER_LIST / USER_SEARCH: 1 trang danh bạ từ server → danh sách bên trái ===
+            case USER_LIST, USER_SEARCH -> {
+                var l = controller.getDirectoryListener();
+                if (l != null) l.accept(f);
+            }
+
+            // === AVATAR: ảnh đã thu nhỏ (hoặc "không đổi") cho cache avatar ===
+            case AVATAR -> {
+                var a = controller.getAvatars();
+                if (a != null) a.onFrame(f);
+            }
+
+            // === SEARCH_ALL: 1 trang kết quả tìm kiếm toàn cục → hộp thoại tìm kiếm đang mở ===
+            case SEARCH_ALL -> {
+                var l = controller.getSearchListener();
+                if (l != null) l.accept(f);
             }
 
             // === FILE_EVT / AUDIO_EVT ===
             case FILE_EVT, AUDIO_EVT -> {
-                String json = f.body == null ? "" : f.body;
+                FrameMeta meta = FrameMeta.of(f);
 
-                String from     = UtilHandler.jsonGet(json, "from");
-                String name     = UtilHandler.jsonGet(json, "name");
-                String mime     = UtilHandler.jsonGet(json, "mime");
-                long   bytes    = UtilHandler.parseLongSafe(UtilHandler.jsonGet(json, "bytes"), 0);
-                int    duration = UtilHandler.parseIntSafe(UtilHandler.jsonGet(json, "duration"), 0);
+                String from     = meta.get("from", f.sender);
+                String name     = meta.get("name");
+                String mime     = meta.get("mime");
+                long   bytes    = meta.getLong("bytes", 0);
+                int    duration = meta.getInt("duration", 0);
 
-                String uuid   = UtilHandler.jsonGet(json, "uuid");
-                String legacy = UtilHandler.jsonGet(json, "id");
-                String dbIdStr= UtilHandler.jsonGet(json, "fileId");
+                String uuid   = meta.get("uuid");
+                String legacy = meta.get("id");
+                String dbIdStr= meta.get("fileId");
                 Long   dbId   = null;
                 if (dbIdStr != null && !dbIdStr.isBlank()) {
                     try { dbId = Long.parseLong(dbIdStr); } catch (Exception ignore) {}
@@ -350,7 +282,7 @@ public class MessageHandler {
                     }
 
                     if (controller.getConnection() != null && controller.getConnection().isAlive()) {
-                        String msgIdStr = UtilHandler.jsonGet(json, "messageId");
+                        String msgIdStr = meta.get("messageId");
                         Long msgId = null;
                         if (msgIdStr != null && !msgIdStr.isBlank()) {
                             try { msgId = Long.parseLong(msgIdStr); } catch (Exception ignore) {}
@@ -374,14 +306,14 @@ public class MessageHandler {
 
             // === FILE_META ===
             case FILE_META -> {
-                String body = f.body == null ? "" : f.body;
-                String mime = UtilHandler.jsonGet(body, "mime");
-                String fid  = UtilHandler.jsonGet(body, "fileId");
-                String msgIdStr = UtilHandler.jsonGet(body, "messageId");
-                String name = UtilHandler.jsonGet(body, "name");
-                long metaSize = UtilHandler.parseLongSafe(UtilHandler.jsonGet(body, "size"), 0);
+                FrameMeta body = FrameMeta.of(f);
+                String mime = body.get("mime");
+                String fid  = body.get("fileId");
+                String msgIdStr = body.get("messageId");
+                String name = body.get("name");
+                long metaSize = body.getLong("size", 0);
                 if (metaSize <= 0) {
-                    metaSize = UtilHandler.parseLongSafe(UtilHandler.jsonGet(body, "bytes"), 0);
+                    metaSize = body.getLong("bytes", 0);
                 }
                 final long sizeHint = metaSize;
 
@@ -499,7 +431,12 @@ public class MessageHandler {
                     controller.tagNextPendingOutgoing(f.transferId);
                 }
             }
-            case ERROR -> Platform.runLater(() -> controller.showErrorAlert("Lỗi: " + f.body));
+            case ERROR -> {
+                // tìm kiếm toàn cục lỗi: báo trong hộp thoại tìm kiếm đang chờ thay cho hộp cảnh báo
+                var l = controller.getSearchListener();
+                if (l != null && "SEARCH_FAIL".equals(f.body)) l.accept(f);
+                else Platform.runLater(() -> controller.showErrorAlert("Lỗi: " + f.body));
+            }
         }
     }
 
@@ -537,13 +474,13 @@ public class MessageHandler {
         try {
             int i = body.indexOf('{');
             if (!body.startsWith("[CALLLOG]") || i < 0) return null;
-            String json = body.substring(i);
-            String icon     = UtilHandler.jsonGet(json, "icon");
-            String title    = UtilHandler.jsonGet(json, "title");
-            String subtitle = UtilHandler.jsonGet(json, "subtitle");
-            String callId   = UtilHandler.jsonGet(json, "callId");
-            String caller   = UtilHandler.jsonGet(json, "caller");
-            String callee   = UtilHandler.jsonGet(json, "callee");
+            JsonFields json = JsonFields.parse(body.substring(i));
+            String icon     = json.get("icon");
+            String title    = json.get("title");
+            String subtitle = json.get("subtitle");
+            String callId   = json.get("callId");
+            String caller   = json.get("caller");
+            String callee   = json.get("callee");
             if (title == null) title = "";
             if (subtitle == null) subtitle = "";
             if (icon == null || icon.isBlank()) icon = "🎥";
@@ -568,6 +505,56 @@ public class MessageHandler {
         return true;
     }
 
+    // ===================== HISTORY =====================
+
+    /** Render cả trang 1 lượt; {@link HistoryPager} quyết định thêm vào cuối hay chèn lên đầu. */
+    void renderHistoryPage(HistoryPage page, String me, String openPeer) {
+        for (HistoryPage.Row r : page.rows) {
+            boolean incoming = !r.sender.equals(me);
+            if (incoming && (openPeer == null || !openPeer.equals(r.sender))) continue;
+            String meta = "";
+            if (r.hasFile()) {
+                meta = r.mime.isBlank() ? "" : r.mime;
+                if (r.fileSize > 0) {
+                    String sizeStr = UtilHandler.humanBytes(r.fileSize);
+                    meta = meta.isBlank() ? sizeStr : (meta + " • " + sizeStr);
+                }
+            }
+            renderHistoryRow(r.body, incoming, String.valueOf(r.id), meta);
+        }
+    }
+
+    /** 1 dòng lịch sử (text/file/audio/video/call log); dùng chung cho HISTORY và HISTORY_BATCH. */
+    private void renderHistoryRow(String body, boolean incoming, String transferId, String meta) {
+        if (body.startsWith("[CALLLOG]")) {
+            renderCallLogOnce(parseCallLog(body), incoming);
+            return;
+        }
+
+        long msgId = 0L;
+        try { msgId = Long.parseLong(String.valueOf(transferId)); } catch (Exception ignore) {}
+        String msgIdStr = (msgId > 0 ? String.valueOf(msgId) : null);
+
+        HBox row;
+        if (body.startsWith("[FILE]")) {
+            row = controller.addFileMessage(body.substring(6).trim(), meta, incoming, msgIdStr);
+        } else if (body.startsWith("[AUDIO]")) {
+            row = controller.addVoiceMessage("--:--", incoming, msgIdStr);
+        } else if (body.startsWith("[VIDEO]")) {
+            row = controller.addVideoMessage(body.substring(7).trim(), meta, incoming, msgIdStr);
+        } else {
+            controller.addTextMessage(body, incoming, transferId);
+            return;
+        }
+
+        if (msgIdStr != null) controller.getPendingHistoryFileRows().put(msgIdStr, row);
+        if (controller.getConnection() != null && controller.getConnection().isAlive() && msgId > 0) {
+            if (markDownloadRequested(msgIdStr)) {
+                try { controller.getConnection().downloadFileByMsgId(msgId); } catch (IOException ignore) {}
+            }
+        }
+    }
+
     private void renderCallLogOnce(CallLogData d, boolean defaultIncoming) {
         if (d == null) return;
         if (d.callId != null && !d.callId.isBlank()) {
@@ -18,8 +18,10 @@ public class SessionHandler {
     }
 
     public void onLogout() {
+        // server có PRESENCE tự ghi offline khi kết nối đóng
+        boolean serverTracks = controller.getConnection() != null && controller.getConnection().serverTracksPresence();
         try {
-            if (controller.getCurrentUser() != null) UserDAO.setOnline(controller.getCurrentUser().getId(), false);
+            if (controller.getCurrentUser() != null && !serverTracks) UserDAO.setOnline(controller.getCurrentUser().getId(), false);
         } catch (SQLException ignored) {}
         if (controller.getConnection() != null) {
             try {
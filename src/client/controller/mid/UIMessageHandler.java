@@ -15,6 +15,9 @@ import javafx.util.Duration;
 import client.controller.MidController;
 
 public class UIMessageHandler {
+    /** Số dòng tối đa giữ trong khung chat; dòng cũ hơn được tải lại khi cuộn lên. */
+    public static final int MAX_ROWS = Integer.getInteger("chat.maxRows", 1000);
+
     private final MidController controller;
 
     public UIMessageHandler(MidController controller) {
@@ -117,7 +120,9 @@ public class UIMessageHandler {
             if (ud != null && controller.getConnection() != null) {
                 try {
                     long id = Long.parseLong(String.valueOf(ud));
-                    controller.getConnection().deleteMessage(id);
+                    controller.getConnection().deleteMessage(id,
+                            controller.getCurrentUser().getUsername(),
+                            controller.getSelectedUser().getUsername());
                 } catch (Exception ignore) { }
             }
         });
@@ -150,11 +155,34 @@ public class UIMessageHandler {
         }
     }
 
-    private HBox addRowWithBubble(Node bubble, boolean incoming, String messageId) {
-        if (controller.getMessageContainer().getChildren().size() > 100) {
-            controller.getMessageContainer().getChildren().remove(0);
+    /**
+     * Đặt 1 dòng vào khung chat: chèn lên đầu khi {@link HistoryPager} đang thêm trang cũ,
+     * còn lại thêm vào cuối; quá {@link #MAX_ROWS} thì bỏ dòng cũ nhất và báo pager tải lại sau.
+     */
+    private void placeRow(HBox row) {
+        var rows = controller.getMessageContainer().getChildren();
+        int at = controller.getHistoryPager().nextInsertIndex();
+        if (at >= 0) {
+            rows.add(Math.min(at, rows.size()), row);
+            return;
         }
+        rows.add(row);
+        if (rows.size() > MAX_ROWS) {
+            rows.remove(0, rows.size() - MAX_ROWS);
+            controller.getHistoryPager().onFrontTrimmed(firstMessageId(rows));
+        }
+    }
 
+    private static long firstMessageId(java.util.List<Node> rows) {
+        for (Node n : rows) {
+            Object ud = n.getUserData();
+            if (ud == null) continue;
+            try { return Long.parseLong(String.valueOf(ud)); } catch (NumberFormatException ignore) {}
+        }
+        return 0L;
+    }
+
+    private HBox addRowWithBubble(Node bubble, boolean incoming, String messageId) {
         HBox row = new HBox(6);
         row.setAlignment(incoming ? Pos.CENTER_LEFT : Pos.CENTER_RIGHT);
 
@@ -166,8 +194,8 @@ public class UIMessageHandler {
 
         attachSideMenu(row, spacer, incoming, messageId);
 
-        controller.getMessageContainer().getChildren().add(row);
-        scrollToBottom();
+        placeRow(row);
+        if (!controller.getHistoryPager().isPrepending()) scrollToBottom();
         return row;
     }
 
@@ -254,9 +282,6 @@ public class UIMessageHandler {
     public HBox addFileMessage(String filename, String meta, boolean incoming) { return addFileMessage(filename, meta, incoming, (String) null); }
 
     public HBox addVoiceMessage(String duration, boolean incoming, String fileId) {
-        if (controller.getMessageContainer().getChildren().size() > 100) {
-            controller.getMessageContainer().getChildren().remove(0);
-        }
         HBox row = new HBox(6);
         row.setAlignment(incoming ? Pos.CENTER_LEFT : Pos.CENTER_RIGHT);
         row.setUserData(fileId);
@@ -286,7 +311,7 @@ public class UIMessageHandler {
 
         attachSideMenu(row, spacer, incoming, fileId);
 
-        controller.getMessageContainer().getChildren().add(row);
+        placeRow(row);
         if (!incoming && fileId != null) {
             controller.getOutgoingFileBubbles().put(fileId, row);
         }
@@ -295,9 +320,6 @@ public class UIMessageHandler {
 
     /* VIDEO: chỉ khu vực phát + nút Play + Slider, KHÔNG label */
     public HBox addVideoMessage(String filename, String meta, boolean incoming, String fileId) {
-        if (controller.getMessageContainer().getChildren().size() > 100) {
-            controller.getMessageContainer().getChildren().remove(0);
-        }
         HBox row = new HBox(6);
         row.setAlignment(incoming ? Pos.CENTER_LEFT : Pos.CENTER_RIGHT);
         row.setUserData(fileId);
@@ -332,7 +354,7 @@ public class UIMessageHandler {
 
         attachSideMenu(row, spacer, incoming, fileId);
 
-        controller.getMessageContainer().getChildren().add(row);
+        placeRow(row);
         if (!incoming && fileId != null) {
             controller.getOutgoingFileBubbles().put(fileId, row);
         }
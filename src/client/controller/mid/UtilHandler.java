@@ -1,5 +1,7 @@
 package client.controller.mid;
 
+import common.JsonFields;
+
 import java.time.Instant;
 import java.util.Locale;
 
@@ -56,26 +58,9 @@ public class UtilHandler {
         return MediaKind.FILE;
     }
 
+    /** Lấy 1 trường; cần nhiều trường của cùng body thì dùng {@link JsonFields} để chỉ quét 1 lần. */
     public static String jsonGet(String json, String key) {
-        if (json == null) return null;
-        String kq = "\"" + key + "\"";
-        int i = json.indexOf(kq);
-        if (i < 0) return null;
-        int colon = json.indexOf(':', i + kq.length());
-        if (colon < 0) return null;
-        int j = colon + 1;
-        while (j < json.length() && Character.isWhitespace(json.charAt(j))) j++;
-        if (j >= json.length()) return null;
-        char c = json.charAt(j);
-        if (c == '"') {
-            int end = json.indexOf('"', j + 1);
-            if (end < 0) return null;
-            return json.substring(j + 1, end);
-        } else {
-            int end = j;
-            while (end < json.length() && "-0123456789".indexOf(json.charAt(end)) >= 0) end++;
-            return json.substring(j, end);
-        }
+        return JsonFields.parse(json).get(key);
     }
 
     public static String guessExt(String mime, String fallbackName) {
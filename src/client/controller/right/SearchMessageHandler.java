@@ -1,6 +1,12 @@
 package client.controller.right;
 
+import client.ClientConnection;
 import client.controller.MidController;
+import common.Capabilities;
+import common.HistoryPage;
+import common.Log;
+import common.MessageType;
+import common.TextFold;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -13,14 +19,19 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.stage.Window;
 
-import java.text.Normalizer;
+import java.io.IOException;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 
 public class SearchMessageHandler {
+    /** Số kết quả mỗi trang khi tìm trên server. */
+    private static final int PAGE_SIZE = Integer.getInteger("chat.search.page", 20);
+    private static final DateTimeFormatter WHEN = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm");
+
     private MidController mid;
     public SearchMessageHandler(MidController mid) { this.mid = mid; }
     public void setMidController(MidController m) { this.mid = m; }
@@ -70,75 +81,160 @@ public class SearchMessageHandler {
             results.getChildren().clear();
             String raw = input.getText() == null ? "" : input.getText().trim();
             if (raw.isEmpty() || mid == null) return;
-            String key = normalizeKey(raw);
-            List<client.controller.MidController.MsgView> all = mid.exportMessagesForSearch();
-            List<Item> matched = new ArrayList<>();
-            for (client.controller.MidController.MsgView v : all) {
-                String norm = normalizeKey(v.text());
-                if (norm.contains(key)) matched.add(new Item(v.epochMillis(), v.incoming(), v.text()));
-            }
-            matched.sort(Comparator.comparingLong(a -> a.ts));
-
-            var zone = ZoneId.systemDefault();
-            LocalDate last = null;
-            for (Item m : matched) {
-                var d = java.time.Instant.ofEpochMilli(m.ts).atZone(zone).toLocalDate();
-                if (!d.equals(last)) {
-                    last = d;
-                    Label chip = new Label(d.getDayOfMonth() + "/" + d.getMonthValue() + "/" + d.getYear());
-                    chip.getStyleClass().add("date-chip");
-                    HBox wrap = new HBox(chip);
-                    wrap.setAlignment(Pos.CENTER);
-                    wrap.setMaxWidth(Double.MAX_VALUE);
-                    results.getChildren().add(wrap);
-                }
-
-                HBox row = new HBox();
-                row.getStyleClass().add("search-result-row");
-                row.setSpacing(6);
-
-                VBox bubble = new VBox();
-                bubble.setFillWidth(true);
-                bubble.setSpacing(2);
-                bubble.setPadding(new Insets(8, 12, 8, 12));
-                bubble.setId(m.incoming ? "incoming-text" : "outgoing-text");
-
-                Label content = new Label(m.text);
-                content.setWrapText(true);
-                bubble.getChildren().add(content);
-
-                if (m.incoming) {
-                    row.setAlignment(Pos.CENTER_LEFT);
-                    row.getChildren().addAll(bubble);
-                } else {
-                    Region spacer = new Region();
-                    HBox.setHgrow(spacer, Priority.ALWAYS);
-                    row.setAlignment(Pos.CENTER_RIGHT);
-                    row.getChildren().addAll(spacer, bubble);
-                }
-                results.getChildren().add(row);
-            }
-
-            if (matched.isEmpty()) {
-                Label none = new Label("Không tìm thấy kết quả khớp.");
-                none.getStyleClass().add("chat-last");
-                results.getChildren().add(none);
+            ClientConnection c = mid.getConnection();
+            if (c != null && c.isAlive() && c.serverProtocol().has(Capabilities.SEARCH_ALL)) {
+                searchServer(c, raw, null, results);
+            } else {
+                searchLocal(raw, results);
             }
         };
 
         btnSearch.setOnAction(e -> doSearch.run());
         input.setOnAction(e -> doSearch.run());
         btnClose.setOnAction(e -> st.close());
+        st.setOnHidden(e -> { if (mid != null) mid.setSearchListener(null); });
 
         st.centerOnScreen();
         st.show();
         input.requestFocus();
     }
 
+    /** Server tìm trong mọi hội thoại (cả tên file), trả từng trang đã xếp hạng; "Xem thêm" xin trang kế. */
+    private void searchServer(ClientConnection c, String query, String cursor, VBox results) {
+        String me = mid.getCurrentUser().getUsername();
+        mid.setSearchListener(f -> {
+            if (f.type == MessageType.ERROR) { showFailure(c, query, cursor, results); return; }
+            if (!query.equals(f.body)) return; // trả lời cho câu hỏi cũ
+            HistoryPage page;
+            try {
+                page = HistoryPage.from(f);
+            } catch (IOException e) {
+                Log.warn("SEARCH", "Bad search page: " + e.getMessage());
+                return;
+            }
+            showPage(c, query, me, f.transferId, page, results);
+        });
+        try {
+            c.searchAll(me, query, PAGE_SIZE, cursor);
+        } catch (IOException e) {
+            mid.setSearchListener(null);
+            searchLocal(query, results);
+        }
+    }
+
+    private void showPage(ClientConnection c, String query, String me, String cursor,
+                          HistoryPage page, VBox results) {
+        results.getChildren().removeIf(n -> "more".equals(n.getUserData()));
+        var zone = ZoneId.systemDefault();
+        for (HistoryPage.Row r : page.rows) {
+            boolean incoming = !r.sender.equals(me);
+            String peer = incoming ? r.sender : r.recipient;
+            String when = r.createdAt > 0
+                    ? java.time.Instant.ofEpochMilli(r.createdAt).atZone(zone).format(WHEN)
+                    : "";
+            String title = (r.hasFile() ? "📎 " : "") + peer + (when.isEmpty() ? "" : " • " + when);
+            results.getChildren().add(resultRow(title, r.body, incoming));
+        }
+        String next = cursor == null ? "" : cursor;
+        if (!next.isEmpty()) {
+            Button more = new Button("Xem thêm");
+            more.getStyleClass().add("action-btn");
+            more.setUserData("more");
+            more.setOnAction(e -> searchServer(c, query, next, results));
+            results.getChildren().add(more);
+        } else if (results.getChildren().isEmpty()) {
+            Label none = new Label("Không tìm thấy kết quả khớp.");
+            none.getStyleClass().add("chat-last");
+            results.getChildren().add(none);
+        }
+    }
+
+    /** Server báo SEARCH_FAIL: giữ các trang đã hiện, thêm dòng lỗi + nút thử lại đúng trang đó. */
+    private void showFailure(ClientConnection c, String query, String cursor, VBox results) {
+        results.getChildren().removeIf(n -> "more".equals(n.getUserData()));
+        Label err = new Label("Tìm kiếm thất bại, vui lòng thử lại.");
+        err.getStyleClass().add("chat-last");
+        Button retry = new Button("Thử lại");
+        retry.getStyleClass().add("action-btn");
+        HBox row = new HBox(8, err, retry);
+        row.setAlignment(Pos.CENTER_LEFT);
+        row.setUserData("more");
+        retry.setOnAction(e -> {
+            results.getChildren().remove(row);
+            searchServer(c, query, cursor, results);
+        });
+        results.getChildren().add(row);
+    }
+
+    private static HBox resultRow(String title, String text, boolean incoming) {
+        HBox row = new HBox();
+        row.getStyleClass().add("search-result-row");
+        row.setSpacing(6);
+
+        VBox bubble = new VBox();
+        bubble.setFillWidth(true);
+        bubble.setSpacing(2);
+        bubble.setPadding(new Insets(8, 12, 8, 12));
+        bubble.setId(incoming ? "incoming-text" : "outgoing-text");
+
+        if (title != null) {
+            Label head = new Label(title);
+            head.getStyleClass().add("chat-last");
+            bubble.getChildren().add(head);
+        }
+        Label content = new Label(text);
+        content.setWrapText(true);
+        bubble.getChildren().add(content);
+
+        if (incoming) {
+            row.setAlignment(Pos.CENTER_LEFT);
+            row.getChildren().addAll(bubble);
+        } else {
+            Region spacer = new Region();
+            HBox.setHgrow(spacer, Priority.ALWAYS);
+            row.setAlignment(Pos.CENTER_RIGHT);
+            row.getChildren().addAll(spacer, bubble);
+        }
+        return row;
+    }
+
+    /** Server cũ / mất kết nối: chỉ lọc các tin đã hiện trong phiên này. */
+    private void searchLocal(String raw, VBox results) {
+        String key = normalizeKey(raw);
+        List<client.controller.MidController.MsgView> all = mid.exportMessagesForSearch();
+        List<Item> matched = new ArrayList<>();
+        for (client.controller.MidController.MsgView v : all) {
+            String norm = normalizeKey(v.text());
+            if (norm.contains(key)) matched.add(new Item(v.epochMillis(), v.incoming(), v.text()));
+        }
+        matched.sort(Comparator.comparingLong(a -> a.ts));
+
+        var zone = ZoneId.systemDefault();
+        LocalDate last = null;
+        for (Item m : matched) {
+            var d = java.time.Instant.ofEpochMilli(m.ts).atZone(zone).toLocalDate();
+            if (!d.equals(last)) {
+                last = d;
+                Label chip = new Label(d.getDayOfMonth() + "/" + d.getMonthValue() + "/" + d.getYear());
+                chip.getStyleClass().add("date-chip");
+                HBox wrap = new HBox(chip);
+                wrap.setAlignment(Pos.CENTER);
+                wrap.setMaxWidth(Double.MAX_VALUE);
+                results.getChildren().add(wrap);
+            }
+            results.getChildren().add(resultRow(null, m.text, m.incoming));
+        }
+
+        if (matched.isEmpty()) {
+            Label none = new Label("Không tìm thấy kết quả khớp.");
+            none.getStyleClass().add("chat-last");
+            results.getChildren().add(none);
+        }
+    }
+
+    /** Cùng cách chuẩn hoá với tìm kiếm phía server ({@link TextFold}). */
     public static String normalizeKey(String s) {
-        String lower = s.toLowerCase().replace('đ', 'd').replace('ð', 'd');
-        String norm = Normalizer.normalize(lower, Normalizer.Form.NFD);
-        return norm.replaceAll("\\p{InCombiningDiacriticalMarks}+", "");
+        return TextFold.fold(s);
     }
 
     private record Item(long ts, boolean incoming, String text) {}
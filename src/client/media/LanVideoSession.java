@@ -1,6 +1,8 @@
 package client.media;
 
 import com.github.sarxos.webcam.Webcam;
+import common.JsonFields;
+import common.JsonWriter;
 import javafx.application.Platform;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
@@ -60,26 +62,11 @@ public class LanVideoSession {
         public final String host;
         public final int port;
         public OfferInfo(String host, int port) { this.host = host; this.port = port; }
-        public String toJson() { return "{\"host\":\"" + host + "\",\"port\":" + port + "}"; }
+        public String toJson() { return new JsonWriter(48).field("host", host).field("port", port).end(); }
         public static OfferInfo fromJson(String json) throws IOException {
-            String s = json.trim();
-            String host = null; int port = -1;
-            int hi = s.indexOf("\"host\"");
-            if (hi >= 0) {
-                int c = s.indexOf(':', hi);
-                int q1 = s.indexOf('"', c + 1);
-                int q2 = s.indexOf('"', q1 + 1);
-                host = s.substring(q1 + 1, q2);
-            }
-            int pi = s.indexOf("\"port\"");
-            if (pi >= 0) {
-                int c = s.indexOf(':', pi);
-                int e = c + 1;
-                while (e < s.length() && Character.isWhitespace(s.charAt(e))) e++;
-                int e2 = e;
-                while (e2 < s.length() && Character.isDigit(s.charAt(e2))) e2++;
-                port = Integer.parseInt(s.substring(e, e2));
-            }
+            JsonFields j = JsonFields.parse(json);
+            String host = j.get("host");
+            int port = j.getInt("port", -1);
             if (host == null || port <= 0) throw new IOException("Bad OFFER JSON");
             return new OfferInfo(host, port);
         }
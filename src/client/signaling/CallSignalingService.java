@@ -6,6 +6,7 @@ import java.util.Objects;
 
 import client.ClientConnection;
 import common.Frame;
+import common.JsonFields;
 import common.MessageType;
 
 public class CallSignalingService {
@@ -72,7 +73,8 @@ public class CallSignalingService {
         if (listener == null) return true; 
 
         String fromUser = f.sender;
-        String callId   = jsonGet(f.body, "callId");
+        JsonFields body = JsonFields.parse(f.body);
+        String callId   = body.get("callId");
         switch (t){
             case CALL_INVITE -> listener.onInvite(fromUser, callId);
             case CALL_ACCEPT -> listener.onAccept(fromUser, callId);
@@ -80,9 +82,9 @@ public class CallSignalingService {
             case CALL_CANCEL -> listener.onCancel(fromUser, callId);
             case CALL_BUSY   -> listener.onBusy(fromUser, callId);
             case CALL_END    -> listener.onEnd(fromUser, callId);
-            case CALL_OFFER  -> listener.onOffer(fromUser, callId, unb64(jsonGet(f.body,"payload")));
-            case CALL_ANSWER -> listener.onAnswer(fromUser, callId, unb64(jsonGet(f.body,"payload")));
-            case CALL_ICE    -> listener.onIce(fromUser, callId, unb64(jsonGet(f.body,"payload")));
+            case CALL_OFFER  -> listener.onOffer(fromUser, callId, unb64(body.get("payload")));
+            case CALL_ANSWER -> listener.onAnswer(fromUser, callId, unb64(body.get("payload")));
+            case CALL_ICE    -> listener.onIce(fromUser, callId, unb64(body.get("payload")));
             default -> {}
         }
         return true;
@@ -95,26 +97,4 @@ public class CallSignalingService {
         if (b64 == null) return "";
         return new String(Base64.getDecoder().decode(b64), StandardCharsets.UTF_8);
     }
-
-    private static String jsonGet(String json, String key) {
-        if (json == null) return null;
-        String kq = "\"" + key + "\"";
-        int i = json.indexOf(kq);
-        if (i < 0) return null;
-        int colon = json.indexOf(':', i + kq.length());
-        if (colon < 0) return null;
-        int j = colon + 1;
-        while (j < json.length() && Character.isWhitespace(json.charAt(j))) j++;
-        if (j >= json.length()) return null;
-        char c = json.charAt(j);
-        if (c == '"') {
-            int end = json.indexOf('"', j + 1);
-            if (end < 0) return null;
-            return json.substring(j + 1, end);
-        } else {
-            int end = j;
-            while (end < json.length() && "-0123456789".indexOf(json.charAt(end)) >= 0) end++;
-            return json.substring(j, end);
-        }
-    }
 }
@@ -0,0 +1,27 @@
+package common;
+
+/**
+ * Các cỡ avatar server lưu sẵn (cạnh ảnh vuông, px) — gấp đôi cỡ hiển thị cho màn hình HiDPI:
+ * LIST = dòng danh sách chat (40), HEADER = đầu khung chat / cột phải (44 / 84), CALL = cửa sổ gọi.
+ */
+public enum AvatarVariant {
+    LIST((byte) 0, "list", 80),
+    HEADER((byte) 1, "header", 168),
+    CALL((byte) 2, "call", 256);
+
+    public final byte id;
+    public final String key;
+    public final int size;
+
+    AvatarVariant(byte id, String key, int size) {
+        this.id = id;
+        this.key = key;
+        this.size = size;
+    }
+
+    /** Theo tên trên dây; lạ → LIST. */
+    public static AvatarVariant of(String key) {
+        for (AvatarVariant v : values()) if (v.key.equals(key)) return v;
+        return LIST;
+    }
+}
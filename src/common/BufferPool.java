@@ -0,0 +1,84 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool ByteBuffer (heap) chia theo lớp kích thước luỹ thừa 2, dùng lại thân frame
+ * đọc từ socket thay vì cấp mảng mới cho mỗi frame.
+ *
+ * Buffer lấy ra có limit = đúng số byte yêu cầu; trả lại bằng {@link #release(ByteBuffer)}
+ * (chỉ buffer gốc do pool cấp, không trả slice). Quên trả cũng không sao: GC thu hồi.
+ */
+public final class BufferPool {
+    private static final int MIN_SHIFT = 9;   // 512B
+    private static final int MAX_SHIFT = 23;  // 8MB (> frame lớn nhất)
+    // tổng byte giữ lại cho mỗi lớp: -Dpool.classBytes
+    private static final long CLASS_BYTES = Long.getLong("pool.classBytes", 8L * 1024 * 1024);
+
+    public static final BufferPool SHARED = new BufferPool();
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+    private final int[] maxFree;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private BufferPool() {
+        int n = MAX_SHIFT - MIN_SHIFT + 1;
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<ByteBuffer>[] q = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[n];
+        free = q;
+        freeCount = new AtomicInteger[n];
+        maxFree = new int[n];
+        for (int i = 0; i < n; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+            maxFree[i] = (int) Math.max(2, CLASS_BYTES >> (MIN_SHIFT + i));
+        }
+    }
+
+    /** Lấy buffer chứa được {@code size} byte; position = 0, limit = size. */
+    public ByteBuffer acquire(int size) {
+        int c = classOf(size);
+        if (c < 0) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer b = free[c].poll();
+        if (b != null) {
+            freeCount[c].decrementAndGet();
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            b = ByteBuffer.allocate(1 << (MIN_SHIFT + c));
+        }
+        b.clear().limit(size);
+        return b;
+    }
+
+    /** Trả buffer về pool; buffer lạ (không đúng lớp) hoặc lớp đã đầy thì bỏ cho GC. */
+    public void release(ByteBuffer b) {
+        if (b == null || b.isDirect() || b.isReadOnly()) return;
+        int cap = b.capacity();
+        if (Integer.bitCount(cap) != 1) return;
+        int c = Integer.numberOfTrailingZeros(cap) - MIN_SHIFT;
+        if (c < 0 || c >= free.length) return;
+        if (freeCount[c].incrementAndGet() > maxFree[c]) {
+            freeCount[c].decrementAndGet();
+            return;
+        }
+        free[c].offer(b);
+    }
+
+    public long hits() { return hits.get(); }
+
+    public long misses() { return misses.get(); }
+
+    private static int classOf(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,102 @@
+package common;
+
+/**
+ * Phiên bản giao thức + bitset khả năng mà 2 đầu thoả thuận lúc LOGIN/REGISTER.
+ *
+ *   client → body LOGIN/REGISTER : {"v":2,"caps":N}     (server cũ bỏ qua body này)
+ *   server → ACK                  : OK LOGIN alice {"v":2,"caps":M}
+ *
+ * M = N ∩ {@link #SUPPORTED}. Client cũ không gửi gì → {@link Handshake#LEGACY} → server trả
+ * ACK y như trước và giữ định dạng cũ cho kết nối đó. Mỗi tính năng mới thêm 1 bit ở đây.
+ */
+public final class Capabilities {
+    private Capabilities() {}
+
+    /** 1 = giao thức gốc (không handshake). */
+    public static final int PROTOCOL_VERSION = 2;
+
+    /** FILE_META / AUDIO_META / FILE_EVT mang metadata nhị phân ({@link FrameMeta}) thay cho JSON. */
+    public static final int META_TLV = 1;
+
+    /** Body dài hơn ngưỡng được nén Deflate (cờ {@link MessageType#COMPRESSED_FLAG}). */
+    public static final int COMPRESS = 1 << 1;
+
+    /** Loạt frame nhỏ liên tiếp được nén chung thành 1 frame {@link MessageType#BATCH}. */
+    public static final int BATCH = 1 << 2;
+
+    /** Lịch sử trả về 1 frame {@link MessageType#HISTORY_BATCH} thay cho từng dòng HISTORY. */
+    public static final int HISTORY_BATCH = 1 << 3;
+
+    /** Tìm kiếm toàn cục {@link MessageType#SEARCH_ALL} (kết quả xếp hạng, phân trang bằng con trỏ). */
+    public static final int SEARCH_ALL = 1 << 4;
+
+    /** Server đẩy {@link MessageType#PRESENCE} cho user đã {@link MessageType#PRESENCE_SUB}; client thôi poll DB. */
+    public static final int PRESENCE = 1 << 5;
+
+    /** Danh sách / tìm user qua {@link MessageType#USER_LIST} / {@link MessageType#USER_SEARCH} thay cho JDBC ở client. */
+    public static final int USER_DIRECTORY = 1 << 6;
+
+    /** Avatar đã thu nhỏ sẵn qua {@link MessageType#AVATAR}, có hash để client dùng lại bản đã lưu. */
+    public static final int AVATAR = 1 << 7;
+
+    /** Các bit bản này hỗ trợ. */
+    public static final int SUPPORTED = META_TLV | COMPRESS | BATCH | HISTORY_BATCH | SEARCH_ALL | PRESENCE
+            | USER_DIRECTORY | AVATAR;
+
+    public static boolean has(int caps, int bit) { return (caps & bit) != 0; }
+
+    /**
+     * Bit đầu kia phải có để nhận frame type {@code t}; 0 = ai cũng đọc được. Các type này có phần dữ liệu
+     * nhị phân ({@link MessageType#carriesData}) mà bản không biết type sẽ không đọc → không được gửi cho nó.
+     */
+    public static int requiredFor(MessageType t) {
+        return switch (t) {
+            case BATCH -> BATCH;
+            case HISTORY_BATCH -> HISTORY_BATCH;
+            case SEARCH_ALL -> SEARCH_ALL;
+            case AVATAR -> AVATAR;
+            default -> 0;
+        };
+    }
+
+    private static final String ACK_PREFIX = "OK LOGIN ";
+
+    /** Kết quả handshake của 1 kết nối. */
+    public record Handshake(int version, int caps) {
+        public static final Handshake LEGACY = new Handshake(1, 0);
+        /** Những gì bản này đề nghị khi đăng nhập. */
+        public static final Handshake LOCAL = new Handshake(PROTOCOL_VERSION, SUPPORTED);
+
+        public boolean has(int bit) { return Capabilities.has(caps, bit); }
+
+        /** Giao giữa đề nghị của đầu kia và khả năng của bản này. */
+        public Handshake negotiate() {
+            if (version <= 1) return LEGACY;
+            return new Handshake(Math.min(version, PROTOCOL_VERSION), caps & SUPPORTED);
+        }
+
+        public String toJson() {
+            return new JsonWriter(24).field("v", version).field("caps", caps).end();
+        }
+
+        /** Đọc từ body LOGIN/REGISTER (hoặc đoạn JSON trong ACK); body rỗng → LEGACY. */
+        public static Handshake parse(String json) {
+            if (json == null || json.isEmpty()) return LEGACY;
+            JsonFields j = JsonFields.parse(json);
+            int v = j.getInt("v", 1);
+            return v <= 1 ? LEGACY : new Handshake(v, j.getInt("caps", 0));
+        }
+
+        /** Body ACK đăng nhập: giữ nguyên dạng cũ cho client LEGACY. */
+        public String loginAck(String username) {
+            return version <= 1 ? ACK_PREFIX + username : ACK_PREFIX + username + " " + toJson();
+        }
+
+        /** Handshake server trả trong ACK đăng nhập; null nếu {@code body} không phải ACK đăng nhập. */
+        public static Handshake fromLoginAck(String body) {
+            if (body == null || !body.startsWith(ACK_PREFIX)) return null;
+            int i = body.lastIndexOf(" {\"v\":");
+            return i < ACK_PREFIX.length() ? LEGACY : parse(body.substring(i + 1));
+        }
+    }
+}
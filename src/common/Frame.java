@@ -1,5 +1,9 @@
 package common;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 public class Frame {
     public MessageType type;
     public String sender;
@@ -10,6 +14,11 @@ public class Frame {
     public int seq;
     public boolean last;
     public byte[] bin;
+    // payload chunk dạng slice trên buffer của BufferPool (khi nhận qua FrameDecoder); bin = null
+    public ByteBuffer payload;
+    private ByteBuffer pooled; // buffer gốc cần trả về pool
+    // metadata file/audio có kiểu; gửi dạng TLV hoặc JSON tuỳ kết nối (xem FrameMeta.bodyFor)
+    public FrameMeta meta;
 
     public static final int CHUNK_SIZE = 64 * 1024;
     public static final long MAX_FILE_BYTES = 25L * 1024 * 1024;
@@ -22,23 +31,66 @@ public class Frame {
         this.body = body;
     }
 
-    public static Frame register(String name) { return new Frame(MessageType.REGISTER, name, "", ""); }
+    /* ===== payload chunk: bin (mảng) hoặc payload (slice pool) ===== */
+
+    /** Frame giữ buffer {@code owner} của pool tới khi {@link #release()}. */
+    public void attachPooled(ByteBuffer owner) { this.pooled = owner; }
+
+    public int payloadLength() {
+        if (bin != null) return bin.length;
+        return payload == null ? 0 : payload.remaining();
+    }
+
+    /** Ghi payload ra stream, không copy nếu payload nằm trên heap. */
+    public void writePayloadTo(OutputStream out) throws IOException {
+        if (bin != null) { out.write(bin); return; }
+        if (payload == null || !payload.hasRemaining()) return;
+        if (payload.hasArray()) {
+            out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        } else {
+            byte[] a = new byte[payload.remaining()];
+            payload.get(payload.position(), a);
+            out.write(a);
+        }
+    }
+
+    /** Payload dạng mảng (copy nếu đang là slice). */
+    public byte[] payloadBytes() {
+        if (bin != null) return bin;
+        if (payload == null) return new byte[0];
+        byte[] a = new byte[payload.remaining()];
+        payload.get(payload.position(), a);
+        return a;
+    }
+
+    /** Trả buffer về pool; sau đó không được đọc payload nữa. Gọi nhiều lần cũng được. */
+    public void release() {
+        ByteBuffer b = pooled;
+        if (b == null) return;
+        pooled = null;
+        payload = null;
+        BufferPool.SHARED.release(b);
+    }
+
+    public static Frame register(String name) {
+        return new Frame(MessageType.REGISTER, name, "", Capabilities.Handshake.LOCAL.toJson());
+    }
     public static Frame dm(String from, String to, String text) { return new Frame(MessageType.DM, from, to, text); }
     public static Frame ack(String text) { return new Frame(MessageType.ACK, "", "", text); }
     public static Frame error(String text) { return new Frame(MessageType.ERROR, "", "", text); }
 
     public static Frame fileMeta(String from, String to, String name, String mime, String fileId, long size) {
-        String j = "{\"from\":\"" + esc(from) + "\",\"to\":\"" + esc(to) + "\",\"name\":\"" + esc(name) + "\"," +
-                   "\"mime\":\"" + esc(mime) + "\",\"fileId\":\"" + esc(fileId) + "\",\"size\":" + size + "}";
-        return new Frame(MessageType.FILE_META, from, to, j);
+        Frame f = new Frame(MessageType.FILE_META, from, to, "");
+        f.meta = new FrameMeta().put("name", name).put("mime", mime).put("fileId", fileId).put("size", size);
+        return f;
     }
 
     public static Frame audioMeta(String from, String to, String codec, int sampleRate, int durationSec,
                                   String audioId, long size) {
-        String j = "{\"from\":\"" + esc(from) + "\",\"to\":\"" + esc(to) + "\",\"codec\":\"" + esc(codec) + "\"," +
-                   "\"sampleRate\":" + sampleRate + ",\"durationSec\":" + durationSec + "," +
-                   "\"audioId\":\"" + esc(audioId) + "\",\"size\":" + size + "}";
-        return new Frame(MessageType.AUDIO_META, from, to, j);
+        Frame f = new Frame(MessageType.AUDIO_META, from, to, "");
+        f.meta = new FrameMeta().put("codec", codec).put("sampleRate", sampleRate)
+                .put("durationSec", durationSec).put("audioId", audioId).put("size", size);
+        return f;
     }
 
     public static Frame fileChunk(String from, String to, String fileId, int seq, boolean last, byte[] data) {
@@ -60,17 +112,13 @@ public class Frame {
     }
 
     public static Frame callNoPayload(MessageType t, String from, String to, String callId) {
-        String j = "{\"callId\":\"" + esc(callId) + "\"}";
+        String j = new JsonWriter(48).field("callId", callId).end();
         return new Frame(t, from, to, j);
     }
 
     public static Frame callWithPayload(MessageType t, String from, String to, String callId, String payloadB64) {
-        String j = "{\"callId\":\"" + esc(callId) + "\",\"payload\":\"" + esc(payloadB64) + "\"}";
+        String j = new JsonWriter(64 + (payloadB64 == null ? 0 : payloadB64.length()))
+                .field("callId", callId).field("payload", payloadB64).end();
         return new Frame(t, from, to, j);
     }
-
-    private static String esc(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
-    }
 }
\ No newline at end of file
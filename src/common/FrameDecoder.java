@@ -0,0 +1,93 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Giải mã thân frame (không gồm 4 byte totalLen) trực tiếp từ ByteBuffer.
+ * - Chuỗi được tạo thẳng từ mảng của buffer (1 lần copy duy nhất, không qua stream trung gian).
+ * - Payload chunk không copy: {@link Frame#payload} là slice của buffer; frame giữ buffer gốc
+ *   tới khi {@link Frame#release()} trả nó về pool.
+ */
+public final class FrameDecoder {
+    private FrameDecoder() {}
+
+    /**
+     * @param buf    position = đầu thân frame, limit = cuối thân frame
+     * @param pooled true nếu buf lấy từ {@link BufferPool#SHARED}: frame không giữ payload
+     *               thì buffer được trả về pool ngay, ngược lại frame chịu trách nhiệm trả.
+     */
+    public static Frame decode(ByteBuffer buf, boolean pooled) throws IOException {
+        return decode(buf, pooled, null);
+    }
+
+    /** @param z bộ giải nén của kết nối; null thì tạo tạm khi gặp body nén. */
+    public static Frame decode(ByteBuffer buf, boolean pooled, FrameInflater z) throws IOException {
+        boolean keep = false;
+        try {
+            byte typeId = buf.get();
+            MessageType type = MessageType.from(typeId);
+            boolean compressed = (typeId & MessageType.COMPRESSED_FLAG) != 0 && type != MessageType.UNKNOWN;
+            if (type == MessageType.UNKNOWN && Log.DEBUG_ON) Log.debug("FRAMEIO", "Unknown frame type id=" + typeId);
+            int sLen = Short.toUnsignedInt(buf.getShort());
+            int rLen = Short.toUnsignedInt(buf.getShort());
+            int bLen = buf.getInt();
+            int idLen = Short.toUnsignedInt(buf.getShort());
+
+            String sender = string(buf, sLen);
+            String recipient = string(buf, rLen);
+            String body;
+            if (compressed) {
+                if (bLen < 0 || bLen > buf.remaining()) throw new EOFException("Truncated string");
+                body = (z != null ? z : new FrameInflater()).body(buf, bLen);
+            } else {
+                body = string(buf, bLen);
+            }
+            String transferId = string(buf, idLen);
+
+            Frame f = new Frame(type, sender, recipient, body);
+            f.transferId = transferId;
+
+            if (type.carriesData()) {
+                f.seq = buf.getInt();
+                f.last = buf.get() == 1;
+                int dLen = buf.getInt();
+                if (dLen < 0 || dLen > buf.remaining()) {
+                    if (Log.DEBUG_ON) Log.debug("FRAMEIO", "Truncated chunk data: expected=" + dLen + ", read=" + buf.remaining());
+                    throw new EOFException("Truncated chunk data");
+                }
+                f.payload = buf.slice(buf.position(), dLen);
+                buf.position(buf.position() + dLen);
+                if (pooled) { f.attachPooled(buf); keep = true; }
+            }
+            // phần còn lại (nếu có) là đoạn metadata TLV
+            if (buf.hasRemaining()) f.meta = FrameMeta.read(buf);
+            return f;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated frame");
+        } finally {
+            if (pooled && !keep) BufferPool.SHARED.release(buf);
+        }
+    }
+
+    private static String string(ByteBuffer buf, int len) throws EOFException {
+        if (len == 0) return "";
+        if (len < 0 || len > buf.remaining()) {
+            if (Log.DEBUG_ON) Log.debug("FRAMEIO", "Truncated string: expected=" + len + ", read=" + buf.remaining());
+            throw new EOFException("Truncated string");
+        }
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        } else {
+            byte[] a = new byte[len];
+            buf.get(buf.position(), a);
+            s = new String(a, StandardCharsets.UTF_8);
+        }
+        buf.position(buf.position() + len);
+        return s;
+    }
+}
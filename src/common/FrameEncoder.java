@@ -0,0 +1,317 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Mã hoá frame thẳng vào 1 ByteBuffer của kết nối (cùng định dạng với {@link FrameIO#write}).
+ * - Không tạo mảng trung gian: độ dài UTF-8 tính trước, ký tự được ghi thẳng vào buffer.
+ * - Byte UTF-8 của chuỗi ngắn lặp lại nhiều (username) được cache dùng chung.
+ * - Không flush: bên gọi ghi buffer ra socket 1 lần cho cả lô.
+ * - Nén (khi kết nối thoả thuận, xem {@link #configure}): body ≥ -Dproto.compress.min byte
+ *   được Deflate riêng; với BATCH, loạt frame không phải chunk file liên tiếp trong lô được Deflate
+ *   chung thành 1 frame {@link MessageType#BATCH} lúc lô được ghi ra ({@link #flip}/{@link #writeTo}).
+ *   Chỉ giữ bản nén nếu thật sự nhỏ hơn. Deflater dùng lại suốt đời kết nối.
+ *
+ * Mỗi encoder chỉ do 1 thread dùng (writer của kết nối).
+ */
+public final class FrameEncoder {
+    private static final int INITIAL = 16 * 1024;
+    // buffer phình to vì chunk file thì thu lại khi rỗng để không giữ RAM theo kết nối
+    private static final int RETAIN_MAX = 256 * 1024;
+    private static final int MAX_TOTAL_LEN = FrameIO.maxFrameLength();
+
+    // cache byte UTF-8 của username: -Dproto.nameCache (số entry, 0 = tắt)
+    private static final int NAME_CACHE_MAX = Integer.getInteger("proto.nameCache", 4096);
+    private static final int NAME_MAX_CHARS = 64;
+    private static final ConcurrentHashMap<String, byte[]> NAMES = new ConcurrentHashMap<>();
+
+    // -Dproto.compress.min: body/loạt frame ngắn hơn thì không nén; -Dproto.compress.level: 1..9
+    private static final int COMPRESS_MIN = Integer.getInteger("proto.compress.min", 256);
+    private static final int COMPRESS_LEVEL = Integer.getInteger("proto.compress.level", Deflater.BEST_SPEED);
+    // header frame BATCH: totalLen + type + sLen + rLen + bLen + idLen + seq + last + dLen
+    private static final int BATCH_HEADER = 4 + 1 + 2 + 2 + 4 + 2 + 4 + 1 + 4;
+
+    // thống kê toàn server: byte trước/sau nén và thời gian CPU Deflate
+    private static final LongAdder Z_IN = new LongAdder(), Z_OUT = new LongAdder(), Z_NANOS = new LongAdder();
+
+    private final boolean direct;
+    private ByteBuffer buf;
+    private volatile boolean metaTlv;  // kết nối nhận FrameMeta dạng TLV
+    private volatile boolean compress; // nén body từng frame
+    private volatile boolean batch;    // nén chung loạt frame nhỏ
+
+    private Deflater deflater;
+    private byte[] zbuf;
+    // loạt frame không-chunk đang chờ nén chung: [runStart, position)
+    private int runStart, runCount;
+    private Frame runFirst;
+
+    /** @param direct true cho kênh NIO (ghi socket từ direct buffer không phải copy thêm). */
+    public FrameEncoder(boolean direct) {
+        this.direct = direct;
+        this.buf = alloc(INITIAL);
+    }
+
+    /**
+     * Áp dụng các khả năng đã thoả thuận với đầu bên kia (META_TLV, COMPRESS, BATCH) cho frame mã hoá sau đó.
+     * Gọi trên thread dùng encoder, giữa 2 frame; loạt BATCH đang gom được kết thúc theo thiết lập cũ trước.
+     */
+    public void configure(Capabilities.Handshake hs) {
+        try {
+            finishRun();
+        } catch (IOException e) {
+            // frame của loạt đã mã hoá được 1 lần nên không xảy ra
+            throw new UncheckedIOException(e);
+        }
+        this.metaTlv = hs.has(Capabilities.META_TLV);
+        this.compress = hs.has(Capabilities.COMPRESS);
+        this.batch = hs.has(Capabilities.BATCH);
+    }
+
+    /** Số byte đã mã hoá trong lô hiện tại. */
+    public int size() { return buf.position(); }
+
+    /** Bắt đầu lô mới. */
+    public void clear() {
+        runCount = 0;
+        runFirst = null;
+        if (buf.capacity() > RETAIN_MAX) buf = alloc(INITIAL);
+        else buf.clear();
+    }
+
+    /** Chuyển sang chế độ đọc để ghi ra kênh NIO; dùng tới khi hết rồi {@link #clear()}. */
+    public ByteBuffer flip() throws IOException {
+        finishRun();
+        return buf.flip();
+    }
+
+    /** Ghi toàn bộ lô ra stream (chỉ với encoder heap) rồi xoá lô. */
+    public void writeTo(OutputStream out) throws IOException {
+        if (direct) throw new IllegalStateException("direct encoder");
+        finishRun();
+        out.write(buf.array(), buf.arrayOffset(), buf.position());
+        clear();
+    }
+
+    /** Nối 1 frame (gồm 4 byte totalLen) vào cuối lô; lỗi thì lô giữ nguyên như trước lần gọi. */
+    public void encode(Frame f) throws IOException {
+        if (batch && !f.type.isChunk()) {
+            // gom vào loạt; nén chung khi loạt kết thúc
+            int start = buf.position();
+            encode(f, false);
+            if (runCount++ == 0) { runStart = start; runFirst = f; }
+            return;
+        }
+        finishRun();
+        encode(f, compress);
+    }
+
+    /**
+     * {@link #encode} cho writer của kết nối: 1 frame không mã hoá được (quá lớn...) chỉ mất riêng frame đó —
+     * ghi log, đầu bên kia nhận ERROR "SEND_FAIL" thay vào, kết nối vẫn dùng tiếp. false nếu đã bỏ frame.
+     */
+    public boolean encodeOrReject(Frame f, String to) {
+        try {
+            encode(f);
+            return true;
+        } catch (IOException e) {
+            Log.warn("FRAME", "Drop " + f.type + " to " + to + ": " + e.getMessage());
+            try { encode(Frame.error("SEND_FAIL")); } catch (IOException ignored) {}
+            return false;
+        }
+    }
+
+    private void encode(Frame f, boolean deflateBody) throws IOException {
+        boolean tlv = metaTlv;
+        FrameMeta meta = tlv ? f.meta : null;
+        String s = nz(f.sender), r = nz(f.recipient), b = nz(FrameMeta.bodyFor(f, tlv)), id = nz(f.transferId);
+        byte[] sc = cached(s), rc = cached(r);
+        int sLen = sc != null ? sc.length : utf8Length(s);
+        int rLen = rc != null ? rc.length : utf8Length(r);
+        int bLen = utf8Length(b);
+        int idLen = utf8Length(id);
+
+        boolean isChunk = f.type.carriesData();
+        int zLen = 0, rawBodyLen = bLen; // zLen > 0: body nén nằm trong zbuf[0, zLen)
+        if (deflateBody && !isChunk && bLen >= COMPRESS_MIN) {
+            byte[] raw = b.getBytes(StandardCharsets.UTF_8);
+            int n = deflate(ByteBuffer.wrap(raw));
+            if (4 + n < bLen) { zLen = n; bLen = 4 + n; }
+        }
+        int dLen = isChunk ? f.payloadLength() : 0;
+        int metaLen = meta != null ? meta.encodedLength() : 0;
+        int totalLen = 1 + 2 + 2 + 4 + sLen + rLen + bLen + 2 + idLen + (isChunk ? 4 + 1 + 4 + dLen : 0) + metaLen;
+        if (totalLen < 0 || totalLen > MAX_TOTAL_LEN || sLen > 0xFFFF || rLen > 0xFFFF || idLen > 0xFFFF)
+            throw new IOException("Invalid totalLen: " + totalLen);
+
+        ensure(4 + totalLen);
+        buf.putInt(totalLen);
+        buf.put(zLen > 0 ? (byte) (f.type.id | MessageType.COMPRESSED_FLAG) : f.type.id);
+        buf.putShort((short) sLen);
+        buf.putShort((short) rLen);
+        buf.putInt(bLen);
+        buf.putShort((short) idLen);
+        if (sc != null) buf.put(sc); else putUtf8(s);
+        if (rc != null) buf.put(rc); else putUtf8(r);
+        if (zLen > 0) { buf.putInt(rawBodyLen); buf.put(zbuf, 0, zLen); }
+        else putUtf8(b);
+        putUtf8(id);
+
+        if (isChunk) {
+            buf.putInt(f.seq);
+            buf.put((byte) (f.last ? 1 : 0));
+            buf.putInt(dLen);
+            if (f.bin != null) buf.put(f.bin);
+            else if (f.payload != null) buf.put(f.payload.duplicate());
+        }
+        if (meta != null) meta.writeTo(buf);
+    }
+
+    /**
+     * Kết thúc loạt frame đang gom: ≥ 2 frame thì thay cả đoạn bằng 1 frame BATCH nén
+     * (nếu nhỏ hơn); 1 frame thì mã hoá lại với body nén như bình thường.
+     */
+    private void finishRun() throws IOException {
+        int n = runCount;
+        if (n == 0) return;
+        Frame first = runFirst;
+        runCount = 0;
+        runFirst = null;
+        int start = runStart, end = buf.position(), raw = end - start;
+
+        if (n == 1) {
+            if (compress && raw >= COMPRESS_MIN) { buf.position(start); encode(first, true); }
+            return;
+        }
+        if (raw < COMPRESS_MIN || raw > MAX_TOTAL_LEN) return;
+
+        int z = deflate(buf.duplicate().limit(end).position(start));
+        if (BATCH_HEADER + z >= raw) return; // không lợi → giữ nguyên
+        // bản nén ngắn hơn đoạn gốc nên ghi đè tại chỗ an toàn (dữ liệu đọc từ zbuf)
+        buf.position(start);
+        buf.putInt(BATCH_HEADER - 4 + z);
+        buf.put(MessageType.BATCH.id);
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        buf.putInt(0);
+        buf.putShort((short) 0);
+        buf.putInt(raw);      // seq = độ dài gốc
+        buf.put((byte) 1);
+        buf.putInt(z);
+        buf.put(zbuf, 0, z);
+    }
+
+    /**
+     * Giải phóng Deflater (bộ nhớ native, GC không tự thu kịp). Gọi trên thread dùng encoder, sau lần
+     * dùng cuối; gọi lại không sao.
+     */
+    public void close() {
+        if (deflater != null) { deflater.end(); deflater = null; }
+        zbuf = null;
+    }
+
+    /** Deflate phần còn lại của {@code src} vào {@link #zbuf}; trả số byte nén. */
+    private int deflate(ByteBuffer src) {
+        long t0 = System.nanoTime();
+        int rawLen = src.remaining();
+        if (deflater == null) deflater = new Deflater(COMPRESS_LEVEL, true);
+        if (zbuf == null || zbuf.length < rawLen + 64) zbuf = new byte[Math.max(rawLen + 64, 4 * 1024)];
+        deflater.reset();
+        deflater.setInput(src);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == zbuf.length) zbuf = java.util.Arrays.copyOf(zbuf, zbuf.length * 2);
+            n += deflater.deflate(zbuf, n, zbuf.length - n);
+        }
+        Z_IN.add(rawLen);
+        Z_OUT.add(n);
+        Z_NANOS.add(System.nanoTime() - t0);
+        return n;
+    }
+
+    /** "in→out B (tiết kiệm x%), cpu y ms" từ lần gọi trước; null nếu chưa nén gì thêm. */
+    public static String compressionReport() {
+        long in = Z_IN.sumThenReset(), out = Z_OUT.sumThenReset(), ns = Z_NANOS.sumThenReset();
+        if (in == 0) return null;
+        return String.format(java.util.Locale.ROOT, "%d→%d B (saved %.1f%%), cpu %.1f ms",
+                in, out, 100.0 * (in - out) / in, ns / 1e6);
+    }
+
+    private void ensure(int extra) {
+        if (buf.remaining() >= extra) return;
+        int cap = Math.max(buf.capacity() * 2, buf.position() + extra);
+        ByteBuffer nb = alloc(cap);
+        buf.flip();
+        nb.put(buf);
+        buf = nb;
+    }
+
+    private ByteBuffer alloc(int cap) {
+        return direct ? ByteBuffer.allocateDirect(cap) : ByteBuffer.allocate(cap);
+    }
+
+    /* ===== UTF-8 ===== */
+
+    private static byte[] cached(String s) {
+        if (NAME_CACHE_MAX <= 0 || s.isEmpty() || s.length() > NAME_MAX_CHARS) return null;
+        byte[] a = NAMES.get(s);
+        if (a != null) return a;
+        // đầy thì xoá hết: username online xuất hiện lại ngay, còn tên cũ tự rơi ra
+        if (NAMES.size() >= NAME_CACHE_MAX) NAMES.clear();
+        a = s.getBytes(StandardCharsets.UTF_8);
+        NAMES.put(s, a);
+        return a;
+    }
+
+    /** Số byte UTF-8 của chuỗi (cặp surrogate = 4 byte, surrogate lẻ = '?' 1 byte như String.getBytes). */
+    static int utf8Length(String s) {
+        int n = s.length(), len = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) len += 1;
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 2; // 2 char → 4 byte
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // '?' thay cho surrogate lẻ: 1 byte
+            } else len += 2;
+        }
+        return len;
+    }
+
+    private void putUtf8(String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put((byte) (0xF0 | (cp >> 18)));
+                buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buf.put((byte) '?');
+            } else {
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static String nz(String s) { return s == null ? "" : s; }
+}
@@ -1,6 +1,7 @@
 package common;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public final class FrameIO {
@@ -9,20 +10,28 @@ public final class FrameIO {
     private static final int MAX_TOTAL_LEN = (1 << 22); // ~4MB
 
     public static void write(DataOutputStream out, Frame f) throws IOException {
+        write(out, f, false);
+    }
+
+    /** @param metaTlv đầu bên kia nhận {@link FrameMeta} dạng TLV; false thì meta đi dạng JSON trong body. */
+    public static void write(DataOutputStream out, Frame f, boolean metaTlv) throws IOException {
         byte[] s = bytes(f.sender);
         byte[] r = bytes(f.recipient);
-        byte[] b = bytes(f.body);
+        byte[] b = bytes(FrameMeta.bodyFor(f, metaTlv));
         byte[] id = bytes(f.transferId);
+        FrameMeta meta = metaTlv ? f.meta : null;
 
         int baseLen = 1 + 2 + 2 + 4 + s.length + r.length + b.length + 2 + id.length;
-        boolean isChunk = (f.type == MessageType.FILE_CHUNK || f.type == MessageType.AUDIO_CHUNK);
-        int extraLen = isChunk ? (4 + 1 + 4 + (f.bin == null ? 0 : f.bin.length)) : 0;
+        boolean isChunk = f.type.carriesData();
+        int dLen = isChunk ? f.payloadLength() : 0;
+        int extraLen = isChunk ? (4 + 1 + 4 + dLen) : 0;
+
+        int metaLen = meta != null ? meta.encodedLength() : 0;
 
-        int totalLen = baseLen + extraLen;
+        int totalLen = baseLen + extraLen + metaLen;
         if (totalLen < 0 || totalLen > MAX_TOTAL_LEN)
             throw new IOException("Invalid totalLen: " + totalLen);
 
-        System.out.println("[DEBUG] Writing frame: type=" + f.type + ", totalLen=" + totalLen);
         out.writeInt(totalLen);
         out.writeByte(f.type.id);
         out.writeShort(s.length);
@@ -37,72 +46,92 @@ public final class FrameIO {
         if (isChunk) {
             out.writeInt(f.seq);
             out.writeByte(f.last ? 1 : 0);
-            out.writeInt(f.bin.length);
-            out.write(f.bin);
+            out.writeInt(dLen);
+            f.writePayloadTo(out);
         }
-        out.flush();
+        if (meta != null) meta.writeTo(out);
+        // không flush ở đây: bên gọi tự flush 1 lần sau cả lô frame
     }
 
+    /** Đọc 1 frame; payload chunk (nếu có) nằm trong {@link Frame#bin} như trước. */
     public static Frame read(DataInputStream in) throws IOException {
+        Frame f = readPooled(in);
+        if (f != null && f.payload != null) {
+            f.bin = f.payloadBytes();
+            f.release();
+        }
+        return f;
+    }
+
+    /** Như {@link #read(DataInputStream)} nhưng giải nén/bung BATCH bằng bộ giải nén của kết nối. */
+    public static Frame read(DataInputStream in, FrameInflater z) throws IOException {
+        Frame f = readPooled(in, z);
+        if (f != null && f.payload != null) {
+            f.bin = f.payloadBytes();
+            f.release();
+        }
+        return f;
+    }
+
+    /**
+     * Đọc 1 frame vào buffer của {@link BufferPool}; payload chunk là slice không copy
+     * ({@link Frame#payload}). Bên gọi phải {@link Frame#release()} sau khi xử lý xong.
+     */
+    public static Frame readPooled(DataInputStream in) throws IOException {
+        return readPooled(in, null);
+    }
+
+    /**
+     * Như {@link #readPooled(DataInputStream)}; frame BATCH được bung ngay và các frame con
+     * trả về lần lượt ở các lần gọi sau (cần {@code z} != null để giữ phần còn lại).
+     */
+    public static Frame readPooled(DataInputStream in, FrameInflater z) throws IOException {
+        while (true) {
+            Frame f = z != null ? z.poll() : null;
+            if (f != null) return f;
+            f = readOne(in, z);
+            if (f == null || f.type != MessageType.BATCH || z == null) return f;
+            try { z.expand(f); } finally { f.release(); }
+        }
+    }
+
+    private static Frame readOne(DataInputStream in, FrameInflater z) throws IOException {
         int totalLen;
         try {
             totalLen = in.readInt();
         } catch (EOFException e) {
-            System.out.println("[DEBUG] EOF while reading frame length");
             return null;
         }
         if (totalLen < 0 || totalLen > MAX_TOTAL_LEN) {
             throw new IOException("Invalid totalLen: " + totalLen);
         }
 
-        byte[] buf = in.readNBytes(totalLen);
-        if (buf.length != totalLen) {
-            System.out.println("[DEBUG] Truncated frame: expected=" + totalLen + ", read=" + buf.length);
+        ByteBuffer buf = BufferPool.SHARED.acquire(totalLen);
+        try {
+            in.readFully(buf.array(), buf.arrayOffset(), totalLen);
+        } catch (EOFException e) {
+            if (Log.DEBUG_ON) Log.debug("FRAMEIO", "Truncated frame: expected=" + totalLen);
+            BufferPool.SHARED.release(buf);
             throw new EOFException("Truncated frame");
         }
+        return FrameDecoder.decode(buf, true, z);
+    }
 
-        try (DataInputStream bin = new DataInputStream(new ByteArrayInputStream(buf))) {
-            MessageType type = MessageType.from(bin.readByte());
-            int sLen = bin.readUnsignedShort();
-            int rLen = bin.readUnsignedShort();
-            int bLen = bin.readInt();
-            int idLen = bin.readUnsignedShort();
-
-            String sender = readString(bin, sLen);
-            String recipient = readString(bin, rLen);
-            String body = readString(bin, bLen);
-            String transferId = readString(bin, idLen);
-
-            Frame f = new Frame(type, sender, recipient, body);
-            f.transferId = transferId;
-
-            if (type == MessageType.FILE_CHUNK || type == MessageType.AUDIO_CHUNK) {
-                int seq = bin.readInt();
-                boolean last = bin.readByte() == 1;
-                int dLen = bin.readInt();
-                byte[] data = (dLen == 0) ? new byte[0] : bin.readNBytes(dLen);
-                if (data.length != dLen) {
-                    System.out.println("[DEBUG] Truncated chunk data: expected=" + dLen + ", read=" + data.length);
-                    throw new EOFException("Truncated chunk data");
-                }
-
-                f.seq = seq;
-                f.last = last;
-                f.bin = data;
-            }
-            System.out.println("[DEBUG] Read frame: type=" + type + ", transferId=" + transferId);
-            return f;
-        }
+    /** Độ dài tối đa của phần thân 1 frame (không tính 4 byte totalLen). */
+    public static int maxFrameLength() { return MAX_TOTAL_LEN; }
+
+    /** Giải mã phần thân 1 frame (không gồm 4 byte totalLen) từ mảng do bên gọi sở hữu. */
+    public static Frame decode(byte[] buf) throws IOException {
+        Frame f = FrameDecoder.decode(ByteBuffer.wrap(buf), false);
+        if (f.payload != null) { f.bin = f.payloadBytes(); f.payload = null; }
+        return f;
     }
 
-    private static String readString(DataInputStream in, int len) throws IOException {
-        if (len == 0) return "";
-        byte[] a = in.readNBytes(len);
-        if (a.length != len) {
-            System.out.println("[DEBUG] Truncated string: expected=" + len + ", read=" + a.length);
-            throw new EOFException("Truncated string");
-        }
-        return new String(a, StandardCharsets.UTF_8);
+    /** Mã hoá 1 frame đầy đủ (gồm totalLen) ra mảng byte — dùng cho kênh NIO. */
+    public static byte[] encode(Frame f) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + f.payloadLength());
+        write(new DataOutputStream(bos), f);
+        return bos.toByteArray();
     }
 
     private static byte[] bytes(String s) {
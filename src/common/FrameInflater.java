@@ -0,0 +1,91 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Phía nhận của nén frame, 1 instance cho mỗi kết nối (chỉ thread đọc của kết nối dùng).
+ * - Body nén (cờ {@link MessageType#COMPRESSED_FLAG}): int độ dài gốc + dữ liệu Deflate thô.
+ * - Frame {@link MessageType#BATCH}: seq = độ dài gốc, data = Deflate của nhiều frame đầy đủ
+ *   (gồm totalLen) nối liền; {@link #expand} bung ra, {@link #poll} trả lần lượt theo thứ tự.
+ * Inflater và buffer tạm được dùng lại giữa các frame; {@link #close()} khi kết nối kết thúc.
+ */
+public final class FrameInflater {
+    private final Inflater inflater = new Inflater(true);
+    private final ArrayDeque<Frame> pending = new ArrayDeque<>();
+    private byte[] scratch = new byte[4 * 1024];
+    private boolean closed;
+
+    /** Frame kế tiếp còn lại từ BATCH đã bung; null nếu hết. */
+    public Frame poll() { return pending.poll(); }
+
+    /** Giải nén body tại vị trí hiện tại của {@code buf} (dài {@code len} byte). */
+    String body(ByteBuffer buf, int len) throws IOException {
+        if (len < 4) throw new IOException("Bad compressed body");
+        int rawLen = buf.getInt();
+        checkRaw(rawLen);
+        if (scratch.length < rawLen) scratch = new byte[Math.max(rawLen, scratch.length * 2)];
+        inflate(buf.slice(buf.position(), len - 4), scratch, rawLen);
+        buf.position(buf.position() + len - 4);
+        return new String(scratch, 0, rawLen, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    /** Bung 1 frame BATCH; các frame con được lấy ra bằng {@link #poll()}. */
+    public void expand(Frame batch) throws IOException {
+        int rawLen = batch.seq;
+        checkRaw(rawLen);
+        ByteBuffer src = batch.payload != null ? batch.payload.duplicate()
+                : ByteBuffer.wrap(batch.bin == null ? new byte[0] : batch.bin);
+        ByteBuffer raw = BufferPool.SHARED.acquire(rawLen);
+        try {
+            inflate(src, raw.array(), raw.arrayOffset(), rawLen);
+            while (raw.hasRemaining()) {
+                int totalLen = raw.getInt();
+                if (totalLen < 0 || totalLen > raw.remaining()) throw new IOException("Bad batch entry");
+                Frame f = FrameDecoder.decode(raw.slice(raw.position(), totalLen), false, this);
+                // frame con không được giữ tham chiếu vào buffer tạm
+                if (f.payload != null) { f.bin = f.payloadBytes(); f.payload = null; }
+                raw.position(raw.position() + totalLen);
+                pending.add(f);
+            }
+        } finally {
+            BufferPool.SHARED.release(raw);
+        }
+    }
+
+    private void inflate(ByteBuffer src, byte[] out, int rawLen) throws IOException {
+        inflate(src, out, 0, rawLen);
+    }
+
+    /** Giải phóng Inflater (bộ nhớ native). Gọi trên thread đọc của kết nối, sau frame cuối; gọi lại không sao. */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        inflater.end();
+        pending.clear();
+    }
+
+    private void inflate(ByteBuffer src, byte[] out, int off, int rawLen) throws IOException {
+        if (closed) throw new IOException("Inflater closed");
+        inflater.reset();
+        inflater.setInput(src);
+        try {
+            int n = 0;
+            while (n < rawLen) {
+                int k = inflater.inflate(out, off + n, rawLen - n);
+                if (k == 0 && (inflater.finished() || inflater.needsInput())) break;
+                n += k;
+            }
+            if (n != rawLen) throw new IOException("Compressed length mismatch: " + n + "/" + rawLen);
+        } catch (DataFormatException e) {
+            throw new IOException("Bad deflate data", e);
+        }
+    }
+
+    private static void checkRaw(int rawLen) throws IOException {
+        if (rawLen < 0 || rawLen > FrameIO.maxFrameLength()) throw new IOException("Invalid raw length: " + rawLen);
+    }
+}
@@ -0,0 +1,231 @@
+package common;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Metadata file/audio có kiểu (tên, mime, id, kích thước, thời lượng, sample rate...) đi kèm frame.
+ *
+ * Trên dây là 1 đoạn TLV nối sau phần cố định của frame (sau phần chunk nếu có):
+ *
+ *   version(1) count(1) { tag(1) value }*
+ *   tag = (kiểu << 6) | key ; kiểu 0 = chuỗi: varint độ dài + UTF-8 ; kiểu 1 = varlong zigzag
+ *
+ * Decoder cũ đọc đủ totalLen rồi bỏ qua phần thừa nên frame vẫn hợp lệ với chúng, nhưng chỉ
+ * gửi TLV cho kết nối có {@link Capabilities#META_TLV}; còn lại {@link #bodyFor} chuyển về
+ * đúng JSON như trước. Key/kiểu lạ thì bỏ qua, version lạ thì bỏ cả đoạn.
+ *
+ * Bên nhận đọc qua {@link #of(Frame)}: cùng 1 API cho cả frame TLV lẫn body JSON cũ.
+ */
+public final class FrameMeta {
+    public static final byte VERSION = 1;
+
+    private static final int T_STRING = 0, T_LONG = 1;
+
+    // id key trên dây — chỉ thêm vào cuối, không đổi số đã dùng
+    private static final String[] KEYS = {
+        null, "name", "mime", "fileId", "messageId", "size", "bytes",
+        "uuid", "id", "codec", "sampleRate", "durationSec", "duration", "audioId"
+    };
+
+    private int count;
+    private byte[] keys = new byte[8];
+    private byte[] types = new byte[8];
+    private String[] strs = new String[8];
+    private long[] nums = new long[8];
+    private byte[][] utf8; // byte UTF-8 của chuỗi, tính 1 lần ở lần mã hoá đầu
+
+    // != null khi view này đọc body JSON cũ
+    private JsonFields json;
+
+    /* ===== dựng ===== */
+
+    public FrameMeta put(String key, String value) {
+        return add(keyId(key), T_STRING, value == null ? "" : value, 0);
+    }
+
+    public FrameMeta put(String key, long value) {
+        return add(keyId(key), T_LONG, null, value);
+    }
+
+    private FrameMeta add(int k, int type, String s, long v) {
+        if (count == keys.length) {
+            int cap = count * 2;
+            keys = Arrays.copyOf(keys, cap); types = Arrays.copyOf(types, cap);
+            strs = Arrays.copyOf(strs, cap); nums = Arrays.copyOf(nums, cap);
+        }
+        keys[count] = (byte) k; types[count] = (byte) type;
+        strs[count] = s; nums[count] = v;
+        count++;
+        utf8 = null;
+        return this;
+    }
+
+    private static int keyId(String key) {
+        for (int i = 1; i < KEYS.length; i++) if (KEYS[i].equals(key)) return i;
+        throw new IllegalArgumentException("Unknown meta key: " + key);
+    }
+
+    /* ===== đọc ===== */
+
+    /** Metadata của frame: đoạn TLV nếu có, không thì view trên body JSON. */
+    public static FrameMeta of(Frame f) {
+        if (f.meta != null) return f.meta;
+        FrameMeta m = new FrameMeta();
+        m.json = JsonFields.parse(f.body);
+        return m;
+    }
+
+    /** Value dạng chuỗi (số thì ra chữ số); null nếu không có. */
+    public String get(String key) {
+        if (json != null) return json.get(key);
+        int i = find(key);
+        if (i < 0) return null;
+        return types[i] == T_STRING ? strs[i] : Long.toString(nums[i]);
+    }
+
+    public String get(String key, String def) {
+        String v = get(key);
+        return v == null ? def : v;
+    }
+
+    public long getLong(String key, long def) {
+        if (json != null) return json.getLong(key, def);
+        int i = find(key);
+        if (i < 0) return def;
+        if (types[i] == T_LONG) return nums[i];
+        try { return Long.parseLong(strs[i].trim()); } catch (NumberFormatException e) { return def; }
+    }
+
+    public int getInt(String key, int def) {
+        long v = getLong(key, def);
+        return (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) ? def : (int) v;
+    }
+
+    private int find(String key) {
+        for (int i = 0; i < count; i++) if (KEYS[keys[i]].equals(key)) return i;
+        return -1;
+    }
+
+    /* ===== JSON cho kết nối cũ ===== */
+
+    /** Body gửi đi: JSON dựng từ meta nếu kết nối không nhận TLV, ngược lại body gốc. */
+    public static String bodyFor(Frame f, boolean tlv) {
+        if (f.meta == null || tlv || (f.body != null && !f.body.isEmpty())) return f.body;
+        return f.meta.toJson(f.sender, f.recipient);
+    }
+
+    /** Cùng JSON builder cũ vẫn gửi: from/to (lấy từ sender/recipient của frame) rồi các trường. */
+    public String toJson(String from, String to) {
+        return fields(new JsonWriter(64 + 24 * count).field("from", from).field("to", to)).end();
+    }
+
+    private JsonWriter fields(JsonWriter w) {
+        for (int i = 0; i < count; i++) {
+            if (types[i] == T_STRING) w.field(KEYS[keys[i]], strs[i]);
+            else w.field(KEYS[keys[i]], nums[i]);
+        }
+        return w;
+    }
+
+    /* ===== TLV ===== */
+
+    /** Số byte của đoạn TLV. */
+    public int encodedLength() {
+        byte[][] u = strings();
+        int n = 2;
+        for (int i = 0; i < count; i++) {
+            n += 1;
+            if (types[i] == T_STRING) n += varLength(u[i].length) + u[i].length;
+            else n += varLength(zigzag(nums[i]));
+        }
+        return n;
+    }
+
+    public void writeTo(ByteBuffer out) {
+        byte[][] u = strings();
+        out.put(VERSION);
+        out.put((byte) count);
+        for (int i = 0; i < count; i++) {
+            out.put((byte) ((types[i] << 6) | keys[i]));
+            if (types[i] == T_STRING) { putVar(out, u[i].length); out.put(u[i]); }
+            else putVar(out, zigzag(nums[i]));
+        }
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        byte[] a = new byte[encodedLength()];
+        writeTo(ByteBuffer.wrap(a));
+        out.write(a);
+    }
+
+    /** Đọc đoạn TLV từ vị trí hiện tại tới hết buffer; null nếu version lạ. */
+    public static FrameMeta read(ByteBuffer in) {
+        byte version = in.get();
+        if (version != VERSION) { in.position(in.limit()); return null; }
+        int n = Byte.toUnsignedInt(in.get());
+        FrameMeta m = new FrameMeta();
+        for (int i = 0; i < n; i++) {
+            int tag = Byte.toUnsignedInt(in.get());
+            int type = tag >>> 6, k = tag & 0x3F;
+            boolean known = k > 0 && k < KEYS.length;
+            if (type == T_STRING) {
+                int len = (int) getVar(in);
+                if (len < 0 || len > in.remaining()) throw new java.nio.BufferUnderflowException();
+                byte[] a = new byte[len];
+                in.get(a);
+                String s = new String(a, StandardCharsets.UTF_8);
+                if (known) m.add(k, T_STRING, s, 0);
+            } else if (type == T_LONG) {
+                long v = unzigzag(getVar(in));
+                if (known) m.add(k, T_LONG, null, v);
+            } else {
+                // kiểu chưa biết: không biết độ dài, dừng ở đây và giữ phần đã đọc
+                in.position(in.limit());
+                break;
+            }
+        }
+        return m;
+    }
+
+    private byte[][] strings() {
+        byte[][] u = utf8;
+        if (u != null) return u;
+        u = new byte[count][];
+        for (int i = 0; i < count; i++)
+            if (types[i] == T_STRING) u[i] = strs[i].getBytes(StandardCharsets.UTF_8);
+        utf8 = u;
+        return u;
+    }
+
+    private static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+    private static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    private static int varLength(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) { v >>>= 7; n++; }
+        return n;
+    }
+
+    private static void putVar(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) { out.put((byte) ((v & 0x7F) | 0x80)); v >>>= 7; }
+        out.put((byte) v);
+    }
+
+    private static long getVar(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw new java.nio.BufferUnderflowException();
+    }
+
+    @Override public String toString() {
+        return json != null ? "json" : fields(new JsonWriter(64 + 24 * count)).end();
+    }
+}
@@ -0,0 +1,151 @@
+package common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1 trang lịch sử hội thoại gửi trong 1 frame {@link MessageType#HISTORY_BATCH} thay cho
+ * N frame HISTORY + ACK. seq = số dòng, data = khối nhị phân:
+ *
+ *   { id(8) createdAt(8) sender(u16+utf8) recipient(u16+utf8) body(i32+utf8)
+ *     hasFile(1) [fileId(8) fileSize(8) fileName(u16+utf8) mime(u16+utf8)] }*
+ *
+ * Dòng theo thứ tự cũ → mới như HISTORY. transferId = con trỏ beforeId của yêu cầu (0 = trang
+ * mới nhất) để client biết trang nào là trang cũ hơn cần chèn lên đầu.
+ * Chỉ gửi cho kết nối có {@link Capabilities#HISTORY_BATCH}.
+ *
+ * Cùng định dạng cho {@link MessageType#SEARCH_ALL}: dòng theo thứ hạng, transferId = con trỏ trang kế
+ * ("" = hết), body = câu hỏi.
+ */
+public final class HistoryPage {
+
+    public static final class Row {
+        public final long id;
+        public final long createdAt; // epoch ms, 0 nếu không rõ
+        public final String sender, recipient, body;
+        // file đính kèm (nếu message là [FILE]/[AUDIO]/[VIDEO]); fileId = 0 nếu không có
+        public long fileId, fileSize;
+        public String fileName, mime;
+
+        public Row(long id, long createdAt, String sender, String recipient, String body) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.sender = sender == null ? "" : sender;
+            this.recipient = recipient == null ? "" : recipient;
+            this.body = body == null ? "" : body;
+        }
+
+        public boolean hasFile() { return fileId > 0; }
+
+        public Row file(long fileId, String fileName, String mime, long fileSize) {
+            this.fileId = fileId;
+            this.fileName = fileName == null ? "" : fileName;
+            this.mime = mime == null ? "" : mime;
+            this.fileSize = fileSize;
+            return this;
+        }
+    }
+
+    public final List<Row> rows;
+
+    public HistoryPage(List<Row> rows) { this.rows = rows; }
+
+    /** Frame HISTORY_BATCH từ {@code peer} tới {@code me} (cùng chiều với HISTORY). */
+    public Frame toFrame(String peer, String me, long beforeId) {
+        return toFrame(MessageType.HISTORY_BATCH, peer, me, String.valueOf(Math.max(0L, beforeId)));
+    }
+
+    public Frame toFrame(MessageType type, String from, String to, String transferId) {
+        Frame f = new Frame(type, from, to, "");
+        f.transferId = transferId;
+        f.seq = rows.size();
+        f.last = true;
+        f.bin = encode();
+        return f;
+    }
+
+    /** Con trỏ beforeId mà trang này trả lời (0 = trang mới nhất). */
+    public static long cursor(Frame f) {
+        try { return Long.parseLong(f.transferId); } catch (Exception e) { return 0L; }
+    }
+
+    /** id nhỏ nhất trong trang = beforeId cho trang kế tiếp; 0 nếu trang rỗng. */
+    public long oldestId() {
+        return rows.isEmpty() ? 0L : rows.get(0).id;
+    }
+
+    public static HistoryPage from(Frame f) throws IOException {
+        ByteBuffer in = f.payload != null ? f.payload.duplicate() : ByteBuffer.wrap(f.payloadBytes());
+        int n = Math.max(0, f.seq);
+        List<Row> rows = new ArrayList<>(Math.min(n, 1024));
+        try {
+            for (int i = 0; i < n; i++) {
+                Row r = new Row(in.getLong(), in.getLong(), str16(in), str16(in), str32(in));
+                if (in.get() == 1) {
+                    long fileId = in.getLong(), fileSize = in.getLong();
+                    r.file(fileId, str16(in), str16(in), fileSize);
+                }
+                rows.add(r);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated history page");
+        }
+        return new HistoryPage(rows);
+    }
+
+    byte[] encode() {
+        int size = 0;
+        List<byte[]> parts = new ArrayList<>(rows.size() * 4);
+        for (Row r : rows) {
+            byte[] s = utf8(r.sender), rc = utf8(r.recipient), b = utf8(r.body);
+            parts.add(s); parts.add(rc); parts.add(b);
+            size += 8 + 8 + 2 + s.length + 2 + rc.length + 4 + b.length + 1;
+            if (r.hasFile()) {
+                byte[] fn = utf8(r.fileName), m = utf8(r.mime);
+                parts.add(fn); parts.add(m);
+                size += 8 + 8 + 2 + fn.length + 2 + m.length;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        int p = 0;
+        for (Row r : rows) {
+            out.putLong(r.id).putLong(r.createdAt);
+            byte[] s = parts.get(p++), rc = parts.get(p++), b = parts.get(p++);
+            out.putShort((short) s.length).put(s);
+            out.putShort((short) rc.length).put(rc);
+            out.putInt(b.length).put(b);
+            if (r.hasFile()) {
+                byte[] fn = parts.get(p++), m = parts.get(p++);
+                out.put((byte) 1).putLong(r.fileId).putLong(r.fileSize);
+                out.putShort((short) fn.length).put(fn);
+                out.putShort((short) m.length).put(m);
+            } else {
+                out.put((byte) 0);
+            }
+        }
+        return out.array();
+    }
+
+    private static byte[] utf8(String s) {
+        return (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String str16(ByteBuffer in) {
+        return str(in, Short.toUnsignedInt(in.getShort()));
+    }
+
+    private static String str32(ByteBuffer in) {
+        return str(in, in.getInt());
+    }
+
+    private static String str(ByteBuffer in, int len) {
+        if (len < 0 || len > in.remaining()) throw new BufferUnderflowException();
+        byte[] a = new byte[len];
+        in.get(a);
+        return new String(a, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,242 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * Đọc các trường của 1 object JSON phẳng (body của frame) chỉ với 1 lần quét.
+ *
+ *   JsonFields j = JsonFields.parse(f.body);
+ *   String name = j.get("name");
+ *   long size   = j.getLong("size", 0);
+ *
+ * - Quét 1 lần, chỉ ghi lại vị trí key/value; chuỗi chỉ được tạo khi {@link #get} được gọi,
+ *   và chỉ giải mã escape (\" \\ \n \\u+4 hex) khi value thật sự có escape.
+ * - So key không tạo chuỗi mới (regionMatches trên body).
+ * - Dùng lại được: {@link #reset(String)} quét body mới trên cùng các mảng chỉ số.
+ * - Dễ dãi như parser cũ: body không phải object → view rỗng; JSON hỏng giữa chừng →
+ *   giữ các trường đã đọc được. Value lồng (object/array) trả về nguyên văn.
+ */
+public final class JsonFields {
+    private static final byte STRING = 0, RAW = 1, NULL = 2;
+
+    private String src = "";
+    private int count;
+    // mỗi trường i: key [ks, ke), value [vs, ve); kind; escaped = key/value có '\'
+    private int[] ks = new int[8], ke = new int[8], vs = new int[8], ve = new int[8];
+    private byte[] kind = new byte[8];
+    private boolean[] keyEsc = new boolean[8], valEsc = new boolean[8];
+    private boolean sawEscape;
+
+    public static JsonFields parse(String json) {
+        return new JsonFields().reset(json);
+    }
+
+    /** Quét lại với body mới, dùng lại bộ nhớ của lần trước. */
+    public JsonFields reset(String json) {
+        src = (json == null) ? "" : json;
+        count = 0;
+        try {
+            scan();
+        } catch (IndexOutOfBoundsException ignore) {
+            // JSON cụt: giữ các trường đã đọc đủ
+        }
+        return this;
+    }
+
+    public int size() { return count; }
+
+    public boolean has(String key) { return find(key) >= 0; }
+
+    /** Value dạng chuỗi (string đã giải escape, số/bool nguyên văn); null nếu không có hoặc là null. */
+    public String get(String key) {
+        int i = find(key);
+        if (i < 0 || kind[i] == NULL) return null;
+        if (kind[i] == STRING && valEsc[i]) return unescape(src, vs[i], ve[i]);
+        return src.substring(vs[i], ve[i]);
+    }
+
+    public String get(String key, String def) {
+        String v = get(key);
+        return v == null ? def : v;
+    }
+
+    /** Số nguyên; chấp nhận cả "123" dạng chuỗi như client cũ gửi. */
+    public long getLong(String key, long def) {
+        int i = find(key);
+        if (i < 0 || kind[i] == NULL) return def;
+        return parseLong(src, vs[i], ve[i], def);
+    }
+
+    public int getInt(String key, int def) {
+        long v = getLong(key, def);
+        return (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) ? def : (int) v;
+    }
+
+    public boolean getBoolean(String key, boolean def) {
+        String v = get(key);
+        if (v == null) return def;
+        if ("true".equals(v)) return true;
+        if ("false".equals(v)) return false;
+        return def;
+    }
+
+    /* ===== quét ===== */
+
+    private void scan() {
+        String s = src;
+        int n = s.length();
+        int p = skipWs(s, 0);
+        if (p >= n || s.charAt(p) != '{') return;
+        p++;
+        while (true) {
+            p = skipWs(s, p);
+            if (p >= n) return;
+            char c = s.charAt(p);
+            if (c == '}') return;
+            if (c == ',') { p++; continue; }
+            if (c != '"') return;
+
+            int keyStart = p + 1;
+            int keyEnd = endOfString(s, keyStart);
+            if (keyEnd < 0) return;
+            boolean kEsc = sawEscape;
+            p = skipWs(s, keyEnd + 1);
+            if (p >= n || s.charAt(p) != ':') return;
+            p = skipWs(s, p + 1);
+            if (p >= n) return;
+
+            c = s.charAt(p);
+            int valStart, valEnd;
+            byte k;
+            boolean vEsc = false;
+            if (c == '"') {
+                valStart = p + 1;
+                valEnd = endOfString(s, valStart);
+                if (valEnd < 0) return;
+                vEsc = sawEscape;
+                k = STRING;
+                p = valEnd + 1;
+            } else if (c == '{' || c == '[') {
+                valStart = p;
+                valEnd = endOfNested(s, p);
+                if (valEnd < 0) return;
+                k = RAW;
+                p = valEnd;
+            } else {
+                valStart = p;
+                while (p < n && ",}] \t\r\n".indexOf(s.charAt(p)) < 0) p++;
+                valEnd = p;
+                k = (valEnd - valStart == 4 && s.startsWith("null", valStart)) ? NULL : RAW;
+            }
+            add(keyStart, keyEnd, kEsc, valStart, valEnd, vEsc, k);
+        }
+    }
+
+    private void add(int a, int b, boolean kEsc, int c, int d, boolean vEsc, byte k) {
+        if (count == ks.length) {
+            int cap = count * 2;
+            ks = Arrays.copyOf(ks, cap); ke = Arrays.copyOf(ke, cap);
+            vs = Arrays.copyOf(vs, cap); ve = Arrays.copyOf(ve, cap);
+            kind = Arrays.copyOf(kind, cap);
+            keyEsc = Arrays.copyOf(keyEsc, cap); valEsc = Arrays.copyOf(valEsc, cap);
+        }
+        ks[count] = a; ke[count] = b; keyEsc[count] = kEsc;
+        vs[count] = c; ve[count] = d; valEsc[count] = vEsc;
+        kind[count] = k;
+        count++;
+    }
+
+    private int find(String key) {
+        int len = key.length();
+        for (int i = 0; i < count; i++) {
+            if (keyEsc[i]) {
+                if (key.equals(unescape(src, ks[i], ke[i]))) return i;
+            } else if (ke[i] - ks[i] == len && src.regionMatches(ks[i], key, 0, len)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWs(String s, int p) {
+        while (p < s.length() && Character.isWhitespace(s.charAt(p))) p++;
+        return p;
+    }
+
+    /**
+     * Vị trí dấu " đóng chuỗi bắt đầu tại {@code p} (sau dấu " mở), bỏ qua \" ; -1 nếu cụt.
+     * {@link #sawEscape} cho biết chuỗi có escape không.
+     */
+    private int endOfString(String s, int p) {
+        int n = s.length();
+        sawEscape = false;
+        while (p < n) {
+            char c = s.charAt(p);
+            if (c == '\\') { sawEscape = true; p += 2; }
+            else if (c == '"') return p;
+            else p++;
+        }
+        return -1;
+    }
+
+    /** Vị trí ngay sau object/array lồng bắt đầu tại {@code p}; -1 nếu cụt. */
+    private int endOfNested(String s, int p) {
+        int depth = 0, n = s.length();
+        while (p < n) {
+            char c = s.charAt(p);
+            if (c == '"') {
+                p = endOfString(s, p + 1);
+                if (p < 0) return -1;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) return p + 1;
+            }
+            p++;
+        }
+        return -1;
+    }
+
+    private static long parseLong(String s, int a, int b, long def) {
+        if (a >= b) return def;
+        boolean neg = s.charAt(a) == '-';
+        int i = neg ? a + 1 : a;
+        if (i >= b) return def;
+        long v = 0;
+        for (; i < b; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return def;
+            if (v > (Long.MAX_VALUE - (c - '0')) / 10) return def;
+            v = v * 10 + (c - '0');
+        }
+        return neg ? -v : v;
+    }
+
+    static String unescape(String s, int a, int b) {
+        StringBuilder sb = new StringBuilder(b - a);
+        for (int i = a; i < b; i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 >= b) { sb.append(c); continue; }
+            char e = s.charAt(++i);
+            switch (e) {
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'u' -> {
+                    if (i + 4 < b) {
+                        try {
+                            sb.append((char) Integer.parseInt(s, i + 1, i + 5, 16));
+                            i += 4;
+                        } catch (NumberFormatException ex) {
+                            sb.append('u');
+                        }
+                    } else sb.append('u');
+                }
+                default -> sb.append(e); // \" \\ \/
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package common;
+
+/**
+ * Ghi 1 object JSON phẳng vào 1 StringBuilder duy nhất, escape đầy đủ theo chuẩn.
+ *
+ *   String json = new JsonWriter().field("name", name).field("size", size).end();
+ *
+ * Thay cho ghép chuỗi "{\"a\":\"" + esc(a) + ...: không tạo chuỗi trung gian cho từng
+ * phần, và escape cả ký tự điều khiển (\n, \t...) mà hàm esc cũ bỏ sót.
+ */
+public final class JsonWriter {
+    private final StringBuilder sb;
+    private boolean first = true;
+
+    public JsonWriter() { this(128); }
+
+    public JsonWriter(int capacity) {
+        sb = new StringBuilder(capacity);
+        sb.append('{');
+    }
+
+    /** Trường chuỗi; null ghi thành "" cho giống các builder cũ. */
+    public JsonWriter field(String key, String value) {
+        key(key);
+        sb.append('"');
+        escape(sb, value == null ? "" : value);
+        sb.append('"');
+        return this;
+    }
+
+    public JsonWriter field(String key, long value) {
+        key(key);
+        sb.append(value);
+        return this;
+    }
+
+    public JsonWriter field(String key, boolean value) {
+        key(key);
+        sb.append(value);
+        return this;
+    }
+
+    /** Chèn value đã là JSON hợp lệ (object/array lồng). */
+    public JsonWriter raw(String key, String json) {
+        key(key);
+        sb.append(json);
+        return this;
+    }
+
+    /** Đóng object và trả về chuỗi. */
+    public String end() {
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private void key(String key) {
+        if (!first) sb.append(',');
+        first = false;
+        sb.append('"');
+        escape(sb, key);
+        sb.append("\":");
+    }
+
+    /** Escape chuỗi JSON vào {@code out} (không kèm dấu "). */
+    public static void escape(StringBuilder out, String s) {
+        int n = s.length(), run = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+            out.append(s, run, i);
+            run = i + 1;
+            switch (c) {
+                case '"'  -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                case '\b' -> out.append("\\b");
+                case '\f' -> out.append("\\f");
+                default -> {
+                    out.append("\\u00");
+                    out.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                }
+            }
+        }
+        out.append(s, run, n);
+    }
+}
@@ -0,0 +1,189 @@
+package common;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logger dùng chung cho client/server.
+ *
+ * - Mức log: -Dlog.level=TRACE|DEBUG|INFO|WARN|ERROR|OFF (mặc định INFO). Các cờ
+ *   {@link #DEBUG_ON}/{@link #TRACE_ON} là static final → JIT bỏ hẳn nhánh bị tắt;
+ *   chỗ nào ghép chuỗi tốn kém thì bọc trong {@code if (Log.DEBUG_ON)}.
+ * - Ghi bất đồng bộ: thread gọi chỉ đẩy vào ring buffer (-Dlog.buffer, mặc định 8192 dòng),
+ *   1 thread nền ghi ra console theo lô. Buffer đầy thì bỏ dòng và đếm, không bao giờ chặn.
+ *   -Dlog.async=false để ghi trực tiếp (debug khởi động).
+ * - Trace frame: -Dlog.frames.sample=N lấy 1/N frame, -Dlog.frames.users=a,b lấy mọi frame
+ *   của các user này. Không bật cả hai thì {@link #frame} gần như không tốn gì.
+ */
+public final class Log {
+    private Log() {}
+
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    public static final Level LEVEL = parseLevel(System.getProperty("log.level", "INFO"));
+    public static final boolean TRACE_ON = LEVEL.ordinal() <= Level.TRACE.ordinal();
+    public static final boolean DEBUG_ON = LEVEL.ordinal() <= Level.DEBUG.ordinal();
+    public static final boolean INFO_ON  = LEVEL.ordinal() <= Level.INFO.ordinal();
+
+    private static final boolean ASYNC = !"false".equalsIgnoreCase(System.getProperty("log.async", "true"));
+    private static final int BUFFER = Integer.getInteger("log.buffer", 8192);
+    private static final int FRAME_SAMPLE = Integer.getInteger("log.frames.sample", 0);
+    private static final Set<String> FRAME_USERS = parseUsers(System.getProperty("log.frames.users", ""));
+    public static final boolean FRAMES_ON = FRAME_SAMPLE > 0 || !FRAME_USERS.isEmpty();
+    private static final int BODY_PREVIEW = 80;
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    // ghi thẳng vào fd: không dùng chung lock với System.out của code khác
+    private static final PrintStream OUT = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 32 * 1024), false, StandardCharsets.UTF_8);
+    private static final PrintStream ERR = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 8 * 1024), false, StandardCharsets.UTF_8);
+
+    private record Entry(long millis, Level level, String tag, String msg, Throwable t) {}
+
+    private static final ArrayBlockingQueue<Entry> RING = new ArrayBlockingQueue<>(Math.max(64, BUFFER));
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong frameSeq = new AtomicLong();
+
+    static {
+        if (ASYNC) {
+            Thread t = new Thread(Log::drainLoop, "log-writer");
+            t.setDaemon(true);
+            t.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::drainNow, "log-flush"));
+        }
+    }
+
+    /* ===== API ===== */
+
+    public static void trace(String tag, String msg) { if (TRACE_ON) log(Level.TRACE, tag, msg, null); }
+    public static void debug(String tag, String msg) { if (DEBUG_ON) log(Level.DEBUG, tag, msg, null); }
+    public static void info(String tag, String msg)  { if (INFO_ON) log(Level.INFO, tag, msg, null); }
+    public static void warn(String tag, String msg)  { log(Level.WARN, tag, msg, null); }
+    public static void warn(String tag, String msg, Throwable t) { log(Level.WARN, tag, msg, t); }
+    public static void error(String tag, String msg) { log(Level.ERROR, tag, msg, null); }
+    public static void error(String tag, String msg, Throwable t) { log(Level.ERROR, tag, msg, t); }
+
+    public static boolean enabled(Level l) { return l.ordinal() >= LEVEL.ordinal() && l != Level.OFF; }
+
+    /** Số dòng bị bỏ vì ring buffer đầy. */
+    public static long dropped() { return dropped.get(); }
+
+    /**
+     * Trace 1 frame nếu được chọn (theo user hoặc lấy mẫu 1/N).
+     * @param dir  "IN"/"OUT"
+     * @param user user của phiên (null nếu chưa đăng nhập)
+     */
+    public static void frame(String dir, String user, Frame f) {
+        if (!FRAMES_ON || f == null) return;
+        boolean pick = !FRAME_USERS.isEmpty()
+                && (contains(user) || contains(f.sender) || contains(f.recipient));
+        if (!pick && FRAME_SAMPLE > 0) pick = frameSeq.incrementAndGet() % FRAME_SAMPLE == 0;
+        if (!pick) return;
+        log(Level.INFO, "FRAME", describe(dir, user, f), null);
+    }
+
+    private static boolean contains(String u) { return u != null && FRAME_USERS.contains(u); }
+
+    private static String describe(String dir, String user, Frame f) {
+        StringBuilder sb = new StringBuilder(96);
+        sb.append(dir).append(' ').append(user == null ? "-" : user)
+          .append(" type=").append(f.type)
+          .append(" from=").append(f.sender).append(" to=").append(f.recipient);
+        if (f.transferId != null && !f.transferId.isEmpty()) sb.append(" id=").append(f.transferId);
+        if (f.type.carriesData())
+            sb.append(" seq=").append(f.seq).append(f.last ? " last" : "").append(" len=").append(f.payloadLength());
+        if (f.meta != null) sb.append(" meta=").append(f.meta);
+        String b = f.body;
+        if (b != null && !b.isEmpty()) {
+            sb.append(" body=");
+            if (b.length() <= BODY_PREVIEW) sb.append(b);
+            else sb.append(b, 0, BODY_PREVIEW).append("…(").append(b.length()).append(')');
+        }
+        return sb.toString();
+    }
+
+    /* ===== appender ===== */
+
+    private static void log(Level level, String tag, String msg, Throwable t) {
+        if (level.ordinal() < LEVEL.ordinal()) return;
+        Entry e = new Entry(System.currentTimeMillis(), level, tag, msg, t);
+        if (!ASYNC) {
+            synchronized (Log.class) { write(e); OUT.flush(); ERR.flush(); }
+            return;
+        }
+        if (!RING.offer(e)) dropped.incrementAndGet();
+    }
+
+    private static void drainLoop() {
+        List<Entry> batch = new ArrayList<>(256);
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                batch.add(RING.take());
+            } catch (InterruptedException ie) {
+                return;
+            }
+            RING.drainTo(batch, 255);
+            synchronized (Log.class) {
+                for (Entry e : batch) write(e);
+                long d = dropped.get();
+                if (d != reportedDrops) {
+                    ERR.println(format(System.currentTimeMillis(), Level.WARN, "LOG",
+                            (d - reportedDrops) + " lines dropped (buffer full)"));
+                    reportedDrops = d;
+                }
+                OUT.flush();
+                ERR.flush();
+            }
+            batch.clear();
+        }
+    }
+
+    /** Ghi hết những gì còn trong buffer (shutdown hook). */
+    private static void drainNow() {
+        List<Entry> rest = new ArrayList<>();
+        RING.drainTo(rest);
+        synchronized (Log.class) {
+            for (Entry e : rest) write(e);
+            OUT.flush();
+            ERR.flush();
+        }
+    }
+
+    private static void write(Entry e) {
+        PrintStream ps = e.level.ordinal() >= Level.WARN.ordinal() ? ERR : OUT;
+        ps.println(format(e.millis, e.level, e.tag, e.msg));
+        if (e.t != null) e.t.printStackTrace(ps);
+    }
+
+    private static String format(long millis, Level level, String tag, String msg) {
+        String time = TIME.format(LocalTime.ofInstant(java.time.Instant.ofEpochMilli(millis), ZONE));
+        return time + ' ' + level + " [" + tag + "] " + msg;
+    }
+
+    private static Level parseLevel(String s) {
+        try { return Level.valueOf(s.trim().toUpperCase(java.util.Locale.ROOT)); }
+        catch (Exception e) { return Level.INFO; }
+    }
+
+    private static Set<String> parseUsers(String s) {
+        Set<String> out = new HashSet<>();
+        for (String u : s.split(",")) if (!u.isBlank()) out.add(u.trim());
+        return Set.copyOf(out);
+    }
+}
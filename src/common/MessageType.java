@@ -33,12 +33,45 @@ public enum MessageType {
     DELETE_FILE((byte)36),
     DELETE_AUDIO((byte)37),
     AUDIO_HISTORY((byte)38),
-	DOWNLOAD_AUDIO((byte)39);
+	DOWNLOAD_AUDIO((byte)39),
+    BATCH((byte)40),            // nhiều frame nhỏ nén chung 1 khối (Capabilities.BATCH)
+    HISTORY_BATCH((byte)41),    // 1 trang lịch sử nhị phân (HistoryPage)
+    SEARCH_ALL((byte)42),       // tìm trong mọi hội thoại; trả lời = 1 trang HistoryPage đã xếp hạng (Capabilities.SEARCH_ALL)
+    PRESENCE_SUB((byte)43),     // client → server: danh sách user cần theo dõi trạng thái (PresenceUpdate)
+    PRESENCE((byte)44),         // server → client: trạng thái đã thay đổi của các user đang theo dõi
+    USER_LIST((byte)45),        // danh sách user (trừ mình), phân trang; trả lời = UserList (Capabilities.USER_DIRECTORY)
+    USER_SEARCH((byte)46),      // tìm user theo tên (đầu tên / giữa tên), phân trang; trả lời = UserList
+    AVATAR((byte)47),           // xin / trả 1 cỡ avatar kèm hash; hash trùng thì không gửi lại ảnh (Capabilities.AVATAR)
+    // id không có trong bản này (đầu kia mới hơn): frame giải mã theo phần header chung rồi bị bỏ qua;
+    // type có phần dữ liệu (carriesData) thì không giải mã đúng → chỉ gửi khi đã thoả thuận (Capabilities.requiredFor)
+    UNKNOWN((byte)-1);
     public final byte id;
     MessageType(byte id){ this.id = id; }
 
+    /** Bit cao của byte type trên dây: body đã nén. Id type vì vậy phải < 128. */
+    public static final int COMPRESSED_FLAG = 0x80;
+
+    /** Chunk file/audio: dữ liệu thô, không đáng nén. */
+    public boolean isChunk() {
+        return this == FILE_CHUNK || this == AUDIO_CHUNK;
+    }
+
+    /**
+     * Frame có phần dữ liệu nhị phân (seq, last, dLen, data) sau phần chuỗi. Bố cục này khác frame thường,
+     * nên bản không biết type (UNKNOWN) đọc sai; type mới loại này phải gắn 1 bit trong {@link Capabilities}.
+     */
+    public boolean carriesData() {
+        return this == FILE_CHUNK || this == AUDIO_CHUNK || this == BATCH || this == HISTORY_BATCH || this == SEARCH_ALL
+                || this == AVATAR;
+    }
+
+    private static final MessageType[] BY_ID = new MessageType[256];
+    static {
+        for (var t : values()) if (t != UNKNOWN) BY_ID[t.id & 0xFF] = t;
+    }
+
     public static MessageType from(byte b){
-        for (var t : values()) if (t.id == b) return t;
-        throw new IllegalArgumentException("Unknown MessageType id: " + b);
+        MessageType t = BY_ID[b & ~COMPRESSED_FLAG & 0xFF];
+        return t != null ? t : UNKNOWN;
     }
 }
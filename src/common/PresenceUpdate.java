@@ -0,0 +1,69 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Body của PRESENCE_SUB / PRESENCE (dạng dòng, không cần JSON parser):
+ *
+ *   PRESENCE_SUB : "alice\nbob"                       (thay toàn bộ danh sách đang theo dõi)
+ *   PRESENCE     : "alice\t1\t\nbob\t0\t2026-10-17T08:00:00Z"
+ *
+ * Mỗi dòng PRESENCE = username, 1/0 (online), last_seen ISO-8601 (rỗng khi online / chưa biết).
+ * Username có tab/xuống dòng bị bỏ qua (không thể có trong tên hợp lệ).
+ */
+public final class PresenceUpdate {
+    public final String username;
+    public final boolean online;
+    public final String lastSeenIso; // null nếu online / chưa biết
+
+    public PresenceUpdate(String username, boolean online, String lastSeenIso) {
+        this.username = username;
+        this.online = online;
+        this.lastSeenIso = (lastSeenIso == null || lastSeenIso.isEmpty()) ? null : lastSeenIso;
+    }
+
+    public static String encode(Collection<PresenceUpdate> list) {
+        StringBuilder sb = new StringBuilder(list.size() * 40);
+        for (PresenceUpdate p : list) {
+            if (!valid(p.username)) continue;
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(p.username).append('\t').append(p.online ? '1' : '0').append('\t');
+            if (p.lastSeenIso != null) sb.append(p.lastSeenIso);
+        }
+        return sb.toString();
+    }
+
+    public static List<PresenceUpdate> parse(String body) {
+        List<PresenceUpdate> out = new ArrayList<>();
+        if (body == null || body.isEmpty()) return out;
+        for (String line : body.split("\n")) {
+            String[] p = line.split("\t", 3);
+            if (p.length < 2 || p[0].isEmpty()) continue;
+            out.add(new PresenceUpdate(p[0], "1".equals(p[1]), p.length > 2 ? p[2] : null));
+        }
+        return out;
+    }
+
+    public static String names(Collection<String> usernames) {
+        StringBuilder sb = new StringBuilder(usernames.size() * 12);
+        for (String u : usernames) {
+            if (!valid(u)) continue;
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(u);
+        }
+        return sb.toString();
+    }
+
+    public static List<String> parseNames(String body) {
+        List<String> out = new ArrayList<>();
+        if (body == null || body.isEmpty()) return out;
+        for (String u : body.split("\n")) if (!u.isEmpty()) out.add(u);
+        return out;
+    }
+
+    private static boolean valid(String u) {
+        return u != null && !u.isEmpty() && u.indexOf('\t') < 0 && u.indexOf('\n') < 0;
+    }
+}
@@ -0,0 +1,76 @@
+package common;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chuẩn hoá chữ cho tìm kiếm không dấu, dùng chung client ({@code SearchMessageHandler}) và server
+ * ({@code MessageDao}, {@code MessageIndex}) để 2 bên so khớp giống hệt nhau.
+ *
+ *   fold("Đường PHỐ")  → "duong pho"
+ *   tokens("Anh ơi, 2 giờ!") → [anh, oi, 2, gio]
+ *
+ * - Tách dấu (NFD) rồi bỏ mọi ký tự dấu (Mn/Mc/Me), hạ chữ thường; đ/Đ (và ð/Ð) → d.
+ * - Chuỗi thuần ASCII không qua Normalizer (đường nhanh cho phần lớn tin nhắn).
+ * - Token = dãy chữ/số liên tiếp của chuỗi đã fold; mọi ký tự khác là dấu ngăn.
+ */
+public final class TextFold {
+    private TextFold() {}
+
+    public static String fold(String s) {
+        if (s == null || s.isEmpty()) return "";
+        boolean ascii = true;
+        for (int i = 0; i < s.length() && ascii; i++) ascii = s.charAt(i) < 0x80;
+        if (ascii) return toLowerAscii(s);
+
+        String d = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(d.length());
+        for (int i = 0; i < d.length(); i++) {
+            char c = d.charAt(i);
+            switch (Character.getType(c)) {
+                case Character.NON_SPACING_MARK, Character.COMBINING_SPACING_MARK, Character.ENCLOSING_MARK -> { continue; }
+                default -> {}
+            }
+            if (c == 'đ' || c == 'Đ' || c == 'ð' || c == 'Ð') c = 'd';
+            sb.append(Character.toLowerCase(c));
+        }
+        return sb.toString();
+    }
+
+    /** Các token của chuỗi đã fold (giữ thứ tự, có thể trùng). */
+    public static List<String> tokens(String folded) {
+        List<String> out = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean word = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (word && start < 0) start = i;
+            else if (!word && start >= 0) {
+                out.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return out;
+    }
+
+    /** Ký tự đầu / cuối của chuỗi là chữ-số (token ở biên có thể bị cắt dở khi so chuỗi con). */
+    public static boolean startsInWord(String folded) {
+        return !folded.isEmpty() && Character.isLetterOrDigit(folded.charAt(0));
+    }
+
+    public static boolean endsInWord(String folded) {
+        return !folded.isEmpty() && Character.isLetterOrDigit(folded.charAt(folded.length() - 1));
+    }
+
+    private static String toLowerAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] a = s.toCharArray();
+                for (int j = i; j < a.length; j++) if (a[j] >= 'A' && a[j] <= 'Z') a[j] += 32;
+                return new String(a);
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,56 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body trả lời USER_LIST / USER_SEARCH (dạng dòng như {@link PresenceUpdate}):
+ *
+ *   "an\n12\tanna\n40\tminh_an"
+ *
+ * Dòng đầu = câu tìm (USER_SEARCH) hoặc mã lượt gom client gửi kèm (USER_LIST) để client bỏ trả lời
+ * của lượt cũ; mỗi dòng sau = id, username.
+ * transferId của frame = offset trang kế ("" = hết).
+ */
+public final class UserList {
+    public final String query;
+    public final List<User> users;
+
+    public UserList(String query, List<User> users) {
+        this.query = query == null ? "" : query;
+        this.users = users;
+    }
+
+    public static String encode(String query, List<User> users) {
+        StringBuilder sb = new StringBuilder(16 + users.size() * 20);
+        sb.append(oneLine(query));
+        for (User u : users) {
+            String name = u.getUsername();
+            if (name == null || name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0) continue;
+            sb.append('\n').append(u.getId()).append('\t').append(name);
+        }
+        return sb.toString();
+    }
+
+    public static UserList parse(String body) {
+        if (body == null || body.isEmpty()) return new UserList("", new ArrayList<>());
+        String[] lines = body.split("\n", -1);
+        List<User> out = new ArrayList<>(lines.length - 1);
+        for (int i = 1; i < lines.length; i++) {
+            int tab = lines[i].indexOf('\t');
+            if (tab <= 0) continue;
+            try {
+                User u = new User();
+                u.setId(Integer.parseInt(lines[i].substring(0, tab)));
+                u.setUsername(lines[i].substring(tab + 1));
+                out.add(u);
+            } catch (NumberFormatException ignore) {}
+        }
+        return new UserList(lines[0], out);
+    }
+
+    /** Câu tìm gửi/nhận qua dòng đầu: không được có xuống dòng. */
+    public static String oneLine(String q) {
+        return q == null ? "" : q.replace('\n', ' ').replace('\r', ' ');
+    }
+}
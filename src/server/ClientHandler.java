@@ -1,20 +1,44 @@
 package server;
 
+import server.dao.DbExecutor;
 import server.dao.MessageDao;
+import server.dao.AvatarStore;
+import server.dao.UserDirectory;
 import server.signaling.CallRouter;
+import common.AvatarVariant;
+import common.BufferPool;
+import common.Capabilities;
 import common.Frame;
+import common.FrameEncoder;
 import common.FrameIO;
+import common.FrameInflater;
+import common.FrameMeta;
+import common.HistoryPage;
+import common.JsonFields;
+import common.JsonWriter;
+import common.Log;
 import common.MessageType;
+import common.PresenceUpdate;
+import common.UserList;
 import server.dao.FileDao;
+import server.nio.NioConnection;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class ClientHandler implements Runnable {
     private final Socket socket;
@@ -22,11 +46,28 @@ public class ClientHandler implements Runnable {
     private final Map<String, ClientHandler> online;
     private final MessageDao messageDao;
     private final FileDao fileDao;
+    // mọi truy vấn DB chạy ở đây, không trên thread đọc socket / worker NIO
+    private final DbExecutor db;
+    private final PresenceService presence;
+    private final UserDirectory users;
+    private final AvatarStore avatars;
+    private final NioConnection nio; // != null khi chạy ở chế độ NIO
+    private final Object streamLock = new Object();
+    private ExecutorService streamer; // thread stream của phiên, tạo khi cần (xem stream)
+    private boolean streamsClosed;
 
     private DataInputStream binIn;
-    private DataOutputStream binOut;
+    private OutputStream sockOut;
+    private final FrameEncoder encoder = new FrameEncoder(false); // chỉ writer thread dùng
+    private final FrameInflater inflater = new FrameInflater();   // chỉ vòng đọc dùng
+    // chế độ blocking: mọi thread chỉ xếp frame vào hàng đợi, 1 writer thread duy nhất ghi socket
+    private final OutboundQueue outbound = new OutboundQueue();
+    private Thread writer;
+    private volatile boolean closing = false;
 
     private String username = null;
+    // phiên bản + khả năng thoả thuận lúc LOGIN; LEGACY cho client cũ
+    private volatile Capabilities.Handshake proto = Capabilities.Handshake.LEGACY;
     private static final File UPLOAD_DIR = new File("uploads");
     private static final Map<String, String> fileNameMap = new ConcurrentHashMap<>();
 
@@ -47,12 +88,37 @@ public class ClientHandler implements Runnable {
     public ClientHandler(Socket socket,
                          Set<ClientHandler> clients,
                          Map<String, ClientHandler> online,
-                         MessageDao messageDao, FileDao fileDao) {
+                         MessageDao messageDao, FileDao fileDao, DbExecutor db,
+                         PresenceService presence, UserDirectory users, AvatarStore avatars) {
         this.socket = socket;
         this.clients = clients;
         this.online = online;
         this.messageDao = messageDao;
         this.fileDao = fileDao;
+        this.db = db;
+        this.presence = presence;
+        this.users = users;
+        this.avatars = avatars;
+        this.nio = null;
+    }
+
+    /** Phiên chạy trên event loop NIO: frame được đẩy vào qua {@link #dispatch(Frame)}. */
+    public ClientHandler(NioConnection nio,
+                         Set<ClientHandler> clients,
+                         Map<String, ClientHandler> online,
+                         MessageDao messageDao, FileDao fileDao, DbExecutor db,
+                         PresenceService presence, UserDirectory users, AvatarStore avatars) {
+        this.socket = null;
+        this.clients = clients;
+        this.online = online;
+        this.messageDao = messageDao;
+        this.fileDao = fileDao;
+        this.db = db;
+        this.presence = presence;
+        this.users = users;
+        this.avatars = avatars;
+        this.nio = nio;
+        if (!UPLOAD_DIR.exists()) UPLOAD_DIR.mkdirs();
     }
 
     @Override
@@ -60,49 +126,73 @@ public class ClientHandler implements Runnable {
         try {
             socket.setTcpNoDelay(true);
             binIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            binOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            sockOut = socket.getOutputStream();
+            // writer chạy cùng loại thread với phiên (virtual hay platform)
+            writer = (Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform().daemon(true))
+                    .name("writer-" + socket.getRemoteSocketAddress())
+                    .start(this::writeLoop);
 
             if (!UPLOAD_DIR.exists()) UPLOAD_DIR.mkdirs();
 
             while (true) {
-                Frame f = FrameIO.read(binIn);
+                Frame f = FrameIO.readPooled(binIn, inflater);
                 if (f == null) break;
+                try { dispatch(f); } finally { f.release(); }
+            }
+        } catch (SocketException | EOFException ignored) {
+        } catch (IOException e) {
+            Log.warn("SERVER", "IO error: " + e.getMessage());
+        } finally {
+            cleanup();
+            inflater.close(); // vòng đọc là thread duy nhất dùng inflater
+        }
+    }
 
-                switch (f.type) {
-                    case REGISTER, LOGIN -> handleLogin(f);
-                    case DM -> handleDirectMessage(f);
-                    case HISTORY -> handleHistory(f);
+    /** Xử lý 1 frame đã giải mã; dùng chung cho vòng đọc blocking và NIO. */
+    public void dispatch(Frame f) {
+        Log.frame("IN", username, f);
+        switch (f.type) {
+            case REGISTER, LOGIN -> handleLogin(f);
+            case DM -> handleDirectMessage(f);
+            case HISTORY -> handleHistory(f);
 
-                    // HỢP NHẤT: FILE + AUDIO đều đi qua 2 type meta/chunk này
-                    case FILE_META, FILE_CHUNK -> handleFile(f);
-                    case AUDIO_META, AUDIO_CHUNK -> handleFile(f); // tương thích ngược
+            // HỢP NHẤT: FILE + AUDIO đều đi qua 2 type meta/chunk này
+            case FILE_META, FILE_CHUNK -> handleFile(f);
+            case AUDIO_META, AUDIO_CHUNK -> handleFile(f); // tương thích ngược
 
-                    case CALL_INVITE, CALL_ACCEPT, CALL_REJECT,
-                         CALL_CANCEL, CALL_BUSY, CALL_END,
-                         CALL_OFFER, CALL_ANSWER, CALL_ICE -> handleCall(f);
+            case CALL_INVITE, CALL_ACCEPT, CALL_REJECT,
+                 CALL_CANCEL, CALL_BUSY, CALL_END,
+                 CALL_OFFER, CALL_ANSWER, CALL_ICE -> handleCall(f);
 
-                    case DELETE_MSG -> handleDeleteMessage(f);
+            case DELETE_MSG -> handleDeleteMessage(f);
 
-                    // Lịch sử/tải/xoá file — CHUNG
-                    case DOWNLOAD_FILE -> handleDownloadFile(f);
-                    case FILE_HISTORY  -> handleFileHistory(f);
-                    case DELETE_FILE   -> handleDeleteFile(f);
+            // Lịch sử/tải/xoá file — CHUNG
+            case DOWNLOAD_FILE -> handleDownloadFile(f);
+            case FILE_HISTORY  -> handleFileHistory(f);
+            case DELETE_FILE   -> handleDeleteFile(f);
 
-                    case EDIT_MSG -> handleEditMessage(f);
-                    case SEARCH   -> handleSearch(f);
+            case EDIT_MSG -> handleEditMessage(f);
+            case SEARCH   -> handleSearch(f);
+            case SEARCH_ALL -> handleSearchAll(f);
+            case PRESENCE_SUB -> handlePresenceSub(f);
+            case USER_LIST, USER_SEARCH -> handleUserDirectory(f);
+            case AVATAR -> handleAvatar(f);
 
-                    default -> System.out.println("[SERVER] Unknown frame: " + f.type);
-                }
-            }
-        } catch (SocketException | EOFException ignored) {
-        } catch (IOException e) {
-            System.err.println("[SERVER] IO error: " + e.getMessage());
-        } finally {
-            cleanup();
+            // type mới hơn bản server này: bỏ qua, giữ kết nối
+            case UNKNOWN -> { if (Log.DEBUG_ON) Log.debug("SERVER", "Skip unknown frame from " + username); }
+
+            default -> Log.warn("SERVER", "Unknown frame: " + f.type);
         }
     }
 
+    /** Kênh NIO báo đã đóng kết nối. */
+    public void disconnected() {
+        cleanup();
+    }
+
     /* ================= LOGIN ================= */
+    private static final int OFFLINE_PAGE = Integer.getInteger("server.offline.page", 200);
+
     private void handleLogin(Frame f) {
         String u = f.sender;
         if (u == null || u.isBlank() || online.containsKey(u)) {
@@ -110,21 +200,89 @@ public class ClientHandler implements Runnable {
             return;
         }
         username = u;
+        proto = Capabilities.Handshake.parse(f.body).negotiate();
         online.put(username, this);
         CallRouter.getInstance().register(username, this);
-
-        sendFrame(Frame.ack("OK LOGIN " + username));
+        presence.online(username);
+
+        sendFrame(Frame.ack(proto.loginAck(username)));
+        // ACK là frame cuối theo định dạng cũ; encoder chỉ do thread ghi dùng → đổi ở đó, đúng vị trí trong hàng đợi
+        Capabilities.Handshake hs = proto;
+        if (nio != null) nio.configure(hs); else outbound.offerAction(() -> encoder.configure(hs));
+        // tài khoản vừa đăng ký (client ghi thẳng vào DB) → nạp thêm vào danh bạ
+        if (!users.contains(username)) {
+            db.submit(DbExecutor.key(username, username), users::refresh);
+        }
         broadcast("🔵 " + username + " joined", true);
 
+        // chạy trên thread stream của phiên nên vòng đọc vẫn nhận frame (cuộc gọi, DM) trong lúc giao backlog
+        String me = username;
+        if (!stream(() -> deliverQueued(me))) sendFrame(Frame.error("OFFLINE_DELIVERY_FAIL"));
+    }
+
+    /**
+     * Giao tin chờ từng trang: đọc trang qua làn DB (không giữ kết nối DB lúc chờ socket), gửi kiểu BULK —
+     * hàng đợi gửi đầy thì chỉ thread stream của phiên này chờ client đọc bớt.
+     * Trang chỉ được đánh dấu delivered khi frame cuối của nó đã ghi ra socket (frame ghi theo thứ tự);
+     * phiên đóng trước đó → cả trang gửi lại lần đăng nhập sau (ít nhất 1 lần, có thể trùng).
+     */
+    private void deliverQueued(String me) {
+        long lane = DbExecutor.key(me, me);
+        long after = 0;
+        int total = 0;
         try {
-            var pending = messageDao.loadQueued(username);
-            for (var m : pending) sendFrame(m);
-            if (!pending.isEmpty()) sendFrame(Frame.ack("Delivered " + pending.size() + " offline messages"));
-        } catch (SQLException e) {
+            while (true) {
+                long from = after;
+                List<Frame> page = db.submit(lane, () -> messageDao.loadQueued(me, from, OFFLINE_PAGE)).get();
+                if (page.isEmpty()) break;
+                List<Long> ids = new ArrayList<>(page.size());
+                for (Frame m : page) ids.add(Long.parseLong(m.transferId));
+                for (int i = 0; i < page.size(); i++) {
+                    Runnable onWritten = i < page.size() - 1 ? null
+                            : () -> db.submit(lane, () -> messageDao.markDelivered(ids))
+                                      .whenComplete((x, err) -> {
+                                          if (err != null) Log.warn("DB", "Mark delivered failed for " + me + ": " + err.getMessage());
+                                      });
+                    if (sendFrame(page.get(i), OutboundQueue.Kind.BULK, onWritten) != OutboundQueue.Result.QUEUED) return;
+                }
+                total += page.size();
+                if (page.size() < OFFLINE_PAGE) break;
+                after = ids.get(ids.size() - 1);
+            }
+            if (total > 0) sendFrame(Frame.ack("Delivered " + total + " offline messages"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // phiên đóng
+        } catch (ExecutionException e) {
             sendFrame(Frame.error("OFFLINE_DELIVERY_FAIL"));
         }
     }
 
+    /*
+     * Việc dài có chờ backpressure của socket (backlog offline, tải file): 1 virtual thread riêng mỗi phiên,
+     * tạo khi cần → client chậm chỉ làm chậm chính nó; việc của cùng phiên chạy lần lượt (không xen chunk).
+     * Truy vấn DB trong đó vẫn đi qua làn của DbExecutor để số kết nối DB không tăng theo số phiên.
+     */
+    private boolean stream(Runnable job) {
+        synchronized (streamLock) {
+            if (streamsClosed) return false;
+            if (streamer == null) {
+                streamer = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("stream-" + username).factory());
+            }
+            try {
+                streamer.execute(() -> {
+                    try {
+                        job.run();
+                    } catch (RuntimeException e) {
+                        Log.error("SERVER", "stream job failed", e);
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+    }
+
     /* ================= DIRECT MESSAGE ================= */
     private void handleDirectMessage(Frame f) {
         String to = f.recipient;
@@ -132,89 +290,223 @@ public class ClientHandler implements Runnable {
             sendFrame(Frame.error("BAD_DM"));
             return;
         }
-        try {
-            long id;
-            ClientHandler target = online.get(to);
-            if (target != null) {
-                id = messageDao.saveSentReturnId(f);
-                f.transferId = String.valueOf(id);
-                target.sendFrame(f);
-                Frame ack = Frame.ack("OK DM");
-                ack.transferId = String.valueOf(id);
-                sendFrame(ack);
-            } else {
-                id = messageDao.saveQueuedReturnId(f);
-                Frame ack = Frame.ack("OK QUEUED");
-                ack.transferId = String.valueOf(id);
-                sendFrame(ack);
-            }
-        } catch (SQLException e) {
-            sendFrame(Frame.error("DM_SAVE_FAIL"));
-        }
+        // không chờ INSERT: MessageWriter gộp lô rồi gọi lại theo đúng thứ tự gửi.
+        // Luôn ghi 'queued'; chỉ thành 'delivered' khi frame đã ghi ra socket người nhận (như deliverQueued) →
+        // người nhận rớt trước lúc đó thì tin vẫn chờ, gửi lại lần đăng nhập sau.
+        messageDao.saveQueuedAsync(f).whenComplete((id, err) -> {
+            if (err != null) { sendFrame(Frame.error("DM_SAVE_FAIL")); return; }
+            f.transferId = String.valueOf(id);
+            ClientHandler target = online.get(to); // tra lúc này: người nhận có thể vừa vào/ra trong lúc ghi
+            boolean live = target != null && target.sendFrame(f, OutboundQueue.classify(f),
+                    () -> messageDao.markDeliveredLater(id)) == OutboundQueue.Result.QUEUED;
+            Frame ack = Frame.ack(live ? "OK DM" : "OK QUEUED");
+            ack.transferId = String.valueOf(id);
+            sendFrame(ack);
+        });
     }
 
     /* ================= EDIT ================= */
     private void handleEditMessage(Frame f) {
-        try {
-            long id = parseLongSafe(f.transferId != null ? f.transferId : f.body, 0L);
-            if (id <= 0) { sendFrame(Frame.error("BAD_ID")); return; }
-            String newBody = (f.body == null) ? "" : f.body;
-
-            String peer = messageDao.updateByIdReturningPeer(id, username, newBody);
-            if (peer == null) { sendFrame(Frame.error("DENIED_OR_NOT_FOUND")); return; }
-
-            Frame ack = Frame.ack("OK EDIT"); ack.transferId = String.valueOf(id); sendFrame(ack);
-
-            Frame evt = new Frame(MessageType.EDIT_MSG, username, peer, newBody);
-            evt.transferId = String.valueOf(id);
-            ClientHandler peerHandler = online.get(peer);
-            if (peerHandler != null) peerHandler.sendFrame(evt);
-        } catch (Exception e) {
-            sendFrame(Frame.error("EDIT_FAIL"));
-        }
+        long id = parseLongSafe(f.transferId != null ? f.transferId : f.body, 0L);
+        if (id <= 0) { sendFrame(Frame.error("BAD_ID")); return; }
+        String newBody = (f.body == null) ? "" : f.body;
+        String me = username;
+
+        // cùng làn với lịch sử/tìm kiếm của hội thoại đó
+        messageLane(me, f.recipient, id)
+          .thenCompose(lane -> lane == null ? CompletableFuture.completedFuture(null)
+                  : db.submit(lane, () -> messageDao.updateByIdReturningPeer(id, me, newBody)))
+          .whenComplete((peer, err) -> {
+              if (err != null) { sendFrame(Frame.error("EDIT_FAIL")); return; }
+              if (peer == null) { sendFrame(Frame.error("DENIED_OR_NOT_FOUND")); return; }
+
+              Frame ack = Frame.ack("OK EDIT"); ack.transferId = String.valueOf(id); sendFrame(ack);
+
+              Frame evt = new Frame(MessageType.EDIT_MSG, me, peer, newBody);
+              evt.transferId = String.valueOf(id);
+              ClientHandler peerHandler = online.get(peer);
+              if (peerHandler != null) peerHandler.sendFrame(evt);
+          });
     }
 
     /* ================= SEARCH ================= */
     private void handleSearch(Frame f){
         String peer = f.recipient;
-        String q = jsonGet(f.body, "q");
-        if (q == null) q = "";
+        JsonFields req = JsonFields.parse(f.body);
+        String q = req.get("q", "");
         int limit = (f.seq > 0) ? f.seq : 50;
-        int offset = (int) parseLongSafe(jsonGet(f.body, "offset"), 0);
-        try{
-            var rows = messageDao.searchConversation(username, peer, q, limit, offset);
-            for (var r : rows){
-                Frame hit = new Frame(MessageType.SEARCH_HIT, r.sender, r.recipient, r.body);
-                hit.transferId = String.valueOf(r.id);
-                sendFrame(hit);
-            }
-            sendFrame(Frame.ack("OK SEARCH " + rows.size()));
-        }catch(Exception e){
-            sendFrame(Frame.error("SEARCH_FAIL"));
-        }
+        int offset = req.getInt("offset", 0);
+        String me = username;
+        db.submit(DbExecutor.key(me, peer), () -> messageDao.searchConversation(me, peer, q, limit, offset))
+          .whenComplete((rows, err) -> {
+              if (err != null) { sendFrame(Frame.error("SEARCH_FAIL")); return; }
+              for (var r : rows){
+                  Frame hit = new Frame(MessageType.SEARCH_HIT, r.sender, r.recipient, r.body);
+                  hit.transferId = String.valueOf(r.id);
+                  sendFrame(hit);
+              }
+              sendFrame(Frame.ack("OK SEARCH " + rows.size()));
+          });
+    }
+
+    /* ================= SEARCH ALL ================= */
+    private static final int SEARCH_ALL_MAX_PAGE = Integer.getInteger("search.all.maxPage", 50);
+
+    // body {"q":"...","limit":20,"cursor":"..."} → 1 frame SEARCH_ALL (HistoryPage, dòng theo thứ hạng)
+    private void handleSearchAll(Frame f) {
+        JsonFields req = JsonFields.parse(f.body);
+        String q = req.get("q", "");
+        String cursor = req.get("cursor", "");
+        int limit = Math.max(1, Math.min(req.getInt("limit", 20), SEARCH_ALL_MAX_PAGE));
+        String me = username;
+        if (me == null) { sendFrame(Frame.error("SEARCH_FAIL")); return; }
+
+        db.submit(DbExecutor.key(me, me), () -> {
+            var page = messageDao.searchAll(me, q, limit, cursor);
+            Frame out = historyPage(null, page.rows()).toFrame(MessageType.SEARCH_ALL, "", me, page.next());
+            out.body = q;
+            return out;
+        }).whenComplete((out, err) -> {
+            if (err != null) { sendFrame(Frame.error("SEARCH_FAIL")); return; }
+            sendFrame(out);
+        });
+    }
+
+    /* ================= PRESENCE ================= */
+    // body = username mỗi dòng (PresenceUpdate.names) → thay danh sách theo dõi, trả 1 frame PRESENCE đủ trạng thái
+    private void handlePresenceSub(Frame f) {
+        if (username == null) { sendFrame(Frame.error("PRESENCE_FAIL")); return; }
+        presence.subscribe(this, username, PresenceUpdate.parseNames(f.body));
+    }
+
+    /* ================= USER DIRECTORY ================= */
+    private static final int USER_PAGE_MAX = Integer.getInteger("user.directory.maxPage", 500);
+
+    // body {"q":"an","offset":0,"limit":50} → cùng type, body UserList (dòng đầu = q gửi lên), transferId = offset kế.
+    // USER_SEARCH: q = câu tìm; USER_LIST: q = mã lượt gom của client, chỉ gửi trả để client bỏ trang của lượt cũ
+    // chỉ đọc RAM nên trả lời ngay trên thread đọc
+    private void handleUserDirectory(Frame f) {
+        if (username == null) { sendFrame(Frame.error("USER_LIST_FAIL")); return; }
+        JsonFields req = JsonFields.parse(f.body);
+        String q = UserList.oneLine(req.get("q", ""));
+        int offset = Math.max(0, req.getInt("offset", 0));
+        int limit = Math.max(1, Math.min(req.getInt("limit", 200), USER_PAGE_MAX));
+        UserDirectory.Page page = f.type == MessageType.USER_SEARCH
+                ? users.search(q, username, offset, limit)
+                : users.list(username, offset, limit);
+        Frame out = new Frame(f.type, "", username, UserList.encode(q, page.users()));
+        out.transferId = page.next() < 0 ? "" : String.valueOf(page.next());
+        sendFrame(out);
+    }
+
+    /* ================= AVATAR ================= */
+    // body {"user":"bob","variant":"list","hash":"<bản client đang có>"} → 1 frame AVATAR:
+    // transferId = hash hiện tại ("" = không có ảnh), payload rỗng nếu hash trùng (client giữ bản cũ)
+    private void handleAvatar(Frame f) {
+        if (username == null) { sendFrame(Frame.error("AVATAR_FAIL")); return; }
+        JsonFields req = JsonFields.parse(f.body);
+        String user = req.get("user", "");
+        AvatarVariant v = AvatarVariant.of(req.get("variant", ""));
+        String have = req.get("hash", "");
+        if (user.isEmpty()) { sendFrame(Frame.error("AVATAR_FAIL")); return; }
+        String me = username;
+
+        AvatarStore.Avatar a = avatars.cached(user, v);
+        if (a != null) { sendFrame(avatarFrame(user, v, a, have)); return; }
+        db.submit(DbExecutor.key(user, user), () -> avatars.get(user, v))
+          .whenComplete((got, err) -> {
+              if (err != null) {
+                  Log.warn("AVATAR", "Load avatar " + user + " failed: " + err.getMessage());
+                  // vẫn trả AVATAR để client bỏ lượt chờ của đúng ảnh này (lần sau hỏi lại)
+                  String body = new JsonWriter(64).field("user", user).field("variant", v.key).field("error", true).end();
+                  sendFrame(new Frame(MessageType.AVATAR, "", me, body));
+                  return;
+              }
+              sendFrame(avatarFrame(user, v, got, have));
+          });
+    }
+
+    private Frame avatarFrame(String user, AvatarVariant v, AvatarStore.Avatar a, String have) {
+        String body = new JsonWriter(64).field("user", user).field("variant", v.key).field("mime", a.mime()).end();
+        Frame out = new Frame(MessageType.AVATAR, "", username, body);
+        out.transferId = a.hash();
+        out.bin = a.hash().equals(have) ? new byte[0] : a.data();
+        out.last = true;
+        return out;
     }
 
     /* ================= HISTORY ================= */
+    private static final int HISTORY_MAX_PAGE = Integer.getInteger("history.maxPage", 200);
+
     private void handleHistory(Frame f) {
         String peer = f.recipient;
         int limit = 50;
-        try { limit = Integer.parseInt(f.body); } catch (Exception ignore) {}
-
+        long beforeId = 0L;
         try {
-            var rows = messageDao.loadConversation(username, peer, limit);
-            for (var r : rows) {
-                boolean incoming = !r.sender.equals(username);
-                String txt = incoming
-                        ? "[HIST IN] " + r.sender + ": " + r.body
-                        : "[HIST OUT] " + r.body;
-                Frame hist = new Frame(MessageType.HISTORY, r.sender, r.recipient, txt);
-                hist.transferId = String.valueOf(r.id);
-                sendFrame(hist);
+            if (f.body != null && !f.body.isBlank()) {
+                String body = f.body.trim();
+                if (body.startsWith("{")) {
+                    // {"limit":50,"beforeId":123} — trang cũ hơn theo keyset
+                    JsonFields req = JsonFields.parse(body);
+                    limit    = req.getInt("limit", limit);
+                    beforeId = req.getLong("beforeId", 0L);
+                } else {
+                    limit = Integer.parseInt(body);
+                }
+            }
+        } catch (Exception ignore) {}
+        int pageSize = Math.max(1, Math.min(limit, HISTORY_MAX_PAGE));
+        long cursor = beforeId;
+        String me = username;
+        boolean batch = proto.has(Capabilities.HISTORY_BATCH);
+
+        // trang + metadata file dựng luôn trên làn DB; callback chỉ gửi frame
+        db.submit(DbExecutor.key(me, peer), () -> {
+            var rows = messageDao.loadConversation(me, peer, pageSize, cursor);
+            List<Frame> out = batch
+                    ? new ArrayList<>(List.of(historyPage(peer, rows).toFrame(peer, me, cursor)))
+                    : historyFrames(me, rows);
+            out.add(Frame.ack("OK HISTORY " + rows.size()));
+            return out;
+        }).whenComplete((frames, err) -> {
+            if (err != null) { sendFrame(Frame.error("HISTORY_FAIL")); return; }
+            for (Frame hf : frames) sendFrame(hf);
+        });
+    }
+
+    /** Kiểu cũ (client không có HISTORY_BATCH): 1 frame HISTORY mỗi dòng. */
+    private static List<Frame> historyFrames(String me, List<MessageDao.HistoryRow> rows) {
+        List<Frame> out = new ArrayList<>(rows.size() + 1);
+        for (var r : rows) {
+            boolean incoming = !r.sender.equals(me);
+            String txt = incoming
+                    ? "[HIST IN] " + r.sender + ": " + r.body
+                    : "[HIST OUT] " + r.body;
+            Frame hist = new Frame(MessageType.HISTORY, r.sender, r.recipient, txt);
+            hist.transferId = String.valueOf(r.id);
+            out.add(hist);
+        }
+        return out;
+    }
+
+    /** Trang lịch sử kèm metadata file của các dòng [FILE]/[AUDIO]/[VIDEO] (1 truy vấn cho cả trang). */
+    private HistoryPage historyPage(String peer, List<MessageDao.HistoryRow> rows) throws SQLException {
+        List<HistoryPage.Row> out = new ArrayList<>(rows.size());
+        List<Long> fileMsgIds = new ArrayList<>();
+        for (var r : rows) {
+            long at = r.createdAt == null ? 0L : r.createdAt.getTime();
+            out.add(new HistoryPage.Row(r.id, at, r.sender, r.recipient, r.body));
+            if (r.body != null && (r.body.startsWith("[FILE]") || r.body.startsWith("[AUDIO]") || r.body.startsWith("[VIDEO]")))
+                fileMsgIds.add(r.id);
+        }
+        if (fileDao != null && !fileMsgIds.isEmpty()) {
+            Map<Long, FileDao.FileRecord> files = fileDao.getByMessageIds(fileMsgIds);
+            for (HistoryPage.Row row : out) {
+                FileDao.FileRecord fr = files.get(row.id);
+                if (fr != null) row.file(fr.id, fr.fileName, fr.mimeType, fr.fileSize);
             }
-            sendFrame(Frame.ack("OK HISTORY " + rows.size()));
-        } catch (SQLException e) {
-            sendFrame(Frame.error("HISTORY_FAIL"));
         }
+        return new HistoryPage(out);
     }
 
     /* ================= FILE (hợp nhất cả AUDIO) ================= */
@@ -222,12 +514,12 @@ public class ClientHandler implements Runnable {
         try {
             // --- META (FILE_META / AUDIO_META) ---
             if (f.type == MessageType.FILE_META || f.type == MessageType.AUDIO_META) {
-                String body = (f.body == null ? "" : f.body);
-                String to   = pickJson(body, "to");
-                String name = pickJson(body, "name");
-                String mime = pickJson(body, "mime");
-                String fid  = pickJson(body, "fileId");
-                long size   = parseLongSafe(pickJson(body, "size"), 0);
+                FrameMeta meta = FrameMeta.of(f);
+                String to   = meta.get("to", f.recipient);
+                String name = meta.get("name");
+                String mime = meta.get("mime");
+                String fid  = meta.get("fileId", meta.get("audioId"));
+                long size   = meta.getLong("size", 0);
 
                 if (fid == null || fid.isBlank()) fid = java.util.UUID.randomUUID().toString();
                 if (name == null || name.isBlank()) name = "file-" + fid;
@@ -256,9 +548,9 @@ public class ClientHandler implements Runnable {
                 if (!upFileId.equals(f.transferId)) throw new IOException("Mismatched fileId");
                 if (f.seq != upExpectedSeq) throw new IOException("Out-of-order chunk");
 
-                int len = (f.bin == null ? 0 : f.bin.length);
+                int len = f.payloadLength();
                 if (upWritten + len > Frame.MAX_FILE_BYTES) throw new IOException("File exceeds limit");
-                if (len > 0) { upOut.write(f.bin); upWritten += len; }
+                if (len > 0) { f.writePayloadTo(upOut); upWritten += len; }
                 upExpectedSeq++;
 
                 if (f.last) {
@@ -269,43 +561,42 @@ public class ClientHandler implements Runnable {
                     ack.transferId = upFileId;
                     sendFrame(ack);
 
-                    long msgId = 0L;
-                    long fileId = 0L;
-
-                    try {
-                        // tạo 1 message text đại diện file
-                        Frame fileMsg = new Frame(MessageType.DM, username, upToUser, "[FILE] " + upOrigName);
-                        msgId = messageDao.saveSentReturnId(fileMsg);
-
-                        String filePath = new File(UPLOAD_DIR, sanitizeFilename(upFileId)).getAbsolutePath();
-                        fileId = fileDao.save(msgId, upOrigName, filePath, upMime, upWritten);
-
-                        if (fileId > 0) uuidToFileId.put(upFileId, fileId);
-                        if (msgId  > 0) uuidToMsgId.put(upFileId, msgId);
-                    } catch (SQLException sqle) {
-                        System.err.println("[DB] Failed to save file metadata: " + sqle.getMessage());
-                    }
-
-                    // push sự kiện tới người nhận
-                    if (upToUser != null && !upToUser.isBlank()) {
-                        ClientHandler target = online.get(upToUser);
-                        if (target != null) {
-                            String savedName = sanitizeFilename(upOrigName);
-                            String json = "{"
-                                    + "\"from\":\"" + escJson(username) + "\","
-                                    + "\"to\":\""   + escJson(upToUser) + "\","
-                                    + "\"uuid\":\"" + escJson(upFileId) + "\","
-                                    + "\"id\":\""   + escJson(upFileId) + "\","
-                                    + "\"fileId\":" + fileId + ","
-                                    + "\"messageId\":" + msgId + ","
-                                    + "\"name\":\"" + escJson(savedName) + "\","
-                                    + "\"mime\":\"" + escJson(upMime) + "\","
-                                    + "\"bytes\":"  + upWritten
-                                    + "}";
-                            Frame evt = new Frame(MessageType.FILE_EVT, username, upToUser, json);
+                    // lưu DB không chặn vòng đọc: message đại diện xếp vào MessageWriter ngay (giữ thứ tự với DM),
+                    // bản ghi file chạy trên làn DB khi đã có id; xong mới báo người nhận
+                    String me = username, to = upToUser, fid = upFileId, origName = upOrigName, mime = upMime;
+                    long bytes = upWritten;
+                    String filePath = new File(UPLOAD_DIR, sanitizeFilename(fid)).getAbsolutePath();
+                    long[] ids = new long[2]; // {msgId, fileId}
+                    Frame fileMsg = new Frame(MessageType.DM, me, to, "[FILE] " + origName);
+                    messageDao.saveSentAsync(fileMsg)
+                        .thenCompose(msgId -> {
+                            ids[0] = msgId;
+                            return db.submit(DbExecutor.key(me, to), () -> fileDao.save(msgId, origName, filePath, mime, bytes));
+                        })
+                        .whenComplete((fileId, err) -> {
+                            if (err != null) {
+                                Log.error("DB", "Failed to save file metadata: " + err.getMessage());
+                            } else {
+                                ids[1] = fileId;
+                                if (fileId > 0) uuidToFileId.put(fid, fileId);
+                                if (ids[0] > 0) uuidToMsgId.put(fid, ids[0]);
+                            }
+
+                            // push sự kiện tới người nhận
+                            if (to == null || to.isBlank()) return;
+                            ClientHandler target = online.get(to);
+                            if (target == null) return;
+                            Frame evt = new Frame(MessageType.FILE_EVT, me, to, "");
+                            evt.meta = new FrameMeta()
+                                    .put("uuid", fid)
+                                    .put("id", fid)
+                                    .put("fileId", ids[1])
+                                    .put("messageId", ids[0])
+                                    .put("name", sanitizeFilename(origName))
+                                    .put("mime", mime)
+                                    .put("bytes", bytes);
                             target.sendFrame(evt);
-                        }
-                    }
+                        });
 
                     // reset state
                     upFileId = null; upToUser = null; upOrigName = null; upMime = null;
@@ -323,75 +614,91 @@ public class ClientHandler implements Runnable {
 
     /* ================= DOWNLOAD (hợp nhất) ================= */
     private void handleDownloadFile(Frame f) {
-        try {
-            String body = (f.body == null) ? "" : f.body.trim();
-
-            Long fileId = null;
-            Long messageId = null;
+        String body = (f.body == null) ? "" : f.body.trim();
 
-            String fileIdStr = jsonGet(body, "fileId");
-            String msgIdStr  = jsonGet(body, "messageId");
-            String legacyId  = jsonGet(body, "id"); // uuid cũ
+        Long fileId = null;
+        Long messageId = null;
 
-            if (fileIdStr != null && !fileIdStr.isBlank()) { try { fileId = Long.parseLong(fileIdStr); } catch (Exception ignore) {} }
-            if (msgIdStr  != null && !msgIdStr.isBlank())  { try { messageId = Long.parseLong(msgIdStr); }  catch (Exception ignore) {} }
+        JsonFields req = JsonFields.parse(body);
+        String legacyId  = req.get("id"); // uuid cũ
+        long fid = req.getLong("fileId", Long.MIN_VALUE);
+        long mid = req.getLong("messageId", Long.MIN_VALUE);
+        if (fid != Long.MIN_VALUE) fileId = fid;
+        if (mid != Long.MIN_VALUE) messageId = mid;
 
-            if (fileId == null && messageId == null) {
-                long n = parseLongSafe(body, 0L);
-                if (n > 0) fileId = n;
-            }
-
-            String uuid = null;
-            if (legacyId != null && !legacyId.isBlank()) uuid = legacyId;
-            else if ((fileId == null && messageId == null) && body.length() >= 32 && body.contains("-")) uuid = body;
-            if (uuid != null) {
-                Long mappedFileId = uuidToFileId.get(uuid);
-                Long mappedMsgId  = uuidToMsgId.get(uuid);
-                if (fileId == null && mappedFileId != null) fileId = mappedFileId;
-                if (messageId == null && mappedMsgId  != null) messageId = mappedMsgId;
-            }
+        if (fileId == null && messageId == null) {
+            long n = parseLongSafe(body, 0L);
+            if (n > 0) fileId = n;
+        }
 
-            FileDao.FileRecord fileRow = null;
-            if (fileId != null && fileId > 0) fileRow = fileDao.getById(fileId);
-            if (fileRow == null && messageId != null && messageId > 0) fileRow = fileDao.getByMessageId(messageId);
+        String uuid = null;
+        if (legacyId != null && !legacyId.isBlank()) uuid = legacyId;
+        else if ((fileId == null && messageId == null) && body.length() >= 32 && body.contains("-")) uuid = body;
+        if (uuid != null) {
+            Long mappedFileId = uuidToFileId.get(uuid);
+            Long mappedMsgId  = uuidToMsgId.get(uuid);
+            if (fileId == null && mappedFileId != null) fileId = mappedFileId;
+            if (messageId == null && mappedMsgId  != null) messageId = mappedMsgId;
+        }
 
+        long byId = fileId == null ? 0L : fileId;
+        long byMsg = messageId == null ? 0L : messageId;
+        String me = username;
+        long lane = DbExecutor.key(me, me);
+        db.submit(lane, () -> {
+            FileDao.FileRecord row = null;
+            if (byId > 0) row = fileDao.getById(byId);
+            if (row == null && byMsg > 0) row = fileDao.getByMessageId(byMsg);
+            return row;
+        }).whenComplete((fileRow, err) -> {
+            if (err != null) { sendFrame(Frame.error("DB_ERROR_FILE_FETCH")); return; }
             if (fileRow == null) { sendFrame(Frame.error("INVALID_FILE_ID")); return; }
+            // đọc đĩa + chờ hàng đợi gửi (BULK) trên thread stream của phiên: tải lần lượt, không xen chunk
+            if (!stream(() -> streamFile(me, fileRow))) sendFrame(Frame.error("DOWNLOAD_FAIL"));
+        });
+    }
 
+    private void streamFile(String me, FileDao.FileRecord fileRow) {
+        try {
             File file = new File(fileRow.filePath);
             if (!file.exists()) { sendFrame(Frame.error("FILE_NOT_FOUND_DISK")); return; }
 
             String mime = (fileRow.mimeType != null) ? fileRow.mimeType : "application/octet-stream";
             String name = (fileRow.fileName  != null) ? fileRow.fileName  : ("file-" + fileRow.id);
 
-            String metaJson = "{"
-                    + "\"from\":\"" + escJson(username) + "\","
-                    + "\"to\":\"\","
-                    + "\"name\":\"" + escJson(name) + "\","
-                    + "\"mime\":\"" + escJson(mime) + "\","
-                    + "\"fileId\":\"" + fileRow.id + "\","
-                    + "\"messageId\":\"" + (fileRow.messageId) + "\","
-                    + "\"size\":" + file.length()
-                    + "}";
-            sendFrame(new Frame(MessageType.FILE_META, username, "", metaJson));
-
-            try (InputStream fis = new BufferedInputStream(new FileInputStream(file))) {
-                byte[] buf = new byte[Frame.CHUNK_SIZE];
-                int n, seq = 0;
+            Frame meta = new Frame(MessageType.FILE_META, me, "", "");
+            meta.meta = new FrameMeta()
+                    .put("name", name)
+                    .put("mime", mime)
+                    // JSON cũ của FILE_META luôn để id dạng chuỗi: giữ nguyên cho client cũ
+                    .put("fileId", String.valueOf(fileRow.id))
+                    .put("messageId", String.valueOf(fileRow.messageId))
+                    .put("size", file.length());
+            sendFrame(meta);
+
+            try (InputStream fis = new FileInputStream(file)) {
+                int seq = 0;
                 long rem = file.length();
-                while ((n = fis.read(buf)) != -1) {
+                while (true) {
+                    // mỗi chunk 1 buffer riêng của pool: frame còn nằm trong hàng đợi gửi
+                    // sau khi vòng lặp đọc tiếp; writer trả buffer về pool sau khi ghi
+                    ByteBuffer buf = BufferPool.SHARED.acquire(Frame.CHUNK_SIZE);
+                    int n = fis.readNBytes(buf.array(), buf.arrayOffset(), Frame.CHUNK_SIZE);
+                    if (n <= 0) { BufferPool.SHARED.release(buf); break; }
                     rem -= n;
-                    boolean last = (rem == 0);
-                    byte[] slice = (n == buf.length) ? buf : Arrays.copyOf(buf, n);
-                    Frame ch = new Frame(MessageType.FILE_CHUNK, username, "", "");
+                    Frame ch = new Frame(MessageType.FILE_CHUNK, me, "", "");
                     ch.transferId = String.valueOf(fileRow.id);
                     ch.seq = seq++;
-                    ch.last = last;
-                    ch.bin = slice;
-                    sendFrame(ch);
+                    ch.last = (rem <= 0);
+                    ch.payload = buf.limit(n).slice();
+                    ch.attachPooled(buf);
+                    if (sendFrame(ch, OutboundQueue.Kind.BULK) != OutboundQueue.Result.QUEUED) {
+                        ch.release(); // phiên đã đóng / tràn: dừng đọc file
+                        break;
+                    }
+                    if (ch.last) break;
                 }
             }
-        } catch (SQLException e) {
-            sendFrame(Frame.error("DB_ERROR_FILE_FETCH"));
         } catch (IOException e) {
             sendFrame(Frame.error("DOWNLOAD_FAIL"));
         }
@@ -404,30 +711,30 @@ public class ClientHandler implements Runnable {
         try {
             if (f.body != null && !f.body.isBlank()) {
                 String body = f.body.trim();
-                String limitStr = jsonGet(body, "limit");
-                String offsetStr = jsonGet(body, "offset");
-                if (limitStr != null)  limit  = Integer.parseInt(limitStr);
-                if (offsetStr != null) offset = Integer.parseInt(offsetStr);
-                if (limitStr == null && offsetStr == null) limit = Integer.parseInt(body);
+                JsonFields req = JsonFields.parse(body);
+                limit  = req.getInt("limit", limit);
+                offset = req.getInt("offset", offset);
+                if (!req.has("limit") && !req.has("offset")) limit = Integer.parseInt(body);
             }
         } catch (Exception ignore) {}
 
-        try {
-            var rows = fileDao.listByUserPaged(username, limit, offset);
-            for (var r : rows) {
-                String info = String.format(
-                    "[FILE HIST] %s (%d bytes, %s)",
-                    r.fileName, r.fileSize,
-                    (r.uploadedAt != null ? r.uploadedAt.toString() : "unknown")
-                );
-                Frame hist = new Frame(MessageType.FILE_HISTORY, username, username, info);
-                hist.transferId = String.valueOf(r.id);
-                sendFrame(hist);
-            }
-            sendFrame(Frame.ack("OK FILE_HISTORY " + rows.size()));
-        } catch (SQLException e) {
-            sendFrame(Frame.error("FILE_HISTORY_FAIL"));
-        }
+        int pageSize = limit, skip = offset;
+        String me = username;
+        db.submit(DbExecutor.key(me, me), () -> fileDao.listByUserPaged(me, pageSize, skip))
+          .whenComplete((rows, err) -> {
+              if (err != null) { sendFrame(Frame.error("FILE_HISTORY_FAIL")); return; }
+              for (var r : rows) {
+                  String info = String.format(
+                      "[FILE HIST] %s (%d bytes, %s)",
+                      r.fileName, r.fileSize,
+                      (r.uploadedAt != null ? r.uploadedAt.toString() : "unknown")
+                  );
+                  Frame hist = new Frame(MessageType.FILE_HISTORY, me, me, info);
+                  hist.transferId = String.valueOf(r.id);
+                  sendFrame(hist);
+              }
+              sendFrame(Frame.ack("OK FILE_HISTORY " + rows.size()));
+          });
     }
 
     /* ================= DELETE FILE (hợp nhất) ================= */
@@ -435,21 +742,20 @@ public class ClientHandler implements Runnable {
         long msgId = parseLongSafe(f.body, 0L);
         if (msgId <= 0) { sendFrame(Frame.error("INVALID_FILE_ID")); return; }
 
-        try {
+        String me = username;
+        db.submit(DbExecutor.key(me, me), () -> {
             var row = fileDao.getByMessageId(msgId);
             boolean deleted = fileDao.deleteByMessageId(msgId);
-            if (deleted) {
-                if (row != null) {
-                    File onDisk = new File(row.filePath);
-                    if (onDisk.exists()) onDisk.delete();
-                }
-                sendFrame(Frame.ack("OK FILE_DELETED"));
-            } else {
-                sendFrame(Frame.error("FILE_NOT_FOUND"));
+            if (deleted && row != null) {
+                File onDisk = new File(row.filePath);
+                if (onDisk.exists()) onDisk.delete();
             }
-        } catch (SQLException e) {
-            sendFrame(Frame.error("DB_FILE_DELETE_FAIL"));
-        }
+            return deleted;
+        }).whenComplete((deleted, err) -> {
+            if (err != null) sendFrame(Frame.error("DB_FILE_DELETE_FAIL"));
+            else if (deleted) sendFrame(Frame.ack("OK FILE_DELETED"));
+            else sendFrame(Frame.error("FILE_NOT_FOUND"));
+        });
     }
 
     /* ================= CALL ================= */
@@ -459,10 +765,12 @@ public class ClientHandler implements Runnable {
 
     /* ================= DELETE MESSAGE ================= */
     private void handleDeleteMessage(Frame f) {
-        try {
-            long id = parseLongSafe(f.body, 0L);
-            if (id <= 0) { sendFrame(Frame.error("BAD_ID")); return; }
-            String peer = messageDao.deleteByIdReturningPeer(id, username);
+        long id = parseLongSafe(f.body, 0L);
+        if (id <= 0) { sendFrame(Frame.error("BAD_ID")); return; }
+        String me = username;
+
+        DbExecutor.SqlCall<String> delete = () -> {
+            String peer = messageDao.deleteByIdReturningPeer(id, me);
 
             // xoá file nếu có
             try {
@@ -473,38 +781,110 @@ public class ClientHandler implements Runnable {
                     if (toDelete.exists()) toDelete.delete();
                 }
             } catch (SQLException ignore) {}
+            return peer;
+        };
+        messageLane(me, f.recipient, id)
+          .thenCompose(lane -> lane == null ? CompletableFuture.<String>completedFuture(null) : db.submit(lane, delete))
+          .whenComplete((peer, err) -> {
+              if (err != null) { sendFrame(Frame.error("DELETE_FAIL")); return; }
+              if (peer == null) { sendFrame(Frame.error("DENIED_OR_NOT_FOUND")); return; }
+
+              Frame ack = Frame.ack("OK DELETE");
+              ack.transferId = String.valueOf(id);
+              sendFrame(ack);
+
+              Frame evt = new Frame(MessageType.DELETE_MSG, me, peer, "");
+              evt.transferId = String.valueOf(id);
+              ClientHandler peerHandler = online.get(peer);
+              if (peerHandler != null) peerHandler.sendFrame(evt);
+          });
+    }
 
-            if (peer == null) { sendFrame(Frame.error("DENIED_OR_NOT_FOUND")); return; }
-
-            Frame ack = Frame.ack("OK DELETE");
-            ack.transferId = String.valueOf(id);
-            sendFrame(ack);
-
-            Frame evt = new Frame(MessageType.DELETE_MSG, username, peer, "");
-            evt.transferId = String.valueOf(id);
-            ClientHandler peerHandler = online.get(peer);
-            if (peerHandler != null) peerHandler.sendFrame(evt);
-
-        } catch (Exception e) {
-            sendFrame(Frame.error("DELETE_FAIL"));
-        }
+    /**
+     * Làn hội thoại cho sửa/xoá 1 tin (null = tin không có / không phải của mình). Client gửi kèm người còn lại
+     * thì dùng ngay; client cũ không gửi → tra theo id trước (việc gửi sau đó có thể vào làn trước lần tra này).
+     */
+    private CompletableFuture<Long> messageLane(String me, String peer, long messageId) {
+        if (peer != null && !peer.isBlank()) return CompletableFuture.completedFuture(DbExecutor.key(me, peer));
+        return db.submit(DbExecutor.key(me, me), () -> messageDao.peerOf(messageId, me))
+                 .thenApply(p -> p == null ? null : DbExecutor.key(me, p));
     }
 
     /* ================= Helpers ================= */
     private void broadcast(String msg, boolean excludeSelf) {
         for (ClientHandler c : clients) {
             if (excludeSelf && c == this) continue;
-            c.sendFrame(Frame.ack(msg));
+            if (c.proto.has(Capabilities.PRESENCE)) continue; // đã nhận PRESENCE từ PresenceService
+            // thông báo vào/ra: client chậm thì bỏ trước, không giữ chỗ của DM
+            c.sendFrame(Frame.ack(msg), OutboundQueue.Kind.DROPPABLE);
         }
     }
 
     public void sendFrame(Frame f) {
-        if (binOut == null) return;
+        sendFrame(f, OutboundQueue.classify(f));
+    }
+
+    /**
+     * Không bao giờ chặn thread gọi vì socket của phiên này chậm (trừ frame BULK: chunk file
+     * do chính phiên này tải, backlog offline lúc đăng nhập — xem {@link OutboundQueue}).
+     * Quá ngưỡng → ngắt kết nối.
+     */
+    public OutboundQueue.Result sendFrame(Frame f, OutboundQueue.Kind kind) {
+        return sendFrame(f, kind, null);
+    }
+
+    /** Như trên; {@code onWritten} chạy trên thread ghi sau khi frame đã ghi ra socket. */
+    public OutboundQueue.Result sendFrame(Frame f, OutboundQueue.Kind kind, Runnable onWritten) {
+        int need = Capabilities.requiredFor(f.type);
+        if (need != 0 && !proto.has(need)) {
+            // client không thoả thuận type này → không đọc được phần dữ liệu của frame
+            Log.warn("SERVER", "Drop " + f.type + " for " + username + ": capability not negotiated");
+            return OutboundQueue.Result.DROPPED;
+        }
+        Log.frame("OUT", username, f);
+        OutboundQueue.Result r;
+        if (nio != null) r = nio.send(f, kind, onWritten);
+        else if (closing) return OutboundQueue.Result.DROPPED;
+        else r = outbound.offer(f, kind, onWritten);
+        if (r == OutboundQueue.Result.OVERFLOW) {
+            Log.warn("SERVER", "Slow consumer " + username + ", disconnecting ("
+                    + outbound().queuedBytes() + " bytes queued)");
+            close();
+        }
+        return r;
+    }
+
+    public OutboundQueue outbound() { return nio != null ? nio.outbound() : outbound; }
+
+    public String getUsername() { return username; }
+
+    /** Phiên bản/khả năng đã thoả thuận với client này. */
+    public Capabilities.Handshake protocol() { return proto; }
+
+    /** Writer duy nhất của kết nối: gom các frame đang chờ vào 1 buffer, ghi socket 1 lần mỗi lô. */
+    private void writeLoop() {
         try {
-            FrameIO.write(binOut, f);
-            binOut.flush();
-        } catch (Exception e) {
-            System.err.println("[SERVER] Send frame failed: " + e.getMessage());
+            while (!closing) {
+                Frame f = outbound.poll(1, TimeUnit.SECONDS);
+                int n = 0;
+                while (f != null) {
+                    try { encoder.encodeOrReject(f, username); } finally { f.release(); }
+                    if (++n >= OutboundQueue.MAX_BATCH || encoder.size() >= OutboundQueue.MAX_BATCH_BYTES) break;
+                    f = outbound.poll();
+                }
+                if (n > 0) {
+                    encoder.writeTo(sockOut);
+                    outbound.written();
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            Log.warn("SERVER", "Send frame failed: " + e.getMessage());
+            // socket hỏng → đóng để vòng đọc thoát và dọn phiên
+            try { socket.close(); } catch (IOException ignored) {}
+        } finally {
+            // close() đặt closing + interrupt nên writer luôn ra tới đây; Deflater chỉ thread này dùng
+            encoder.close();
         }
     }
 
@@ -512,6 +892,7 @@ public class ClientHandler implements Runnable {
         if (username != null) {
             CallRouter.getInstance().unregister(username, this);
             online.remove(username, this);
+            presence.offline(username, this);
             broadcast("🔴 " + username + " left", true);
             username = null;
         }
@@ -520,37 +901,20 @@ public class ClientHandler implements Runnable {
     }
 
     public void close() {
+        synchronized (streamLock) {
+            // ngắt việc stream đang chờ hàng đợi gửi (BULK trả về ngay khi bị interrupt)
+            streamsClosed = true;
+            if (streamer != null) streamer.shutdownNow();
+        }
+        if (nio != null) { nio.close(); return; }
+        closing = true;
+        outbound.clear();
+        if (writer != null) writer.interrupt();
         try { if (binIn != null) binIn.close(); } catch (Exception ignored) {}
-        try { if (binOut != null) binOut.close(); } catch (Exception ignored) {}
+        try { if (sockOut != null) sockOut.close(); } catch (Exception ignored) {}
         try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
     }
 
-    private static String jsonGet(String json, String key) {
-        if (json == null) return null;
-        String kq = "\"" + key + "\"";
-        int i = json.indexOf(kq);
-        if (i < 0) return null;
-        int colon = json.indexOf(':', i + kq.length());
-        if (colon < 0) return null;
-        int j = colon + 1;
-        while (j < json.length() && Character.isWhitespace(json.charAt(j))) j++;
-        if (j >= json.length()) return null;
-        char c = json.charAt(j);
-        if (c == '"') {
-            int end = json.indexOf('"', j + 1);
-            if (end < 0) return null;
-            return json.substring(j + 1, end);
-        } else {
-            int end = j;
-            while (end < json.length() && "-0123456789".indexOf(json.charAt(end)) >= 0) end++;
-            return json.substring(j, end);
-        }
-    }
-    private static String pickJson(String json, String key) { return jsonGet(json, key); }
-    private static String escJson(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
-    }
     private static String sanitizeFilename(String name) {
         if (name == null || name.isBlank()) return "file";
         name = name.replace('\\', '/');
@@ -0,0 +1,255 @@
+package server;
+
+import common.Frame;
+import common.Log;
+import common.MessageType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hàng đợi frame gửi đi của 1 kết nối.
+ * Nhiều thread đẩy vào (chính phiên, phiên khác gửi DM/broadcast, CallRouter),
+ * chỉ 1 bên lấy ra ghi socket → không còn frame bị ghi xen kẽ.
+ * Bên ghi lấy theo lô để gộp nhiều frame vào 1 lần write + 1 lần flush.
+ * Frame có thể kèm 1 callback chạy sau khi lô chứa nó đã ghi xong ra socket ({@link #written()}).
+ *
+ * Chống client chậm: đếm số byte đang chờ và áp chính sách theo loại frame
+ *  - DROPPABLE (broadcast/presence): bỏ khi vượt lowWater
+ *  - BULK (chunk file, backlog offline): bên gửi chờ tới khi hàng đợi xuống dưới lowWater
+ *  - NORMAL (DM, ACK, call...): luôn xếp, trừ khi vượt maxBytes hoặc
+ *    kẹt trên highWater quá lâu → báo OVERFLOW để bên gọi ngắt kết nối
+ */
+public final class OutboundQueue {
+    /** Số frame tối đa gộp vào 1 lô ghi. */
+    public static final int MAX_BATCH = 64;
+    /** Ngừng gom thêm khi lô đã mã hoá vượt mức này (chunk file 64KB/frame). */
+    public static final int MAX_BATCH_BYTES = 256 * 1024;
+    // ngưỡng theo byte: -Dserver.out.lowWater / highWater / maxBytes — giới hạn duy nhất của hàng đợi,
+    // không chặn theo số frame (loạt frame nhỏ tới client chậm vẫn đi theo chính sách watermark)
+    private static final long LOW_WATER  = Long.getLong("server.out.lowWater", 256 * 1024);
+    private static final long HIGH_WATER = Long.getLong("server.out.highWater", 1024 * 1024);
+    private static final long MAX_BYTES  = Long.getLong("server.out.maxBytes", 8 * 1024 * 1024);
+    // kẹt trên highWater lâu hơn mức này thì coi là client chết: -Dserver.out.stallMs
+    private static final long STALL_MS   = Long.getLong("server.out.stallMs", 30_000);
+    // chunk file chờ tối đa bao lâu để hàng đợi rút xuống: -Dserver.out.deferMs
+    private static final long DEFER_MS   = Long.getLong("server.out.deferMs", 15_000);
+
+    public enum Kind { DROPPABLE, BULK, NORMAL }
+
+    public enum Result { QUEUED, DROPPED, OVERFLOW }
+
+    // frame == null: action chạy trên thread ghi khi tới lượt (xem offerAction)
+    private record Entry(Frame frame, int size, Runnable onWritten, Runnable action) {}
+
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile long highSince = 0; // thời điểm vượt highWater (0 = đang dưới)
+    private volatile boolean closed = false;
+
+    // BULK chờ ở đây tới khi writer rút hàng đợi xuống lowWater
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private volatile int waiting = 0;
+
+    // callback của các frame đã lấy ra nhưng lô chưa ghi xong; chỉ thread ghi dùng
+    private final List<Runnable> polled = new ArrayList<>();
+
+    // ==== số liệu cho log throttled sessions ====
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong peakBytes = new AtomicLong();
+    private long reportedDropped, reportedDeferred;
+
+    /** Phân loại mặc định theo type; broadcast/presence do bên gọi chỉ định DROPPABLE. */
+    public static Kind classify(Frame f) {
+        return f.type.isChunk() ? Kind.BULK : Kind.NORMAL;
+    }
+
+    public Result offer(Frame f) {
+        return offer(f, classify(f));
+    }
+
+    public Result offer(Frame f, Kind kind) {
+        return offer(f, kind, null);
+    }
+
+    /**
+     * @param onWritten chạy trên thread ghi sau khi frame đã ghi ra socket (null = không cần);
+     *                  không chạy nếu frame bị bỏ hoặc kết nối đóng trước đó → phải nhẹ, không chặn.
+     */
+    public Result offer(Frame f, Kind kind, Runnable onWritten) {
+        if (f == null || closed) return Result.DROPPED;
+        int size = sizeOf(f);
+
+        switch (kind) {
+            case DROPPABLE -> {
+                if (queuedBytes.get() >= LOW_WATER) {
+                    dropped.incrementAndGet();
+                    return Result.DROPPED;
+                }
+            }
+            case BULK -> {
+                if (queuedBytes.get() >= HIGH_WATER && !awaitDrained()) {
+                    // phiên đang đóng (thread stream bị ngắt): không phải client chậm
+                    if (closed || Thread.currentThread().isInterrupted()) return Result.DROPPED;
+                    overflows.incrementAndGet();
+                    return Result.OVERFLOW;
+                }
+            }
+            case NORMAL -> {
+                long hs = highSince;
+                if (queuedBytes.get() + size > MAX_BYTES
+                        || (hs != 0 && System.currentTimeMillis() - hs > STALL_MS)) {
+                    overflows.incrementAndGet();
+                    return Result.OVERFLOW;
+                }
+            }
+        }
+
+        Entry e = new Entry(f, size, onWritten, null);
+        queue.add(e);
+        long now = queuedBytes.addAndGet(size);
+        if (undoIfClosed(e)) return Result.DROPPED;
+        peakBytes.accumulateAndGet(now, Math::max);
+        if (now >= HIGH_WATER && highSince == 0) highSince = System.currentTimeMillis();
+        return Result.QUEUED;
+    }
+
+    /** Chờ hàng đợi xuống dưới lowWater; false nếu hết hạn hoặc kết nối đã đóng. */
+    private boolean awaitDrained() {
+        deferred.incrementAndGet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEFER_MS);
+        lock.lock();
+        waiting++;
+        try {
+            while (!closed && queuedBytes.get() > LOW_WATER) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                drained.awaitNanos(left);
+            }
+            return !closed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting--;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Xếp {@code action} vào hàng đợi như 1 frame: thread ghi chạy nó sau khi đã mã hoá mọi frame xếp trước
+     * và trước mọi frame xếp sau (vd. đổi định dạng của encoder). false nếu hàng đợi đã đóng.
+     */
+    public boolean offerAction(Runnable action) {
+        if (closed) return false;
+        Entry e = new Entry(null, 0, null, action);
+        queue.add(e);
+        return !undoIfClosed(e);
+    }
+
+    // clear() chạy xen giữa lần kiểm tra closed đầu và lúc thêm: gỡ lại entry vừa thêm, không để sót sau clear
+    private boolean undoIfClosed(Entry e) {
+        if (!closed) return false;
+        queue.remove(e);
+        queuedBytes.set(0);
+        return true;
+    }
+
+    /** Chờ tới khi có frame (hoặc hết thời gian → null). */
+    public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return next(queue.poll(timeout, unit));
+    }
+
+    /** Lấy 1 frame nếu có, không chặn. */
+    public Frame poll() {
+        return next(queue.poll());
+    }
+
+    // chạy các action tới frame kế tiếp (hoặc hết hàng đợi)
+    private Frame next(Entry e) {
+        while (e != null && e.frame == null) {
+            try {
+                e.action.run();
+            } catch (RuntimeException ex) {
+                Log.error("SERVER", "Outbound action failed", ex);
+            }
+            e = queue.poll();
+        }
+        if (e == null) return null;
+        released(e);
+        return e.frame;
+    }
+
+    /** Thread ghi gọi sau khi đã ghi xong mọi frame lấy ra từ lần gọi trước: chạy callback của chúng. */
+    public void written() {
+        if (polled.isEmpty()) return;
+        for (Runnable r : polled) {
+            try {
+                r.run();
+            } catch (RuntimeException ex) {
+                Log.error("SERVER", "onWritten callback failed", ex);
+            }
+        }
+        polled.clear();
+    }
+
+    private void released(Entry e) {
+        if (e.onWritten != null) polled.add(e.onWritten);
+        if (closed) return;
+        long now = queuedBytes.addAndGet(-e.size);
+        if (now < HIGH_WATER) highSince = 0;
+        if (now <= LOW_WATER && waiting > 0) signalDrained();
+    }
+
+    private void signalDrained() {
+        lock.lock();
+        try { drained.signalAll(); } finally { lock.unlock(); }
+    }
+
+    public boolean isEmpty() { return queue.isEmpty(); }
+
+    public int size() { return queue.size(); }
+
+    public long queuedBytes() { return queuedBytes.get(); }
+
+    /** Đóng hàng đợi: bỏ frame đang chờ và đánh thức các bên đang chờ BULK. */
+    public void clear() {
+        closed = true;
+        queue.clear();
+        queuedBytes.set(0);
+        signalDrained();
+    }
+
+    /**
+     * Tóm tắt nếu phiên bị hạn chế kể từ lần gọi trước (có drop/defer hoặc đang trên lowWater),
+     * null nếu bình thường. Chỉ thread báo cáo định kỳ gọi.
+     */
+    public String throttleReport() {
+        long d = dropped.get(), df = deferred.get(), q = queuedBytes.get();
+        long newDropped = d - reportedDropped, newDeferred = df - reportedDeferred;
+        reportedDropped = d;
+        reportedDeferred = df;
+        if (newDropped == 0 && newDeferred == 0 && q < LOW_WATER) return null;
+        return "queued=" + q + "B (" + queue.size() + " frames) peak=" + peakBytes.get()
+                + "B dropped=+" + newDropped + "/" + d + " deferred=+" + newDeferred + "/" + df
+                + " overflows=" + overflows.get();
+    }
+
+    /** Ước lượng số byte frame chiếm trên dây (chuỗi tính theo số ký tự). */
+    private static int sizeOf(Frame f) {
+        int n = 15 + len(f.sender) + len(f.recipient) + len(f.body) + len(f.transferId);
+        if (f.bin != null || f.payload != null) n += 9 + f.payloadLength();
+        if (f.meta != null) n += f.meta.encodedLength();
+        return n;
+    }
+
+    private static int len(String s) { return s == null ? 0 : s.length(); }
+}
@@ -0,0 +1,288 @@
+package server;
+
+import common.Frame;
+import common.Log;
+import common.MessageType;
+import common.PresenceUpdate;
+import server.dao.DbExecutor;
+import server.dao.UserDAO;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Trạng thái online/last_seen do server giữ (nguồn là {@code ServerMain.online}), đẩy cho client thay vì
+ * mỗi client quét bảng users 3 giây/lần.
+ *
+ * - Client gửi PRESENCE_SUB = danh sách user đang hiện → nhận ngay 1 frame PRESENCE đủ trạng thái,
+ *   sau đó chỉ nhận thay đổi của đúng các user đó.
+ * - Thread "presence" gom thay đổi mỗi -Dpresence.flushMs: mỗi người theo dõi nhận tối đa 1 frame / lượt.
+ *   Offline chỉ công bố sau -Dpresence.flapMs; đăng nhập lại trong khoảng đó (mất mạng chốc lát) thì
+ *   người theo dõi không thấy gì.
+ * - Frame PRESENCE gửi kiểu DROPPABLE; bị bỏ vì client chậm → lượt sau gửi lại đủ trạng thái cho client đó.
+ * - online/last_seen ghi vào DB kiểu write-behind: gom mỗi -Dpresence.persistMs thành 1 batch UPDATE
+ *   trên {@link DbExecutor}; lỗi thì giữ lại ghi lần sau.
+ * Mọi trạng thái giữ dưới 1 monitor; gửi frame và truy vấn DB đều nằm ngoài khoá.
+ */
+public final class PresenceService {
+    private static final long FLUSH_MS = Long.getLong("presence.flushMs", 250);
+    private static final long FLAP_MS = Long.getLong("presence.flapMs", 3000);
+    private static final long PERSIST_MS = Long.getLong("presence.persistMs", 5000);
+    private static final int MAX_WATCH = Integer.getInteger("presence.maxWatch", 5000);
+
+    private static final long LANE = DbExecutor.key("presence", "presence");
+
+    private final Map<String, ClientHandler> online;
+    private final DbExecutor db;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // trạng thái đã công bố / đã biết (từ DB khi có người theo dõi)
+    private final Map<String, UserDAO.Presence> known = new HashMap<>();
+    private final Set<String> pendingOnline = new HashSet<>();
+    private final Map<String, Long> pendingOffline = new HashMap<>(); // user → lúc ngắt (ms)
+    private final Map<String, Set<ClientHandler>> watchers = new HashMap<>();
+    private final Map<ClientHandler, Set<String>> watching = new HashMap<>();
+    private final Set<ClientHandler> resync = new HashSet<>();
+    private Map<String, UserDAO.Presence> dirty = new HashMap<>();
+
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder flaps = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder persisted = new LongAdder();
+
+    public PresenceService(Map<String, ClientHandler> online, DbExecutor db) {
+        this.online = online;
+        this.db = db;
+    }
+
+    /** Xoá trạng thái online cũ trong DB (server vừa khởi động) và bật vòng gom. */
+    public void start() {
+        try {
+            int n = UserDAO.resetPresence(Instant.now().toString());
+            if (n > 0) Log.info("PRESENCE", "Reset " + n + " stale online users");
+        } catch (SQLException e) {
+            Log.warn("PRESENCE", "Reset presence failed: " + e.getMessage());
+        }
+        timer.scheduleWithFixedDelay(this::flush, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(this::persist, PERSIST_MS, PERSIST_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** {@code user} vừa đăng nhập (đã có trong {@code online}). */
+    public void online(String user) {
+        synchronized (this) {
+            if (pendingOffline.remove(user) != null) {
+                flaps.increment(); // ngắt rồi vào lại trong flapMs: chưa ai thấy offline
+                return;
+            }
+            UserDAO.Presence p = known.get(user);
+            if (p == null || !p.online) pendingOnline.add(user);
+        }
+    }
+
+    /** Phiên {@code h} của {@code user} đã đóng; bỏ mọi đăng ký theo dõi của phiên đó. */
+    public void offline(String user, ClientHandler h) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            unwatch(h);
+            resync.remove(h);
+            if (online.containsKey(user)) return;
+            if (pendingOnline.remove(user)) {
+                // chưa kịp công bố online: người theo dõi vẫn thấy offline, chỉ cần cập nhật last_seen
+                UserDAO.Presence p = new UserDAO.Presence(false, Instant.ofEpochMilli(now).toString());
+                known.put(user, p);
+                dirty.put(user, p);
+                flaps.increment();
+                return;
+            }
+            pendingOffline.put(user, now);
+        }
+    }
+
+    /** Thay danh sách theo dõi của phiên {@code h}; trả ngay 1 frame PRESENCE đủ trạng thái. */
+    public void subscribe(ClientHandler h, String me, Collection<String> users) {
+        List<String> names = new ArrayList<>(Math.min(users.size(), MAX_WATCH));
+        for (String u : users) {
+            if (names.size() >= MAX_WATCH) break;
+            if (u != null && !u.isBlank() && !u.equals(me)) names.add(u);
+        }
+        List<String> unknown = new ArrayList<>();
+        synchronized (this) {
+            unwatch(h);
+            Set<String> set = new HashSet<>(names);
+            watching.put(h, set);
+            for (String u : set) {
+                watchers.computeIfAbsent(u, k -> new HashSet<>()).add(h);
+                if (!known.containsKey(u) && !online.containsKey(u)) unknown.add(u);
+            }
+        }
+        if (unknown.isEmpty()) {
+            sendSnapshot(h, names);
+            return;
+        }
+        // last_seen của user chưa gặp từ lúc server chạy: đọc 1 lần trên làn DB của chính phiên
+        db.submit(DbExecutor.key(me, me), () -> UserDAO.getPresenceByUsernames(unknown))
+          .whenComplete((rows, err) -> {
+              if (err != null) {
+                  Log.warn("PRESENCE", "Load last_seen failed: " + err.getMessage());
+              } else {
+                  synchronized (this) {
+                      for (Map.Entry<String, UserDAO.Presence> e : rows.entrySet()) {
+                          // DB không biết ai đang kết nối: online lấy theo server, DB chỉ cho last_seen
+                          known.putIfAbsent(e.getKey(), new UserDAO.Presence(false, e.getValue().lastSeenIso));
+                      }
+                  }
+              }
+              sendSnapshot(h, names);
+          });
+    }
+
+    private void sendSnapshot(ClientHandler h, List<String> names) {
+        List<PresenceUpdate> list;
+        synchronized (this) {
+            if (!watching.containsKey(h)) return; // phiên đã đóng
+            list = new ArrayList<>(names.size());
+            for (String u : names) list.add(current(u));
+        }
+        send(h, list, OutboundQueue.Kind.NORMAL);
+    }
+
+    // trạng thái người theo dõi đang thấy: đã công bố, hoặc online thực tế nếu chưa có gì
+    private PresenceUpdate current(String u) {
+        UserDAO.Presence p = known.get(u);
+        if (p != null) return new PresenceUpdate(u, p.online, p.lastSeenIso);
+        return new PresenceUpdate(u, online.containsKey(u) || pendingOnline.contains(u), null);
+    }
+
+    private void unwatch(ClientHandler h) {
+        Set<String> old = watching.remove(h);
+        if (old == null) return;
+        for (String u : old) {
+            Set<ClientHandler> s = watchers.get(u);
+            if (s == null) continue;
+            s.remove(h);
+            if (s.isEmpty()) watchers.remove(u);
+        }
+    }
+
+    /** 1 lượt gom: công bố thay đổi đã ổn định, mỗi người theo dõi nhận 1 frame. */
+    void flush() {
+        long now = System.currentTimeMillis();
+        Map<ClientHandler, List<PresenceUpdate>> out = new HashMap<>();
+        synchronized (this) {
+            List<PresenceUpdate> changed = new ArrayList<>();
+            for (String u : pendingOnline) {
+                UserDAO.Presence p = new UserDAO.Presence(true, null);
+                publish(u, p, changed);
+            }
+            pendingOnline.clear();
+            for (Iterator<Map.Entry<String, Long>> it = pendingOffline.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Long> e = it.next();
+                if (now - e.getValue() < FLAP_MS) continue;
+                it.remove();
+                publish(e.getKey(), new UserDAO.Presence(false, Instant.ofEpochMilli(e.getValue()).toString()), changed);
+            }
+            for (PresenceUpdate c : changed) {
+                Set<ClientHandler> s = watchers.get(c.username);
+                if (s == null) continue;
+                for (ClientHandler h : s) out.computeIfAbsent(h, k -> new ArrayList<>()).add(c);
+            }
+            // bị bỏ frame lần trước: gửi lại toàn bộ danh sách của phiên đó
+            for (ClientHandler h : resync) {
+                Set<String> set = watching.get(h);
+                if (set == null) continue;
+                List<PresenceUpdate> all = new ArrayList<>(set.size());
+                for (String u : set) all.add(current(u));
+                out.put(h, all);
+            }
+            resync.clear();
+        }
+        for (Map.Entry<ClientHandler, List<PresenceUpdate>> e : out.entrySet()) {
+            send(e.getKey(), e.getValue(), OutboundQueue.Kind.DROPPABLE);
+        }
+    }
+
+    private void publish(String u, UserDAO.Presence p, List<PresenceUpdate> changed) {
+        UserDAO.Presence old = known.put(u, p);
+        dirty.put(u, p);
+        if (old != null && old.online == p.online) return;
+        changes.increment();
+        changed.add(new PresenceUpdate(u, p.online, p.lastSeenIso));
+    }
+
+    private void send(ClientHandler h, List<PresenceUpdate> list, OutboundQueue.Kind kind) {
+        if (list.isEmpty()) return;
+        Frame f = new Frame(MessageType.PRESENCE, "", h.getUsername(), PresenceUpdate.encode(list));
+        frames.increment();
+        if (h.sendFrame(f, kind) == OutboundQueue.Result.QUEUED) return;
+        dropped.increment();
+        synchronized (this) {
+            if (watching.containsKey(h)) resync.add(h);
+        }
+    }
+
+    /** Ghi các thay đổi đã gom xuống DB (1 batch). */
+    void persist() {
+        Map<String, UserDAO.Presence> batch;
+        synchronized (this) {
+            if (dirty.isEmpty()) return;
+            batch = dirty;
+            dirty = new HashMap<>();
+        }
+        db.submit(LANE, () -> { UserDAO.savePresence(batch); return batch.size(); })
+          .whenComplete((n, err) -> {
+              if (err == null) { persisted.add(n); return; }
+              Log.warn("PRESENCE", "Persist " + batch.size() + " users failed: " + err.getMessage());
+              synchronized (this) {
+                  // thay đổi mới hơn (nếu có) thắng bản ghi hỏng
+                  for (Map.Entry<String, UserDAO.Presence> e : batch.entrySet()) dirty.putIfAbsent(e.getKey(), e.getValue());
+              }
+          });
+    }
+
+    /** Tóm tắt số liệu; null nếu chưa có thay đổi nào. */
+    public String report() {
+        long c = changes.sum(), fl = flaps.sum();
+        if (c == 0 && fl == 0) return null;
+        int w;
+        synchronized (this) { w = watchers.size(); }
+        return String.format("watched=%d changes=%d flaps=%d frames=%d dropped=%d persisted=%d",
+                w, c, fl, frames.sum(), dropped.sum(), persisted.sum());
+    }
+
+    /** Dừng gom; mọi user còn kết nối coi như offline, ghi đồng bộ lần cuối (trước khi dừng DbExecutor). */
+    public void close() {
+        timer.shutdownNow();
+        String at = Instant.now().toString();
+        Map<String, UserDAO.Presence> batch;
+        synchronized (this) {
+            for (Map.Entry<String, Long> e : pendingOffline.entrySet()) {
+                dirty.put(e.getKey(), new UserDAO.Presence(false, Instant.ofEpochMilli(e.getValue()).toString()));
+            }
+            for (String u : online.keySet()) dirty.put(u, new UserDAO.Presence(false, at));
+            batch = dirty;
+            dirty = new HashMap<>();
+        }
+        try {
+            UserDAO.savePresence(batch);
+        } catch (SQLException e) {
+            Log.warn("PRESENCE", "Final persist failed: " + e.getMessage());
+        }
+    }
+}
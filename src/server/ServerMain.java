@@ -1,44 +1,109 @@
 package server;
 
+import common.FrameEncoder;
+import common.Log;
+import server.dao.ConnectionPool;
+import server.dao.ConversationMigration;
 import server.dao.DBConnection;
+import server.dao.DbExecutor;
 import server.dao.MessageDao;
 import server.dao.FileDao;
+import server.dao.AvatarStore;
+import server.dao.UserDirectory;
+import server.nio.NioServer;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Set;
 import java.util.Map;
 import java.util.concurrent.*;
 
 public class ServerMain {
     private static final int PORT = 5000;
+    // Chế độ I/O: -Dserver.mode=blocking (mặc định, 1 thread/kết nối) | nio (Selector + event loop)
+    private static final String MODE = System.getProperty("server.mode", "blocking");
+    // Số event loop cho chế độ NIO: -Dserver.nio.loops=4
+    private static final int NIO_LOOPS =
+            Integer.getInteger("server.nio.loops", Runtime.getRuntime().availableProcessors());
+    // Loại thread chạy ClientHandler / worker NIO: -Dserver.threads=platform (mặc định) | virtual
+    private static final boolean VIRTUAL = "virtual".equalsIgnoreCase(System.getProperty("server.threads", "platform"));
+    // Chu kỳ log các phiên đang bị hạn chế gửi (client chậm): -Dserver.out.reportSec=30, 0 = tắt
+    private static final int OUT_REPORT_SEC = Integer.getInteger("server.out.reportSec", 30);
+    // Kết nối pool mà các thread nền ngoài DbExecutor mượn cùng lúc: msg-writer, term-index,
+    // presence (reset lúc khởi động, ghi nốt lúc tắt)
+    private static final int DB_POOL_MAX = Integer.getInteger("db.pool.max", 10);
+    private static final int DB_BACKGROUND = 3;
+    // Executor DB: -Ddb.executor.lanes (mặc định = phần pool còn lại sau các thread nền), -Ddb.executor.queue (việc chờ mỗi làn)
+    private static final int DB_LANES = Integer.getInteger("db.executor.lanes", Math.max(1, DB_POOL_MAX - DB_BACKGROUND));
+    private static final int DB_QUEUE = Integer.getInteger("db.executor.queue", 1024);
+    // Làm mới danh bạ user (tài khoản mới) mỗi -Duser.directory.refreshSec giây, 0 = chỉ khi user lạ đăng nhập
+    private static final int USER_REFRESH_SEC = Integer.getInteger("user.directory.refreshSec", 60);
 
     private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
     private final Map<String, ClientHandler> online = new ConcurrentHashMap<>();
-    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final ExecutorService pool = VIRTUAL
+            ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory())
+            : Executors.newCachedThreadPool();
+    private final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "out-monitor");
+        t.setDaemon(true);
+        return t;
+    });
 
 
-    private Connection conn;
+    private ConnectionPool db;
+    private DbExecutor dbExec;
+    private PresenceService presence;
+    private final UserDirectory users = new UserDirectory();
+    private AvatarStore avatars;
     private MessageDao messageDao;
     private FileDao filedao;
+    private NioServer nioServer;
     public static void main(String[] args) {
+        // thu nhỏ avatar bằng java.awt: không cần màn hình
+        if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
         new ServerMain().start();
     }
 
     public void start() {
         try {
        
-            conn = DBConnection.get();              
-            messageDao = new MessageDao(conn);
-            filedao = new FileDao(conn);
+            db = DBConnection.pool();
+            ConversationMigration.start();
+            if (DB_LANES + DB_BACKGROUND > DB_POOL_MAX) {
+                Log.warn("DB", "db.executor.lanes=" + DB_LANES + " + " + DB_BACKGROUND + " background threads > db.pool.max="
+                        + DB_POOL_MAX + ": expect pool timeouts under load");
+            }
+            dbExec = new DbExecutor(DB_LANES, DB_QUEUE);
+            presence = new PresenceService(online, dbExec);
+            presence.start();
+            avatars = new AvatarStore(db);
+            try {
+                Log.info("SERVER", "User directory loaded: " + users.refresh() + " users");
+            } catch (SQLException e) {
+                Log.warn("SERVER", "User directory load failed: " + e.getMessage());
+            }
+            if (USER_REFRESH_SEC > 0) {
+                long lane = DbExecutor.key("users", "users");
+                monitor.scheduleWithFixedDelay(() -> dbExec.submit(lane, users::refresh),
+                        USER_REFRESH_SEC, USER_REFRESH_SEC, TimeUnit.SECONDS);
+            }
+            messageDao = new MessageDao(db);
+            filedao = new FileDao(db);
+            if (OUT_REPORT_SEC > 0)
+                monitor.scheduleAtFixedRate(this::reportThrottled, OUT_REPORT_SEC, OUT_REPORT_SEC, TimeUnit.SECONDS);
+            if ("nio".equalsIgnoreCase(MODE)) {
+                startNio();
+                return;
+            }
             try (ServerSocket ss = new ServerSocket(PORT)) {
-                System.out.println("✅ Server started at port " + PORT);
+                System.out.println("✅ Server started at port " + PORT + (VIRTUAL ? " (virtual threads)" : ""));
                 while (true) {
                     Socket s = ss.accept();
-                    System.out.println("➡ Client connected: " + s.getRemoteSocketAddress());
+                    Log.info("SERVER", "Client connected: " + s.getRemoteSocketAddress());
 
-                    ClientHandler handler = new ClientHandler(s, clients, online, messageDao, filedao);;
+                    ClientHandler handler = new ClientHandler(s, clients, online, messageDao, filedao, dbExec, presence, users, avatars);
                     clients.add(handler);
                     pool.submit(handler);
                 }
@@ -52,13 +117,57 @@ public class ServerMain {
         }
     }
 
+    private void startNio() throws IOException {
+        nioServer = new NioServer(PORT, NIO_LOOPS, pool, c -> {
+            ClientHandler handler = new ClientHandler(c, clients, online, messageDao, filedao, dbExec, presence, users, avatars);
+            clients.add(handler);
+            return handler;
+        });
+        nioServer.run();
+    }
+
+    /** Log các phiên có frame bị bỏ/hoãn hoặc hàng đợi gửi đang cao, kèm số liệu nén, pool DB, cache lịch sử, chỉ mục tìm kiếm, presence, danh bạ và avatar. */
+    private void reportThrottled() {
+        int n = 0;
+        for (ClientHandler h : clients) {
+            String r = h.outbound().throttleReport();
+            if (r == null) continue;
+            n++;
+            Log.warn("OUT", "throttled " + h.getUsername() + ": " + r);
+        }
+        if (n > 0) Log.warn("OUT", n + "/" + clients.size() + " sessions throttled");
+        String z = FrameEncoder.compressionReport();
+        if (z != null) Log.info("OUT", "deflate " + z);
+        String p = db == null ? null : db.report();
+        if (p != null) Log.info("DB", "pool " + p);
+        String x = dbExec == null ? null : dbExec.report();
+        if (x != null) Log.info("DB", "executor " + x);
+        String c = messageDao == null ? null : messageDao.cacheReport();
+        if (c != null) Log.info("DB", "history cache " + c);
+        String si = messageDao == null ? null : messageDao.indexReport();
+        if (si != null) Log.info("DB", "search index " + si);
+        String sa = messageDao == null ? null : messageDao.searchAllReport();
+        if (sa != null) Log.info("DB", "search all " + sa);
+        String pr = presence == null ? null : presence.report();
+        if (pr != null) Log.info("PRESENCE", pr);
+        String ud = users.report();
+        if (ud != null) Log.info("SERVER", "user directory " + ud);
+        String av = avatars == null ? null : avatars.report();
+        if (av != null) Log.info("SERVER", "avatars " + av);
+    }
+
     private void shutdown() {
+        monitor.shutdownNow();
+        if (nioServer != null) nioServer.shutdown();
         try {
             for (ClientHandler h : clients) h.close();
         } catch (Exception ignored) {}
         pool.shutdownNow();
 
-        try { if (conn != null && !conn.isClosed()) conn.close(); } catch (Exception ignored) {}
+        if (presence != null) presence.close();
+        if (dbExec != null) dbExec.shutdown(5000);
+        if (messageDao != null) messageDao.close();
+        if (db != null) db.close();
 
         System.out.println("🛑 Server shutdown.");
     }
@@ -0,0 +1,218 @@
+package server.dao;
+
+import common.AvatarVariant;
+import common.Log;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Avatar đã thu nhỏ sẵn theo từng {@link AvatarVariant}, thay cho client đọc cả BLOB gốc ở users.avatar.
+ *
+ * - Bảng user_avatars(username, variant, hash, mime, data): tạo lười lần đầu có người xin avatar của user
+ *   đó — đọc ảnh gốc 1 lần, cắt vuông giữa ảnh, thu nhỏ (không phóng to), ghi JPEG cho mọi cỡ.
+ * - hash = SHA-256 (16 ký tự hex đầu) của đúng byte gửi đi; client gửi kèm hash đang có → trùng thì
+ *   không gửi lại ảnh.
+ * - Tối đa -Davatar.cache.entries bản gần dùng giữ trong RAM (LRU), kể cả kết quả "không có avatar".
+ * - Avatar chỉ đặt lúc đăng ký (không có chức năng đổi) nên bản đã lưu không cần làm mới.
+ */
+public final class AvatarStore {
+    private static final int CACHE_ENTRIES = Integer.getInteger("avatar.cache.entries", 2000);
+    private static final float JPEG_QUALITY = Float.parseFloat(System.getProperty("avatar.jpeg.quality", "0.85"));
+
+    /** 1 cỡ avatar; {@link #NONE} = user không có ảnh (client dùng ảnh mặc định). */
+    public record Avatar(String hash, String mime, byte[] data) {
+        public static final Avatar NONE = new Avatar("", "", new byte[0]);
+    }
+
+    private final ConnectionPool pool;
+    private final Map<String, Avatar> cache;
+    private volatile boolean schemaReady;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder generated = new LongAdder();
+
+    public AvatarStore(ConnectionPool pool) {
+        this.pool = pool;
+        this.cache = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Avatar> eldest) {
+                return size() > CACHE_ENTRIES;
+            }
+        };
+    }
+
+    private static String key(String username, AvatarVariant v) {
+        return v.id + ":" + username;
+    }
+
+    /** Bản trong RAM; null nếu phải xuống DB ({@link #get}). */
+    public Avatar cached(String username, AvatarVariant v) {
+        Avatar a;
+        synchronized (cache) { a = cache.get(key(username, v)); }
+        if (a != null) hits.increment();
+        return a;
+    }
+
+    /** Đọc bản đã lưu, hoặc tạo mọi cỡ từ ảnh gốc nếu chưa có. */
+    public Avatar get(String username, AvatarVariant v) throws SQLException {
+        Avatar a = cached(username, v);
+        if (a != null) return a;
+        ensureSchema();
+        loads.increment();
+        try (Connection c = pool.get()) {
+            try (PreparedStatement ps = c.prepareStatement(
+                    "SELECT hash, mime, data FROM user_avatars WHERE username=? AND variant=?")) {
+                ps.setString(1, username);
+                ps.setByte(2, v.id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        a = new Avatar(rs.getString(1), rs.getString(2), rs.getBytes(3));
+                        remember(username, v, a);
+                        return a;
+                    }
+                }
+            }
+
+            byte[] src = null;
+            try (PreparedStatement ps = c.prepareStatement("SELECT avatar FROM users WHERE username=?")) {
+                ps.setString(1, username);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) src = rs.getBytes(1);
+                }
+            }
+            Map<AvatarVariant, Avatar> all = resizeAll(username, src);
+            if (all == null) {
+                // không có ảnh / ảnh hỏng: nhớ trong RAM, không lưu (lần khởi động sau thử lại)
+                for (AvatarVariant x : AvatarVariant.values()) remember(username, x, Avatar.NONE);
+                return Avatar.NONE;
+            }
+            try (PreparedStatement ps = c.prepareStatement(
+                    "INSERT IGNORE INTO user_avatars(username, variant, hash, mime, data) VALUES(?,?,?,?,?)")) {
+                for (Map.Entry<AvatarVariant, Avatar> e : all.entrySet()) {
+                    ps.setString(1, username);
+                    ps.setByte(2, e.getKey().id);
+                    ps.setString(3, e.getValue().hash());
+                    ps.setString(4, e.getValue().mime());
+                    ps.setBytes(5, e.getValue().data());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            generated.increment();
+            for (Map.Entry<AvatarVariant, Avatar> e : all.entrySet()) remember(username, e.getKey(), e.getValue());
+            return all.get(v);
+        }
+    }
+
+    private void remember(String username, AvatarVariant v, Avatar a) {
+        synchronized (cache) { cache.put(key(username, v), a); }
+    }
+
+    private void ensureSchema() throws SQLException {
+        if (schemaReady) return;
+        try (Connection c = pool.get(); Statement st = c.createStatement()) {
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS user_avatars (
+                  username VARCHAR(100) NOT NULL,
+                  variant TINYINT NOT NULL,
+                  hash CHAR(16) NOT NULL,
+                  mime VARCHAR(50) NOT NULL,
+                  data MEDIUMBLOB NOT NULL,
+                  PRIMARY KEY (username, variant)
+                ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4
+            """);
+        }
+        schemaReady = true;
+    }
+
+    // null nếu không có ảnh gốc hoặc không giải mã được
+    private static Map<AvatarVariant, Avatar> resizeAll(String username, byte[] src) {
+        if (src == null || src.length == 0) return null;
+        try {
+            BufferedImage img = ImageIO.read(new ByteArrayInputStream(src));
+            if (img == null) return null;
+            int side = Math.min(img.getWidth(), img.getHeight());
+            BufferedImage square = img.getSubimage((img.getWidth() - side) / 2, (img.getHeight() - side) / 2, side, side);
+            Map<AvatarVariant, Avatar> out = new EnumMap<>(AvatarVariant.class);
+            for (AvatarVariant v : AvatarVariant.values()) {
+                byte[] jpg = jpeg(scale(square, Math.min(v.size, side)));
+                out.put(v, new Avatar(hash(jpg), "image/jpeg", jpg));
+            }
+            return out;
+        } catch (IOException | RuntimeException e) {
+            Log.warn("AVATAR", "Cannot resize avatar of " + username + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // thu nhỏ từng nửa rồi bilinear lần cuối: nét hơn 1 lần scale lớn, nền trắng cho ảnh trong suốt
+    private static BufferedImage scale(BufferedImage src, int size) {
+        BufferedImage cur = src;
+        int w = src.getWidth();
+        do {
+            w = Math.max(size, w / 2);
+            BufferedImage next = new BufferedImage(w, w, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, w);
+            g.drawImage(cur, 0, 0, w, w, null);
+            g.dispose();
+            cur = next;
+        } while (w > size);
+        return cur;
+    }
+
+    private static byte[] jpeg(BufferedImage img) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(16 * 1024);
+        try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bos)) {
+            writer.setOutput(out);
+            ImageWriteParam p = writer.getDefaultWriteParam();
+            p.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(img, null, null), p);
+        } finally {
+            writer.dispose();
+        }
+        return bos.toByteArray();
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(data);
+            return HexFormat.of().formatHex(d, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Tóm tắt số liệu; null nếu chưa có lượt xin nào. */
+    public String report() {
+        long h = hits.sum(), l = loads.sum();
+        if (h + l == 0) return null;
+        int n;
+        synchronized (cache) { n = cache.size(); }
+        return String.format("cached=%d/%d hits=%d loads=%d generated=%d", n, CACHE_ENTRIES, h, l, generated.sum());
+    }
+}
@@ -0,0 +1,196 @@
+package server.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool JDBC có giới hạn, dùng chung cho MessageDao / FileDao / UserDAO.
+ *
+ * - Tối đa {@code max} kết nối vật lý, mở dần khi cần. Hết chỗ thì chờ tối đa {@code maxWaitMs}
+ *   rồi ném {@link SQLTransientConnectionException} (không chặn vô hạn).
+ * - Kết nối trả về là proxy: {@code close()} đưa về pool; rollback + bật lại autoCommit nếu
+ *   người mượn quên. Kết nối nằm rỗi quá {@code validateMs} được kiểm tra bằng isValid trước khi cho mượn.
+ * - Cache PreparedStatement do driver MySQL làm theo từng kết nối vật lý (cachePrepStmts trong URL,
+ *   xem {@link DBConnection}); vì kết nối được giữ lại nên cache còn nguyên giữa các lần mượn.
+ * - Số liệu: active / idle / tổng, số lần phải chờ, thời gian chờ, số lần timeout ({@link #report()}).
+ */
+public final class ConnectionPool {
+    private final Callable<Connection> factory;
+    private final int max;
+    private final long maxWaitMs;
+    private final long validateMs;
+
+    private final Semaphore permits;
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>(); // LIFO: kết nối nóng nhất dùng trước
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    private volatile boolean closed;
+
+    private record Idle(Connection conn, long since) {}
+
+    public ConnectionPool(Callable<Connection> factory, int max, long maxWaitMs, long validateMs) {
+        if (max < 1) throw new IllegalArgumentException("max < 1");
+        this.factory = factory;
+        this.max = max;
+        this.maxWaitMs = maxWaitMs;
+        this.validateMs = validateMs;
+        this.permits = new Semaphore(max, true);
+    }
+
+    /** Mượn 1 kết nối; {@code close()} trên kết nối trả nó về pool. */
+    public Connection get() throws SQLException {
+        if (closed) throw new SQLException("Connection pool closed");
+        if (!permits.tryAcquire()) {
+            long t0 = System.nanoTime();
+            boolean ok;
+            try {
+                ok = permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a connection", e);
+            }
+            long waited = System.nanoTime() - t0;
+            waits.increment();
+            waitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            if (!ok) {
+                timeouts.increment();
+                throw new SQLTransientConnectionException(
+                        "No connection available within " + maxWaitMs + " ms (" + active.get() + "/" + max + " in use)");
+            }
+        }
+        try {
+            Connection physical = takeIdle();
+            if (physical == null) {
+                physical = factory.call();
+                opened.incrementAndGet();
+            }
+            active.incrementAndGet();
+            borrows.increment();
+            return wrap(physical);
+        } catch (Exception e) {
+            permits.release();
+            if (e instanceof SQLException se) throw se;
+            throw new SQLException("Cannot open connection", e);
+        }
+    }
+
+    // kết nối rỗi còn dùng được; null nếu phải mở mới
+    private Connection takeIdle() {
+        while (true) {
+            Idle i;
+            synchronized (idle) { i = idle.pollFirst(); }
+            if (i == null) return null;
+            if (System.nanoTime() - i.since < TimeUnit.MILLISECONDS.toNanos(validateMs)) return i.conn;
+            try {
+                if (i.conn.isValid(2)) return i.conn;
+            } catch (SQLException ignore) {}
+            discard(i.conn);
+        }
+    }
+
+    private void release(Connection physical, boolean broken) {
+        active.decrementAndGet();
+        try {
+            if (!broken && !closed && !physical.isClosed()) {
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+                synchronized (idle) { idle.addFirst(new Idle(physical, System.nanoTime())); }
+                return;
+            }
+        } catch (SQLException e) {
+            // không reset được → bỏ
+        } finally {
+            permits.release();
+        }
+        discard(physical);
+    }
+
+    private void discard(Connection physical) {
+        opened.decrementAndGet();
+        evicted.increment();
+        try { physical.close(); } catch (SQLException ignore) {}
+    }
+
+    private Connection wrap(Connection physical) {
+        InvocationHandler h = new InvocationHandler() {
+            private boolean returned;
+            private boolean broken;
+
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                switch (m.getName()) {
+                    case "close" -> {
+                        if (!returned) { returned = true; release(physical, broken); }
+                        return null;
+                    }
+                    case "isClosed" -> { if (returned) return true; }
+                    case "unwrap" -> { if (args[0] == Connection.class) return physical; }
+                    case "equals" -> { return proxy == args[0]; }
+                    case "hashCode" -> { return System.identityHashCode(proxy); }
+                    case "toString" -> { return "Pooled[" + physical + "]"; }
+                    default -> {}
+                }
+                if (returned) throw new SQLException("Connection already returned to pool");
+                try {
+                    return m.invoke(physical, args);
+                } catch (InvocationTargetException e) {
+                    Throwable t = e.getCause();
+                    // lỗi tầng kết nối (SQLState 08xxx) → không cho kết nối này quay lại pool
+                    if (t instanceof SQLException se && se.getSQLState() != null && se.getSQLState().startsWith("08"))
+                        broken = true;
+                    throw t;
+                }
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(
+                ConnectionPool.class.getClassLoader(), new Class<?>[]{ Connection.class }, h);
+    }
+
+    /** Đóng mọi kết nối rỗi; kết nối đang mượn sẽ bị đóng khi trả về. */
+    public void close() {
+        closed = true;
+        while (true) {
+            Idle i;
+            synchronized (idle) { i = idle.pollFirst(); }
+            if (i == null) break;
+            discard(i.conn);
+        }
+    }
+
+    public int active() { return active.get(); }
+
+    public int idle() { synchronized (idle) { return idle.size(); } }
+
+    /** Tóm tắt số liệu; null nếu chưa có lần mượn nào. */
+    public String report() {
+        if (borrows.sum() == 0) return null;
+        long w = waits.sum();
+        return String.format("active=%d idle=%d open=%d/%d borrows=%d waits=%d avgWait=%.1fms maxWait=%.1fms timeouts=%d evicted=%d",
+                active.get(), idle(), opened.get(), max, borrows.sum(), w,
+                w == 0 ? 0.0 : waitNanos.sum() / 1e6 / w, maxWaitNanos.get() / 1e6,
+                timeouts.sum(), evicted.sum());
+    }
+}
@@ -0,0 +1,37 @@
+package server.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Khoá hội thoại 2 người lưu ở cột messages.conversation_id.
+ *
+ * = 63 bit đầu của SHA-256(min(a,b) + '\0' + max(a,b)) → cùng giá trị cho cả 2 chiều,
+ * không phụ thuộc ai gửi. Đủ rộng để coi như không trùng, và là BIGINT nên index
+ * (conversation_id, id) gọn, range scan theo id như khoá chính.
+ */
+public final class ConversationKey {
+    private ConversationKey() {}
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    public static long of(String a, String b) {
+        String x = a == null ? "" : a, y = b == null ? "" : b;
+        if (x.compareTo(y) > 0) { String t = x; x = y; y = t; }
+        MessageDigest md = SHA256.get();
+        md.reset();
+        md.update(x.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        byte[] h = md.digest(y.getBytes(StandardCharsets.UTF_8));
+        long v = 0;
+        for (int i = 0; i < 8; i++) v = (v << 8) | (h[i] & 0xFF);
+        return v & Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,144 @@
+package server.dao;
+
+import common.Log;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Migration cột messages.conversation_id ({@link ConversationKey}) + index (conversation_id, id).
+ *
+ * 1. Lúc khởi động (đồng bộ): thêm cột NULL-able bằng ALGORITHM=INSTANT (chỉ sửa metadata, không
+ *    dựng lại bảng). Server không nhận INSTANT (MySQL cũ hơn 8.0.12...) thì thêm bằng INPLACE trên
+ *    thread nền — INPLACE dựng lại cả bảng, trên bảng lớn mất vài phút, không được chặn khởi động.
+ *    Từ khi cột có, mọi INSERT mới đều ghi conversation_id.
+ * 2. Thread nền: tạo index online, rồi backfill các dòng cũ theo lô khoá chính
+ *    (-Dmigration.batch, mặc định 1000 dòng), mỗi lô 1 transaction ngắn, nghỉ
+ *    -Dmigration.pauseMs giữa các lô → chỉ khoá dòng của lô đang cập nhật, không khoá bảng.
+ * 3. Xong backfill thì {@link #ready()} = true và {@link MessageDao} chuyển sang truy vấn
+ *    theo conversation_id; trước đó (hoặc nếu migration lỗi) vẫn dùng điều kiện sender/recipient cũ.
+ * Chạy lại nhiều lần an toàn: bước nào đã xong thì bỏ qua.
+ */
+public final class ConversationMigration {
+    private ConversationMigration() {}
+
+    private static final int BATCH = Integer.getInteger("migration.batch", 1000);
+    private static final long PAUSE_MS = Long.getLong("migration.pauseMs", 50);
+    private static final String INDEX = "idx_messages_conversation";
+
+    private static volatile boolean column;
+    private static volatile boolean ready;
+
+    /** Cột conversation_id đã có → INSERT phải ghi giá trị. */
+    public static boolean hasColumn() { return column; }
+
+    /** Mọi dòng đã có conversation_id và index đã tạo → truy vấn theo conversation_id. */
+    public static boolean ready() { return ready; }
+
+    /** Bước 1 ngay tại chỗ nếu INSTANT được, phần còn lại trên thread nền. */
+    public static void start() {
+        boolean inplace = false;
+        try (Connection c = DBConnection.open()) {
+            if (!columnExists(c)) {
+                try (Statement st = c.createStatement()) {
+                    st.execute("ALTER TABLE messages ADD COLUMN conversation_id BIGINT NULL, ALGORITHM=INSTANT");
+                    Log.info("MIGRATE", "added messages.conversation_id (instant)");
+                } catch (SQLException e) {
+                    Log.info("MIGRATE", "instant ADD COLUMN rejected (" + e.getMessage() + "), adding in background");
+                    inplace = true;
+                }
+            }
+            column = !inplace;
+        } catch (SQLException e) {
+            Log.warn("MIGRATE", "conversation_id unavailable, keeping sender/recipient queries", e);
+            return;
+        }
+        boolean addColumn = inplace;
+        Thread t = new Thread(() -> backfill(addColumn), "migrate-conversation");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void backfill(boolean addColumn) {
+        try (Connection c = DBConnection.open()) {
+            if (addColumn) {
+                long t0 = System.nanoTime();
+                try (Statement st = c.createStatement()) {
+                    st.execute("ALTER TABLE messages ADD COLUMN conversation_id BIGINT NULL, ALGORITHM=INPLACE, LOCK=NONE");
+                }
+                // dòng chèn trong lúc ALTER chưa có giá trị: backfill bên dưới xử lý
+                column = true;
+                Log.info("MIGRATE", "added messages.conversation_id in " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+            }
+            if (!indexExists(c)) {
+                long t0 = System.nanoTime();
+                try (Statement st = c.createStatement()) {
+                    st.execute("ALTER TABLE messages ADD INDEX " + INDEX
+                            + " (conversation_id, id), ALGORITHM=INPLACE, LOCK=NONE");
+                }
+                Log.info("MIGRATE", "created " + INDEX + " in " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+            }
+
+            String sel = "SELECT id, sender, recipient FROM messages WHERE id > ? AND conversation_id IS NULL ORDER BY id LIMIT ?";
+            String upd = "UPDATE messages SET conversation_id=? WHERE id=? AND conversation_id IS NULL";
+            long lastId = 0, total = 0;
+            List<long[]> batch = new ArrayList<>(BATCH);
+            while (true) {
+                batch.clear();
+                try (PreparedStatement ps = c.prepareStatement(sel)) {
+                    ps.setLong(1, lastId);
+                    ps.setInt(2, BATCH);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            long id = rs.getLong("id");
+                            batch.add(new long[]{ id, ConversationKey.of(rs.getString("sender"), rs.getString("recipient")) });
+                        }
+                    }
+                }
+                if (batch.isEmpty()) break;
+
+                c.setAutoCommit(false);
+                try (PreparedStatement ps = c.prepareStatement(upd)) {
+                    for (long[] r : batch) {
+                        ps.setLong(1, r[1]);
+                        ps.setLong(2, r[0]);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    c.commit();
+                } catch (SQLException e) {
+                    c.rollback();
+                    throw e;
+                } finally {
+                    c.setAutoCommit(true);
+                }
+                total += batch.size();
+                lastId = batch.get(batch.size() - 1)[0];
+                if (PAUSE_MS > 0) Thread.sleep(PAUSE_MS);
+            }
+            ready = true;
+            Log.info("MIGRATE", "conversation_id ready (" + total + " rows backfilled)");
+        } catch (SQLException e) {
+            Log.warn("MIGRATE", "conversation_id backfill failed, keeping sender/recipient queries", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean columnExists(Connection c) throws SQLException {
+        return exists(c, "SELECT 1 FROM information_schema.COLUMNS WHERE TABLE_SCHEMA=DATABASE()"
+                + " AND TABLE_NAME='messages' AND COLUMN_NAME='conversation_id'");
+    }
+
+    private static boolean indexExists(Connection c) throws SQLException {
+        return exists(c, "SELECT 1 FROM information_schema.STATISTICS WHERE TABLE_SCHEMA=DATABASE()"
+                + " AND TABLE_NAME='messages' AND INDEX_NAME='" + INDEX + "'");
+    }
+
+    private static boolean exists(Connection c, String sql) throws SQLException {
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            return rs.next();
+        }
+    }
+}
@@ -7,11 +7,56 @@ public class DBConnection {
 		    "jdbc:mysql://localhost:3307/socialchatapp"
 		  + "?useSSL=false"
 		  + "&allowPublicKeyRetrieval=true"
-		  + "&serverTimezone=UTC";
+		  + "&serverTimezone=UTC"
+		  // cache PreparedStatement phía server theo từng kết nối (giữ lại qua pool)
+		  + "&useServerPrepStmts=true"
+		  + "&cachePrepStmts=true"
+		  + "&prepStmtCacheSize=256"
+		  + "&prepStmtCacheSqlLimit=2048"
+		  // batch INSERT của MessageWriter → 1 câu INSERT nhiều dòng
+		  + "&rewriteBatchedStatements=true";
     private static final String USER = "root";
     private static final String PASS = "";
 
+    // Pool: -Ddb.pool.max=10 kết nối, chờ tối đa -Ddb.pool.maxWaitMs=5000,
+    // kiểm tra lại kết nối rỗi quá -Ddb.pool.validateMs=30000
+    private static final int POOL_MAX = Integer.getInteger("db.pool.max", 10);
+    private static final long POOL_MAX_WAIT_MS = Long.getLong("db.pool.maxWaitMs", 5000);
+    private static final long POOL_VALIDATE_MS = Long.getLong("db.pool.validateMs", 30_000);
+
+    private static volatile ConnectionPool pool;
+
+    /** Mượn 1 kết nối từ pool dùng chung; {@code close()} trả lại pool. */
     public static Connection get() throws SQLException {
+        return pool().get();
+    }
+
+    public static ConnectionPool pool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (DBConnection.class) {
+                p = pool;
+                if (p == null) {
+                    p = new ConnectionPool(DBConnection::open, POOL_MAX, POOL_MAX_WAIT_MS, POOL_VALIDATE_MS);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /** Đóng pool (nếu đã tạo) khi tiến trình dừng; lần {@link #get()} sau sẽ tạo pool mới. */
+    public static void closePool() {
+        ConnectionPool p;
+        synchronized (DBConnection.class) {
+            p = pool;
+            pool = null;
+        }
+        if (p != null) p.close();
+    }
+
+    /** Kết nối vật lý riêng, không qua pool (migration chạy lâu, pool tự mở kết nối). */
+    public static Connection open() throws SQLException {
         try {
             Class.forName("com.mysql.cj.jdbc.Driver");
         } catch (ClassNotFoundException e) {
@@ -0,0 +1,118 @@
+package server.dao;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor riêng cho truy vấn DB, để thread đọc socket không bao giờ chờ MySQL.
+ *
+ * - {@code lanes} làn, mỗi làn 1 thread + hàng đợi có giới hạn {@code queue}. Việc được xếp vào làn
+ *   theo khoá (thường là {@link ConversationKey} của hội thoại) → cùng hội thoại chạy đúng thứ tự gửi vào,
+ *   hội thoại khác nhau chạy song song. Số làn + các thread nền tự mượn kết nối phải ≤ số kết nối của
+ *   {@link ConnectionPool}, nếu không pool.get() sẽ hết hạn chờ ngay khi tải bình thường.
+ * - Hàng đợi làn đầy → future lỗi ngay với {@link SQLTransientException} (không chặn người gọi).
+ * - Không chạy việc chờ socket ở đây (làn dùng chung cho mọi user): việc đó ở thread stream của
+ *   từng phiên, chỉ gửi truy vấn vào làn.
+ */
+public final class DbExecutor {
+    /** 1 lời gọi DAO đồng bộ. */
+    @FunctionalInterface
+    public interface SqlCall<T> {
+        T call() throws SQLException;
+    }
+
+    private final ThreadPoolExecutor[] lanes;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public DbExecutor(int lanes, int queue) {
+        if (lanes < 1 || queue < 1) throw new IllegalArgumentException("lanes/queue < 1");
+        this.lanes = group("db-lane-", lanes, queue);
+    }
+
+    private static ThreadPoolExecutor[] group(String prefix, int n, int queue) {
+        ThreadPoolExecutor[] g = new ThreadPoolExecutor[n];
+        for (int i = 0; i < n; i++) {
+            String name = prefix + i;
+            g[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return g;
+    }
+
+    /** Khoá làn của hội thoại 2 người. */
+    public static long key(String a, String b) {
+        return ConversationKey.of(a, b);
+    }
+
+    /** Chạy {@code call} trên làn của {@code key}; future nhận kết quả hoặc SQLException. */
+    public <T> CompletableFuture<T> submit(long key, SqlCall<T> call) {
+        CompletableFuture<T> done = new CompletableFuture<>();
+        try {
+            pick(lanes, key).execute(() -> {
+                try {
+                    done.complete(call.call());
+                } catch (Throwable t) {
+                    done.completeExceptionally(t);
+                }
+            });
+            submitted.increment();
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            done.completeExceptionally(new SQLTransientException("DB queue full (lane " + index(lanes, key) + ")"));
+        }
+        return done;
+    }
+
+    private static ThreadPoolExecutor pick(ThreadPoolExecutor[] g, long key) {
+        return g[index(g, key)];
+    }
+
+    private static int index(ThreadPoolExecutor[] g, long key) {
+        return (int) Math.floorMod(key, (long) g.length);
+    }
+
+    /** Tổng việc đang chờ trong các hàng đợi. */
+    public int queued() {
+        int n = 0;
+        for (ThreadPoolExecutor e : lanes) n += e.getQueue().size();
+        return n;
+    }
+
+    /** Tóm tắt số liệu; null nếu chưa nhận việc nào. */
+    public String report() {
+        long s = submitted.sum(), r = rejected.sum();
+        if (s == 0 && r == 0) return null;
+        int busy = 0, maxQ = 0;
+        for (ThreadPoolExecutor e : lanes) {
+            busy += e.getActiveCount();
+            maxQ = Math.max(maxQ, e.getQueue().size());
+        }
+        return String.format("lanes=%d busy=%d queued=%d maxLaneQueue=%d submitted=%d rejected=%d",
+                lanes.length, busy, queued(), maxQ, s, r);
+    }
+
+    /** Ngừng nhận việc, chờ việc đang xếp hàng chạy xong (tối đa {@code waitMs}). */
+    public void shutdown(long waitMs) {
+        for (ThreadPoolExecutor e : lanes) e.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        try {
+            for (ThreadPoolExecutor e : lanes) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0 || !e.awaitTermination(left, TimeUnit.NANOSECONDS)) e.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -2,13 +2,15 @@ package server.dao;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class FileDao {
-    private final Connection conn;
+    private final ConnectionPool pool;
 
-    public FileDao(Connection conn) {
-        this.conn = conn;
+    public FileDao(ConnectionPool pool) {
+        this.pool = pool;
     }
 
     /** Lưu metadata cho mọi loại file (image/video/audio/other) */
@@ -18,7 +20,8 @@ public class FileDao {
             INSERT INTO files (message_id, file_name, file_path, mime_type, file_size)
             VALUES (?, ?, ?, ?, ?)
         """;
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             ps.setLong(1, messageId);
             ps.setString(2, fileName);
             ps.setString(3, filePath);
@@ -36,7 +39,8 @@ public class FileDao {
     /** Lấy metadata theo message_id (duy nhất 1 file/1 message trong luồng này) */
     public FileRecord getByMessageId(long messageId) throws SQLException {
         String sql = "SELECT * FROM files WHERE message_id = ? LIMIT 1";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, messageId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) return mapRow(rs);
@@ -45,10 +49,31 @@ public class FileDao {
         return null;
     }
 
+    /** Metadata của nhiều message trong 1 truy vấn (trang lịch sử); key = message_id. */
+    public Map<Long, FileRecord> getByMessageIds(List<Long> messageIds) throws SQLException {
+        Map<Long, FileRecord> out = new HashMap<>();
+        if (messageIds.isEmpty()) return out;
+        StringBuilder sql = new StringBuilder("SELECT * FROM files WHERE message_id IN (");
+        for (int i = 0; i < messageIds.size(); i++) sql.append(i == 0 ? "?" : ",?");
+        sql.append(')');
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < messageIds.size(); i++) ps.setLong(i + 1, messageIds.get(i));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    FileRecord r = mapRow(rs);
+                    out.putIfAbsent(r.messageId, r);
+                }
+            }
+        }
+        return out;
+    }
+
     /** Lấy metadata theo id file (PK) */
     public FileRecord getById(long id) throws SQLException {
         String sql = "SELECT * FROM files WHERE id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) return mapRow(rs);
@@ -67,7 +92,8 @@ public class FileDao {
             ORDER BY f.uploaded_at DESC
             LIMIT ? OFFSET ?
         """;
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, username);
             ps.setString(2, username);
             ps.setInt(3, Math.max(1, limit));
@@ -83,7 +109,8 @@ public class FileDao {
     /** Xoá theo message_id (trong DB) */
     public boolean deleteByMessageId(long messageId) throws SQLException {
         String sql = "DELETE FROM files WHERE message_id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, messageId);
             return ps.executeUpdate() > 0;
         }
@@ -1,77 +1,135 @@
 package server.dao;
 
 import common.Frame;
+import common.TextFold;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
 
 public class MessageDao {
-    private final Connection conn;
+    // cache tin gần nhất: -Dhistory.cache.rows (tin/hội thoại, 0 = tắt), -Dhistory.cache.conversations (LRU)
+    private static final int CACHE_ROWS = Integer.getInteger("history.cache.rows", 200);
+    private static final int CACHE_CONVERSATIONS = Integer.getInteger("history.cache.conversations", 10_000);
+    // chỉ mục tìm kiếm: -Dsearch.index.conversations (số hội thoại giữ chỉ mục, 0 = tắt → LIKE như cũ)
+    private static final int INDEX_CONVERSATIONS = Integer.getInteger("search.index.conversations", 1000);
+    // và tối đa -Dsearch.index.maxMB (nội dung tin + posting, ước lượng)
+    private static final long INDEX_MAX_BYTES = Long.getLong("search.index.maxMB", 64L) * 1024 * 1024;
+    // tìm kiếm toàn cục qua bảng message_terms: -Dsearch.all=false để tắt
+    private static final boolean SEARCH_ALL = Boolean.parseBoolean(System.getProperty("search.all", "true"));
 
-    public MessageDao(Connection conn) {
-        this.conn = conn;
+    private final ConnectionPool pool;
+    private final MessageWriter writer;
+    private final RecentMessageCache recent; // null = tắt
+    private final MessageIndex index;        // null = tắt
+    private final TermIndex terms;           // null = tắt
+
+    public MessageDao(ConnectionPool pool) {
+        this.pool = pool;
+        this.writer = new MessageWriter(pool);
+        this.recent = CACHE_ROWS > 0 ? new RecentMessageCache(CACHE_ROWS, CACHE_CONVERSATIONS) : null;
+        this.index = INDEX_CONVERSATIONS > 0 ? new MessageIndex(INDEX_CONVERSATIONS, INDEX_MAX_BYTES) : null;
+        this.terms = SEARCH_ALL ? new TermIndex(pool) : null;
     }
 
-    public long saveQueuedReturnId(Frame f) throws SQLException {
-        String sql = "INSERT INTO messages(sender, recipient, body, status) VALUES(?,?,?, 'queued')";
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            ps.setString(1, f.sender);
-            ps.setString(2, f.recipient);
-            ps.setString(3, f.body);
-            ps.executeUpdate();
-            try (ResultSet rs = ps.getGeneratedKeys()) {
-                if (rs.next()) return rs.getLong(1);
-            }
-        }
-        return 0L;
+    /** INSERT qua {@link MessageWriter} (gộp lô); future trả id của message. */
+    public CompletableFuture<Long> saveQueuedAsync(Frame f) {
+        return writer.submit(f.sender, f.recipient, f.body, "queued", cacheOnCommit(f));
     }
 
-    public long saveSentReturnId(Frame f) throws SQLException {
-        String sql = "INSERT INTO messages(sender, recipient, body, status) VALUES(?,?,?, 'delivered')";
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            ps.setString(1, f.sender);
-            ps.setString(2, f.recipient);
-            ps.setString(3, f.body);
-            ps.executeUpdate();
-            try (ResultSet rs = ps.getGeneratedKeys()) {
-                if (rs.next()) return rs.getLong(1);
-            }
-        }
-        return 0L;
+    public CompletableFuture<Long> saveSentAsync(Frame f) {
+        return writer.submit(f.sender, f.recipient, f.body, "delivered", cacheOnCommit(f));
+    }
+
+    // dòng đã COMMIT mới nối vào cache + chỉ mục (COMMIT lỗi thì không có dòng ma); mặc định chạy trước khi
+    // future xong → HISTORY/SEARCH ngay sau ACK đã thấy tin
+    private LongConsumer cacheOnCommit(Frame f) {
+        if (recent == null && index == null && terms == null) return null;
+        String sender = f.sender, recipient = f.recipient, body = f.body;
+        return v -> {
+            long now = System.currentTimeMillis();
+            if (recent != null) recent.append(sender, recipient, v, body);
+            if (index != null && v > 0) index.put(new HistoryRow(v, sender, recipient, body, new Timestamp(now)));
+            if (terms != null) terms.add(v, sender, recipient, body, now);
+        };
+    }
+
+    /** Số liệu cache lịch sử; null nếu tắt hoặc chưa dùng. */
+    public String cacheReport() {
+        return recent == null ? null : recent.report();
+    }
+
+    /** Số liệu chỉ mục tìm kiếm; null nếu tắt hoặc chưa dùng. */
+    public String indexReport() {
+        return index == null ? null : index.report();
     }
 
-    public void saveQueued(Frame f) throws SQLException {
-        saveQueuedReturnId(f);
+    /** Số liệu tìm kiếm toàn cục; null nếu tắt hoặc chưa dùng. */
+    public String searchAllReport() {
+        return terms == null ? null : terms.report();
     }
 
-    public void saveSent(Frame f) throws SQLException {
-        saveSentReturnId(f);
+    /**
+     * Tìm trong mọi hội thoại của {@code user} (cả tên file), xếp theo độ khớp + độ mới;
+     * {@code cursor} = con trỏ trang kế của trang trước, null/"" = trang đầu. Xem {@link TermIndex}.
+     */
+    public TermIndex.Page searchAll(String user, String q, int limit, String cursor) throws SQLException {
+        if (terms == null) return new TermIndex.Page(Collections.emptyList(), "");
+        return terms.search(user, q, limit, cursor);
     }
 
-    public List<Frame> loadQueued(String recipient) throws SQLException {
-        String sql = "SELECT id, sender, body FROM messages WHERE recipient=? AND status='queued' ORDER BY id";
-        List<Frame> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    /** Ghi nốt các message đang chờ trong lô (và cập nhật chỉ mục của chúng). */
+    public void close() {
+        writer.close();
+        if (terms != null) terms.close();
+    }
+
+    /**
+     * 1 trang tin chờ của {@code recipient} có id > {@code afterId} (keyset, id tăng dần), thay vì nạp
+     * cả backlog vào heap. transferId = id tin. Không đánh dấu gì: bên gọi {@link #markDelivered} cả
+     * trang khi tin cuối trang đã ghi ra socket → phiên rớt trước đó thì trang gửi lại lần đăng nhập sau.
+     */
+    public List<Frame> loadQueued(String recipient, long afterId, int limit) throws SQLException {
+        String sql = "SELECT id, sender, body FROM messages WHERE recipient=? AND status='queued' AND id>? ORDER BY id LIMIT ?";
+        List<Frame> page = new ArrayList<>(Math.max(1, limit));
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, recipient);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                String sender = rs.getString("sender");
-                String body = rs.getString("body");
-                Frame f = new Frame(common.MessageType.DM, sender, recipient, body);
-                f.transferId = String.valueOf(rs.getLong("id"));
-                out.add(f);
-                markDelivered(rs.getLong("id"));
+            ps.setLong(2, afterId);
+            ps.setInt(3, Math.max(1, limit));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Frame f = new Frame(common.MessageType.DM, rs.getString("sender"), recipient, rs.getString("body"));
+                    f.transferId = String.valueOf(rs.getLong("id"));
+                    page.add(f);
+                }
             }
         }
-        return out;
+        return page;
     }
 
-    private void markDelivered(long id) throws SQLException {
-        String sql = "UPDATE messages SET status='delivered', delivered_at=NOW() WHERE id=?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, id);
-            ps.executeUpdate();
+    /** Đánh dấu đã giao; trả về số dòng đổi trạng thái. */
+    public int markDelivered(List<Long> ids) throws SQLException {
+        if (ids.isEmpty()) return 0;
+        try (Connection conn = pool.get()) {
+            return markDelivered(conn, ids);
+        }
+    }
+
+    /** Tin DM gửi trực tiếp đã ghi ra socket người nhận; gộp lô ở {@link MessageWriter#markDelivered}. */
+    public void markDeliveredLater(long id) {
+        writer.markDelivered(id);
+    }
+
+    static int markDelivered(Connection conn, List<Long> ids) throws SQLException {
+        StringBuilder sql = new StringBuilder("UPDATE messages SET status='delivered', delivered_at=NOW() WHERE id IN (");
+        for (int i = 0; i < ids.size(); i++) sql.append(i == 0 ? "?" : ",?");
+        sql.append(')');
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < ids.size(); i++) ps.setLong(i + 1, ids.get(i));
+            return ps.executeUpdate();
         }
     }
 
@@ -89,55 +147,152 @@ public class MessageDao {
     }
 
     public List<HistoryRow> loadConversation(String a, String b, int limit) throws SQLException {
+        return loadConversation(a, b, limit, 0L);
+    }
+
+    /**
+     * Trang lịch sử theo keyset: {@code limit} tin mới nhất có id < {@code beforeId}
+     * (beforeId <= 0 → trang mới nhất), trả về theo thứ tự cũ → mới.
+     * Sau migration: 1 range scan ngược trên (conversation_id, id); trước đó mỗi chiều
+     * sender/recipient 1 range scan rồi gộp. Không OFFSET.
+     * Trang nằm trong cửa sổ {@link RecentMessageCache} thì không xuống DB; trượt trang mới nhất
+     * thì lấy đủ 1 cửa sổ để nạp cache (các trang cuộn lên kế tiếp cũng trúng).
+     */
+    public List<HistoryRow> loadConversation(String a, String b, int limit, long beforeId) throws SQLException {
+        int n = Math.max(1, limit);
+        if (recent == null) return queryConversation(a, b, n, beforeId);
+        long key = ConversationKey.of(a, b);
+        List<HistoryRow> hit = recent.page(key, n, beforeId);
+        if (hit != null) return hit;
+        if (beforeId > 0) return queryConversation(a, b, n, beforeId);
+
+        long stamp = recent.stamp(key);
+        int window = Math.max(n, recent.rowsPerConversation());
+        List<HistoryRow> rows = queryConversation(a, b, window, 0L);
+        recent.seed(key, stamp, rows, window);
+        return rows.size() > n ? new ArrayList<>(rows.subList(rows.size() - n, rows.size())) : rows;
+    }
+
+    private List<HistoryRow> queryConversation(String a, String b, int limit, long beforeId) throws SQLException {
+        if (ConversationMigration.ready()) return loadConversationByKey(a, b, limit, beforeId);
         String sql = """
-            SELECT id, sender, recipient, body, created_at
-            FROM messages
-            WHERE (sender=? AND recipient=?) OR (sender=? AND recipient=?)
+            SELECT id, sender, recipient, body, created_at FROM (
+              (SELECT id, sender, recipient, body, created_at FROM messages
+                WHERE sender=? AND recipient=? AND id<? ORDER BY id DESC LIMIT ?)
+              UNION
+              (SELECT id, sender, recipient, body, created_at FROM messages
+                WHERE sender=? AND recipient=? AND id<? ORDER BY id DESC LIMIT ?)
+            ) t
             ORDER BY id DESC
             LIMIT ?
         """;
-        List<HistoryRow> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        int n = Math.max(1, limit);
+        long before = beforeId > 0 ? beforeId : Long.MAX_VALUE;
+        List<HistoryRow> out = new ArrayList<>(n);
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, a);
             ps.setString(2, b);
-            ps.setString(3, b);
-            ps.setString(4, a);
-            ps.setInt(5, Math.max(1, limit));
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                out.add(new HistoryRow(
-                    rs.getLong("id"),
-                    rs.getString("sender"),
-                    rs.getString("recipient"),
-                    rs.getString("body"),
-                    rs.getTimestamp("created_at")
-                ));
+            ps.setLong(3, before);
+            ps.setInt(4, n);
+            ps.setString(5, b);
+            ps.setString(6, a);
+            ps.setLong(7, before);
+            ps.setInt(8, n);
+            ps.setInt(9, n);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new HistoryRow(
+                        rs.getLong("id"),
+                        rs.getString("sender"),
+                        rs.getString("recipient"),
+                        rs.getString("body"),
+                        rs.getTimestamp("created_at")
+                    ));
+                }
             }
         }
         Collections.reverse(out);
         return out;
     }
 
-    public boolean deleteById(long id, String requester) throws SQLException {
-        String checkSql = "SELECT sender FROM messages WHERE id=?";
-        String sender = null;
-        try (PreparedStatement ps = conn.prepareStatement(checkSql)) {
-            ps.setLong(1, id);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) sender = rs.getString("sender");
+    private List<HistoryRow> loadConversationByKey(String a, String b, int limit, long beforeId) throws SQLException {
+        String sql = """
+            SELECT id, sender, recipient, body, created_at
+            FROM messages
+            WHERE conversation_id=? AND id<?
+            ORDER BY id DESC
+            LIMIT ?
+        """;
+        int n = Math.max(1, limit);
+        List<HistoryRow> out = new ArrayList<>(n);
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, ConversationKey.of(a, b));
+            ps.setLong(2, beforeId > 0 ? beforeId : Long.MAX_VALUE);
+            ps.setInt(3, n);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(historyRow(rs));
+            }
         }
-        if (sender == null || !sender.equals(requester)) return false;
+        Collections.reverse(out);
+        return out;
+    }
+
+    private static HistoryRow historyRow(ResultSet rs) throws SQLException {
+        return new HistoryRow(
+            rs.getLong("id"),
+            rs.getString("sender"),
+            rs.getString("recipient"),
+            rs.getString("body"),
+            rs.getTimestamp("created_at")
+        );
+    }
+
+    // điều kiện "thuộc hội thoại a↔b": theo conversation_id khi migration xong, không thì cặp sender/recipient
+    private static String pairWhere(boolean byKey) {
+        return byKey
+                ? "conversation_id=?"
+                : "((sender=? AND recipient=?) OR (sender=? AND recipient=?))";
+    }
+
+    /** Gán tham số cho {@link #pairWhere} từ vị trí {@code i}; trả về vị trí kế tiếp. */
+    private static int bindPair(PreparedStatement ps, int i, String a, String b, boolean byKey) throws SQLException {
+        if (byKey) {
+            ps.setLong(i, ConversationKey.of(a, b));
+            return i + 1;
+        }
+        ps.setString(i, a);
+        ps.setString(i + 1, b);
+        ps.setString(i + 2, b);
+        ps.setString(i + 3, a);
+        return i + 4;
+    }
 
-        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE id=?")) {
+    /** Người còn lại của tin {@code id} nếu {@code me} là người gửi hoặc nhận; null nếu không có / không liên quan. */
+    public String peerOf(long id, String me) throws SQLException {
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement("SELECT sender, recipient FROM messages WHERE id=?")) {
             ps.setLong(1, id);
-            return ps.executeUpdate() > 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                String s = rs.getString("sender"), r = rs.getString("recipient");
+                if (me.equals(s)) return r;
+                if (me.equals(r)) return s;
+                return null;
+            }
         }
     }
 
+    public boolean deleteById(long id, String requester) throws SQLException {
+        return deleteByIdReturningPeer(id, requester) != null;
+    }
+
     public String deleteByIdReturningPeer(long id, String requester) throws SQLException {
         String sqlSel = "SELECT sender, recipient FROM messages WHERE id=?";
         String sender = null, recipient = null;
-        try (PreparedStatement ps = conn.prepareStatement(sqlSel)) {
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sqlSel)) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -148,53 +303,75 @@ public class MessageDao {
         }
         if (sender == null || !sender.equals(requester)) return null;
 
-        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE id=?")) {
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE id=?")) {
             ps.setLong(1, id);
             int n = ps.executeUpdate();
-            return (n > 0) ? recipient : null;
+            if (n <= 0) return null;
         }
+        if (recent != null) recent.remove(sender, recipient, id);
+        if (index != null) index.remove(sender, recipient, id);
+        if (terms != null) terms.remove(id);
+        return recipient;
     }
     
     public String updateByIdReturningPeer(long id, String requester, String newBody) throws SQLException {
-        String sel = "SELECT sender, recipient FROM messages WHERE id=?";
+        String sel = "SELECT sender, recipient, created_at FROM messages WHERE id=?";
         String sender = null, recipient = null;
-        try (PreparedStatement ps = conn.prepareStatement(sel)) {
+        long createdAtMs = 0;
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sel)) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
                     sender = rs.getString("sender");
                     recipient = rs.getString("recipient");
+                    Timestamp ts = rs.getTimestamp("created_at");
+                    if (ts != null) createdAtMs = ts.getTime();
                 }
             }
         }
         if (sender == null || !sender.equals(requester)) return null;
 
         String upd = "UPDATE messages SET body=?, updated_at=NOW() WHERE id=?";
-        try (PreparedStatement ps = conn.prepareStatement(upd)) {
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(upd)) {
             ps.setString(1, newBody);
             ps.setLong(2, id);
             int n = ps.executeUpdate();
-            return (n > 0) ? recipient : null;
+            if (n <= 0) return null;
         }
+        if (recent != null) recent.edit(sender, recipient, id, newBody);
+        if (index != null) index.edit(sender, recipient, id, newBody);
+        if (terms != null) terms.replace(id, sender, recipient, newBody, createdAtMs);
+        return recipient;
     }
     
+    /**
+     * Tìm chuỗi con không dấu trong hội thoại, id tăng dần. Qua {@link MessageIndex} khi bật
+     * (lần đầu của hội thoại dựng chỉ mục); câu hỏi không có chữ/số thì dùng LIKE như cũ.
+     */
     public List<HistoryRow> searchConversation(String a, String b, String q, int limit, int offset) throws SQLException {
+        if (index != null) {
+            List<HistoryRow> hits = index.search(a, b, q, Math.max(1, limit), Math.max(0, offset),
+                    (afterId, n) -> loadAfter(a, b, afterId, n));
+            if (hits != null) return hits;
+        }
+        boolean byKey = ConversationMigration.ready();
         String sql = """
             SELECT id,sender,recipient,body,created_at
             FROM messages
-            WHERE ((sender=? AND recipient=?) OR (sender=? AND recipient=?))
+            WHERE %s
               AND body COLLATE utf8mb4_0900_ai_ci LIKE ?
-            ORDER BY created_at ASC
+            ORDER BY id ASC
             LIMIT ? OFFSET ?
-        """;
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, a);
-            ps.setString(2, b);
-            ps.setString(3, b);
-            ps.setString(4, a);
-            ps.setString(5, "%" + q + "%");
-            ps.setInt(6, Math.max(1, limit));
-            ps.setInt(7, Math.max(0, offset));
+        """.formatted(pairWhere(byKey));
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            int i = bindPair(ps, 1, a, b, byKey);
+            ps.setString(i, "%" + q + "%");
+            ps.setInt(i + 1, Math.max(1, limit));
+            ps.setInt(i + 2, Math.max(0, offset));
             try (ResultSet rs = ps.executeQuery()) {
                 List<HistoryRow> out = new ArrayList<>();
                 while (rs.next()) {
@@ -213,30 +390,53 @@ public class MessageDao {
         }
     }
 
-    private static String normalizeAscii(String s){
-        if(s==null) return "";
-        String n=java.text.Normalizer.normalize(s, java.text.Normalizer.Form.NFD);
-        n=n.replaceAll("\\p{M}+","");
-        return n.toLowerCase(java.util.Locale.ROOT);
+    /** Các tin của hội thoại có id > afterId, tăng dần (dựng chỉ mục). */
+    private List<HistoryRow> loadAfter(String a, String b, long afterId, int limit) throws SQLException {
+        boolean byKey = ConversationMigration.ready();
+        String sql = """
+            SELECT id,sender,recipient,body,created_at
+            FROM messages
+            WHERE %s AND id>?
+            ORDER BY id ASC
+            LIMIT ?
+        """.formatted(pairWhere(byKey));
+        List<HistoryRow> out = new ArrayList<>(limit);
+        try (Connection conn = pool.get();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            int i = bindPair(ps, 1, a, b, byKey);
+            ps.setLong(i, afterId);
+            ps.setInt(i + 1, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(historyRow(rs));
+            }
+        }
+        return out;
+    }
+
+    /** Bỏ dấu + hạ chữ, đ → d (xem {@link TextFold}). */
+    public static String normalizeAscii(String s){
+        return TextFold.fold(s);
     }
 
     private List<HistoryRow> searchConversationFallbackJava(String a,String b,String q,int limit,int offset) throws SQLException {
+        boolean byKey = ConversationMigration.ready();
         String sql = """
             SELECT id,sender,recipient,body,created_at
             FROM messages
-            WHERE (sender=? AND recipient=?) OR (sender=? AND recipient=?)
-            ORDER BY created_at ASC
+            WHERE %s
+            ORDER BY id ASC
             LIMIT ? OFFSET ?
-        """;
+        """.formatted(pairWhere(byKey));
         List<HistoryRow> out = new ArrayList<>();
         String nq = normalizeAscii(q);
         int need = limit + offset;
         int page = Math.max(need * 3, 200);
         int off = 0;
         while (out.size() < need) {
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setString(1,a); ps.setString(2,b); ps.setString(3,b); ps.setString(4,a);
-                ps.setInt(5,page); ps.setInt(6,off);
+            try (Connection conn = pool.get();
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                int i = bindPair(ps, 1, a, b, byKey);
+                ps.setInt(i,page); ps.setInt(i+1,off);
                 try(ResultSet rs=ps.executeQuery()){
                     boolean any=false;
                     while(rs.next()){
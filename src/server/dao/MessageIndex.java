@@ -0,0 +1,376 @@
+package server.dao;
+
+import common.TextFold;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chỉ mục đảo (token đã {@link TextFold#fold} → danh sách id tăng dần) cho tìm kiếm trong 1 hội thoại,
+ * thay cho {@code LIKE '%q%'} không dùng được index và vòng quét Normalizer + regex từng tin.
+ *
+ * - Dựng lười: lần tìm đầu của hội thoại quét các tin của nó 1 lần theo keyset ({@link Loader});
+ *   từ đó cập nhật dần khi thêm / sửa / xoá tin. Tin thay đổi trong lúc đang dựng được ghi nhận
+ *   riêng và thắng bản đọc từ DB → không lẫn nội dung cũ.
+ * - Tìm: mỗi token của câu hỏi chọn các term khớp theo vị trí (token giữa = bằng, token đầu có thể là
+ *   đuôi của term, token cuối có thể là đầu term, 1 token = chuỗi con), hợp các posting của chúng,
+ *   giao giữa các token (tập nhỏ nhất trước), rồi xác nhận cụm bằng {@code fold(body).contains(fold(q))}
+ *   → kết quả đúng như so chuỗi con không dấu trên toàn bộ body.
+ * - Giữ tối đa {@code conversations} hội thoại và {@code maxBytes} (ước lượng nội dung + posting) — bỏ hội
+ *   thoại dùng lâu nhất trước; hội thoại bị bỏ sẽ dựng lại khi tìm lần sau. Hội thoại một mình đã vượt
+ *   {@code maxBytes} thì không giữ chỉ mục (nhớ lại để không dựng lại mỗi lần): tìm bằng SQL như cũ.
+ */
+public final class MessageIndex {
+    /** Đọc các tin của hội thoại có id > afterId, tăng dần, tối đa {@code limit} dòng. */
+    @FunctionalInterface
+    public interface Loader {
+        List<MessageDao.HistoryRow> page(long afterId, int limit) throws SQLException;
+    }
+
+    private static final int LOAD_PAGE = 1000;
+
+    private final int conversations;
+    private final long maxBytes;
+    private final Map<Long, Conversation> map;                 // thứ tự truy cập: đầu = dùng lâu nhất
+    private final Set<Long> oversized;                         // khoá map
+    private final AtomicLong bytes = new AtomicLong();         // tổng Conversation.bytes đang trong map
+
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder builds = new LongAdder();
+    private final LongAdder candidates = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** Danh sách id tăng dần, thường chỉ nối đuôi. */
+    private static final class Postings {
+        long[] ids = new long[4];
+        int size;
+
+        void add(long id) {
+            if (size == 0 || ids[size - 1] < id) {
+                if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+                ids[size++] = id;
+                return;
+            }
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) return;
+            i = -i - 1;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            ids[i] = id;
+            size++;
+        }
+
+        void remove(long id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i < 0) return;
+            System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+            size--;
+        }
+    }
+
+    /** Chỉ mục của 1 hội thoại; mọi truy cập giữ monitor của chính nó. */
+    private static final class Conversation {
+        final TreeMap<String, Postings> terms = new TreeMap<>();
+        final Map<Long, MessageDao.HistoryRow> docs = new HashMap<>();
+        long bytes;       // ước lượng bộ nhớ của docs + posting
+        boolean ready;
+        boolean evicted;  // đã rời map: thay đổi sau đó không tính vào tổng
+        boolean oversized;
+        // thay đổi trong lúc dựng (null sau khi xong): id đã thêm/xoá → bỏ bản từ DB;
+        // id đã sửa mà chưa đọc tới → lấy bản DB nhưng thay nội dung mới
+        Set<Long> skip = new HashSet<>();
+        Map<Long, String> edited = new HashMap<>();
+
+        /** Trả số byte tăng thêm (âm nếu giảm). */
+        long put(MessageDao.HistoryRow r) {
+            long d = 0;
+            MessageDao.HistoryRow old = docs.put(r.id, r);
+            if (old != null) d -= unindex(old);
+            Set<String> tokens = new HashSet<>(TextFold.tokens(TextFold.fold(r.body)));
+            for (String t : tokens) {
+                terms.computeIfAbsent(t, k -> new Postings()).add(r.id);
+            }
+            d += cost(r, tokens.size());
+            bytes += d;
+            return d;
+        }
+
+        long drop(long id) {
+            MessageDao.HistoryRow old = docs.remove(id);
+            if (old == null) return 0;
+            long d = -unindex(old);
+            bytes += d;
+            return d;
+        }
+
+        private long unindex(MessageDao.HistoryRow r) {
+            Set<String> tokens = new HashSet<>(TextFold.tokens(TextFold.fold(r.body)));
+            for (String t : tokens) {
+                Postings p = terms.get(t);
+                if (p == null) continue;
+                p.remove(r.id);
+                if (p.size == 0) terms.remove(t);
+            }
+            return cost(r, tokens.size());
+        }
+
+        // ước lượng: object + entry map + chuỗi UTF-16, mỗi token ~1 ô posting + phần term dùng chung
+        private static long cost(MessageDao.HistoryRow r, int tokens) {
+            return 96 + 2L * (len(r.body) + len(r.sender) + len(r.recipient)) + 24L * tokens;
+        }
+
+        private static int len(String s) { return s == null ? 0 : s.length(); }
+    }
+
+    public MessageIndex(int conversations, long maxBytes) {
+        if (conversations < 1) throw new IllegalArgumentException("conversations < 1");
+        if (maxBytes < 1) throw new IllegalArgumentException("maxBytes < 1");
+        this.conversations = conversations;
+        this.maxBytes = maxBytes;
+        this.map = new LinkedHashMap<>(Math.min(conversations, 1024), 0.75f, true);
+        this.oversized = Collections.newSetFromMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > MessageIndex.this.conversations;
+            }
+        });
+    }
+
+    /**
+     * Kết quả tìm {@code q} trong hội thoại a↔b theo id tăng dần (offset/limit như SQL);
+     * null nếu câu hỏi không có token nào hoặc hội thoại quá lớn để giữ chỉ mục (người gọi dùng đường cũ).
+     */
+    public List<MessageDao.HistoryRow> search(String a, String b, String q, int limit, int offset,
+                                              Loader loader) throws SQLException {
+        String fq = TextFold.fold(q);
+        List<String> qt = TextFold.tokens(fq);
+        if (qt.isEmpty()) return null;
+        searches.increment();
+        Conversation c = conversation(ConversationKey.of(a, b), loader);
+        if (c == null) return null;
+
+        synchronized (c) {
+            long[][] sets = new long[qt.size()][];
+            for (int i = 0; i < qt.size(); i++) {
+                boolean leftOpen = i == 0 && TextFold.startsInWord(fq);
+                boolean rightOpen = i == qt.size() - 1 && TextFold.endsInWord(fq);
+                sets[i] = lookup(c, qt.get(i), leftOpen, rightOpen);
+                if (sets[i].length == 0) return Collections.emptyList();
+            }
+            Arrays.sort(sets, (x, y) -> Integer.compare(x.length, y.length));
+            long[] ids = sets[0];
+            for (int i = 1; i < sets.length && ids.length > 0; i++) ids = intersect(ids, sets[i]);
+            candidates.add(ids.length);
+
+            List<MessageDao.HistoryRow> out = new ArrayList<>(Math.min(limit, ids.length));
+            int skip = Math.max(0, offset);
+            for (long id : ids) {
+                MessageDao.HistoryRow r = c.docs.get(id);
+                if (r == null || !TextFold.fold(r.body).contains(fq)) continue;
+                if (skip > 0) { skip--; continue; }
+                out.add(r);
+                if (out.size() >= limit) break;
+            }
+            matches.add(out.size());
+            return out;
+        }
+    }
+
+    // hợp posting của các term khớp token theo vị trí của token trong câu hỏi
+    private static long[] lookup(Conversation c, String tok, boolean leftOpen, boolean rightOpen) {
+        if (!leftOpen) {
+            if (!rightOpen) {
+                Postings p = c.terms.get(tok);
+                return p == null ? new long[0] : Arrays.copyOf(p.ids, p.size);
+            }
+            // term bắt đầu bằng tok: 1 đoạn liên tiếp của TreeMap
+            List<Postings> hit = new ArrayList<>();
+            for (Map.Entry<String, Postings> e : c.terms.tailMap(tok, true).entrySet()) {
+                if (!e.getKey().startsWith(tok)) break;
+                hit.add(e.getValue());
+            }
+            return union(hit);
+        }
+        List<Postings> hit = new ArrayList<>();
+        for (Map.Entry<String, Postings> e : c.terms.entrySet()) {
+            String t = e.getKey();
+            if (rightOpen ? t.contains(tok) : t.endsWith(tok)) hit.add(e.getValue());
+        }
+        return union(hit);
+    }
+
+    private static long[] union(List<Postings> lists) {
+        if (lists.isEmpty()) return new long[0];
+        if (lists.size() == 1) return Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+        int n = 0;
+        for (Postings p : lists) n += p.size;
+        long[] all = new long[n];
+        int k = 0;
+        for (Postings p : lists) { System.arraycopy(p.ids, 0, all, k, p.size); k += p.size; }
+        Arrays.sort(all);
+        int m = 0;
+        for (int i = 0; i < n; i++) if (m == 0 || all[m - 1] != all[i]) all[m++] = all[i];
+        return Arrays.copyOf(all, m);
+    }
+
+    private static long[] intersect(long[] x, long[] y) {
+        long[] out = new long[Math.min(x.length, y.length)];
+        int i = 0, j = 0, k = 0;
+        while (i < x.length && j < y.length) {
+            if (x[i] < y[j]) i++;
+            else if (x[i] > y[j]) j++;
+            else { out[k++] = x[i]; i++; j++; }
+        }
+        return Arrays.copyOf(out, k);
+    }
+
+    // lấy (hoặc dựng) chỉ mục hội thoại; dựng ngoài khoá chung, chỉ giữ khoá của hội thoại đó.
+    // null = hội thoại quá lớn. Thứ tự khoá luôn map → hội thoại, không bao giờ ngược lại.
+    private Conversation conversation(long key, Loader loader) throws SQLException {
+        Conversation c;
+        synchronized (map) {
+            if (oversized.contains(key)) return null;
+            c = map.get(key);
+            if (c == null) {
+                c = new Conversation();
+                map.put(key, c);
+                trim();
+            }
+        }
+        synchronized (c) {
+            if (c.ready) return c;
+            if (c.oversized) return null;
+        }
+        return build(key, c, loader) ? c : null;
+    }
+
+    private boolean build(long key, Conversation c, Loader loader) throws SQLException {
+        long after = 0;
+        while (true) {
+            List<MessageDao.HistoryRow> page = loader.page(after, LOAD_PAGE);
+            boolean tooBig;
+            synchronized (c) {
+                if (c.ready) return true; // luồng khác đã dựng xong
+                if (c.oversized) return false;
+                long d = 0;
+                for (MessageDao.HistoryRow r : page) {
+                    if (c.skip.contains(r.id)) continue;
+                    String body = c.edited.get(r.id);
+                    d += c.put(body == null ? r : new MessageDao.HistoryRow(r.id, r.sender, r.recipient, body, r.createdAt));
+                }
+                tooBig = c.bytes > maxBytes;
+                if (tooBig) c.oversized = true; else grew(c, d);
+            }
+            if (tooBig) {
+                // 1 hội thoại đã vượt cả ngân sách: không giữ, cũng không đẩy các hội thoại khác ra
+                synchronized (map) {
+                    if (map.remove(key, c)) evict(c);
+                    oversized.add(key);
+                }
+                synchronized (c) {
+                    c.docs.clear();
+                    c.terms.clear();
+                }
+                return false;
+            }
+            shrink();
+            if (page.size() < LOAD_PAGE) break;
+            after = page.get(page.size() - 1).id;
+        }
+        synchronized (c) {
+            c.ready = true;
+            c.skip = null;
+            c.edited = null;
+        }
+        builds.increment();
+        return true;
+    }
+
+    // gọi khi giữ khoá c
+    private void grew(Conversation c, long delta) {
+        if (!c.evicted) bytes.addAndGet(delta);
+    }
+
+    private void shrink() {
+        if (bytes.get() <= maxBytes) return;
+        synchronized (map) { trim(); }
+    }
+
+    // giữ khoá map: bỏ hội thoại dùng lâu nhất tới khi vừa cả số lượng lẫn bộ nhớ
+    private void trim() {
+        Iterator<Conversation> it = map.values().iterator();
+        while (it.hasNext() && (map.size() > conversations || bytes.get() > maxBytes)) {
+            Conversation c = it.next();
+            it.remove();
+            evict(c);
+        }
+    }
+
+    private void evict(Conversation c) {
+        synchronized (c) {
+            if (c.evicted) return;
+            c.evicted = true;
+            bytes.addAndGet(-c.bytes);
+        }
+        evictions.increment();
+    }
+
+    private Conversation peek(String a, String b) {
+        synchronized (map) { return map.get(ConversationKey.of(a, b)); }
+    }
+
+    /** Tin mới / đã sửa (thay toàn bộ nội dung cũ). */
+    public void put(MessageDao.HistoryRow r) {
+        Conversation c = peek(r.sender, r.recipient);
+        if (c == null) return;
+        synchronized (c) {
+            if (c.skip != null) c.skip.add(r.id);
+            grew(c, c.put(r));
+        }
+        shrink();
+    }
+
+    /** Đã sửa nội dung tin {@code id}. */
+    public void edit(String a, String b, long id, String newBody) {
+        Conversation c = peek(a, b);
+        if (c == null) return;
+        synchronized (c) {
+            if (c.edited != null) c.edited.put(id, newBody);
+            MessageDao.HistoryRow old = c.docs.get(id);
+            if (old != null) grew(c, c.put(new MessageDao.HistoryRow(id, old.sender, old.recipient, newBody, old.createdAt)));
+        }
+        shrink();
+    }
+
+    public void remove(String a, String b, long id) {
+        Conversation c = peek(a, b);
+        if (c == null) return;
+        synchronized (c) {
+            if (c.skip != null) c.skip.add(id);
+            grew(c, c.drop(id));
+        }
+    }
+
+    /** Tóm tắt số liệu; null nếu chưa có lần tìm nào. */
+    public String report() {
+        long s = searches.sum();
+        if (s == 0) return null;
+        int n, big;
+        synchronized (map) { n = map.size(); big = oversized.size(); }
+        return String.format("conversations=%d/%d bytes=%d/%d oversized=%d evictions=%d searches=%d builds=%d candidates=%d matches=%d",
+                n, conversations, bytes.get(), maxBytes, big, evictions.sum(), s, builds.sum(), candidates.sum(), matches.sum());
+    }
+}
@@ -0,0 +1,234 @@
+package server.dao;
+
+import common.Log;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+
+/**
+ * Ghi message theo lô (group commit): các INSERT đồng thời được gom lại, chạy 1 batch
+ * (driver viết lại thành INSERT nhiều dòng, rewriteBatchedStatements) trong 1 transaction.
+ *
+ * - 1 thread ghi duy nhất → id tăng đúng thứ tự gửi vào.
+ * - Lô đóng khi đủ -Dmsg.writer.maxRows dòng hoặc sau -Dmsg.writer.lingerMs kể từ dòng đầu
+ *   (0 = chỉ lấy những gì đang chờ sẵn); trong lúc 1 lô đang commit, dòng mới tự dồn vào lô sau.
+ * - -Dmsg.writer.forward=commit (mặc định): future xong sau COMMIT → chỉ chuyển tiếp tin đã bền.
+ *   =insert: future xong ngay khi có id (trước COMMIT) → chuyển tiếp sớm hơn; nếu COMMIT lỗi thì
+ *   tin đã gửi đi nhưng không còn trong DB (chỉ log, không ghi lại).
+ * - onCommit (cache/chỉ mục) chỉ chạy sau COMMIT thành công, ở cả 2 chế độ; chế độ commit thì chạy trước
+ *   khi future xong.
+ * - Future và onCommit chạy trên 1 thread "msg-callback" riêng (vẫn đúng thứ tự id): việc của người gọi
+ *   (gửi frame, cập nhật cache) không làm chậm lô kế tiếp.
+ * - Lô lỗi thì rollback rồi ghi lại từng dòng, để chỉ dòng hỏng nhận lỗi.
+ * - {@link #markDelivered}: id tin đã ghi ra socket người nhận được gom lại, thread ghi đổi sang 'delivered'
+ *   bằng 1 UPDATE sau mỗi lô (thay vì 1 UPDATE mỗi tin trên làn DB).
+ */
+public final class MessageWriter implements AutoCloseable {
+    private static final int MAX_ROWS = Integer.getInteger("msg.writer.maxRows", 256);
+    private static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("msg.writer.lingerMs", 1));
+    private static final boolean FORWARD_BEFORE_COMMIT =
+            "insert".equalsIgnoreCase(System.getProperty("msg.writer.forward", "commit"));
+
+    private record Pending(String sender, String recipient, String body, String status,
+                           CompletableFuture<Long> done, LongConsumer onCommit) {}
+
+    private static final Pending STOP = new Pending(null, null, null, null, null, null);
+    private static final Pending MARK = new Pending(null, null, null, null, null, null); // đánh thức: có id chờ đánh dấu
+
+    private final ConnectionPool pool;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private final ExecutorService callbacks = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "msg-callback");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ConcurrentLinkedQueue<Long> delivered = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean markQueued = new AtomicBoolean();
+    private volatile boolean closed;
+
+    public MessageWriter(ConnectionPool pool) {
+        this.pool = pool;
+        this.thread = new Thread(this::run, "msg-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Xếp 1 dòng vào lô kế tiếp; future trả id sinh ra (0 nếu driver không trả key).
+     * {@code onCommit} (có thể null) nhận id khi dòng đã COMMIT.
+     */
+    public CompletableFuture<Long> submit(String sender, String recipient, String body, String status,
+                                          LongConsumer onCommit) {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        if (closed) {
+            done.completeExceptionally(new SQLException("Message writer closed"));
+            return done;
+        }
+        queue.add(new Pending(sender, recipient, body, status, done, onCommit));
+        return done;
+    }
+
+    /**
+     * Tin {@code id} (đã ghi 'queued') vừa ghi ra socket người nhận: đánh dấu delivered ở lần ghi kế tiếp.
+     * Đã đóng thì bỏ qua — tin còn 'queued', gửi lại lần đăng nhập sau.
+     */
+    public void markDelivered(long id) {
+        if (closed || id <= 0) return;
+        delivered.add(id);
+        if (markQueued.compareAndSet(false, true)) queue.add(MARK);
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(MAX_ROWS);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                Pending first = queue.take();
+                if (first == STOP) break;
+                if (first != MARK) batch.add(first);
+                long deadline = System.nanoTime() + LINGER_NANOS;
+                while (!batch.isEmpty() && batch.size() < MAX_ROWS) {
+                    long left = deadline - System.nanoTime();
+                    Pending p = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (p == null) break;
+                    if (p == STOP) { stop = true; break; }
+                    if (p != MARK) batch.add(p);
+                }
+            } catch (InterruptedException e) {
+                stop = true;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+            flushDelivered();
+        }
+        // phần còn lại sau khi đóng
+        List<Pending> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        rest.removeIf(p -> p == STOP || p == MARK);
+        if (!rest.isEmpty()) write(rest);
+        flushDelivered();
+    }
+
+    // sau lô insert (cùng thread): với forward=insert, tin được đánh dấu chắc chắn đã COMMIT trước
+    private void flushDelivered() {
+        markQueued.set(false);
+        if (delivered.isEmpty()) return;
+        List<Long> ids = new ArrayList<>();
+        for (Long id; (id = delivered.poll()) != null; ) {
+            ids.add(id);
+            if (ids.size() == MAX_ROWS || delivered.isEmpty()) {
+                try (Connection c = pool.get()) {
+                    MessageDao.markDelivered(c, ids);
+                } catch (SQLException e) {
+                    Log.warn("DB", "Mark delivered failed for " + ids.size() + " messages: " + e.getMessage());
+                }
+                ids.clear();
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        try (Connection c = pool.get()) {
+            try {
+                insertBatch(c, batch);
+            } catch (SQLException e) {
+                if (batch.size() == 1) { fail(batch, e); return; }
+                Log.warn("DB", "batch insert of " + batch.size() + " rows failed, retrying one by one: " + e.getMessage());
+                for (Pending p : batch) {
+                    try { insertBatch(c, List.of(p)); } catch (SQLException e1) { fail(List.of(p), e1); }
+                }
+            }
+        } catch (SQLException e) {
+            fail(batch, e);
+        }
+    }
+
+    private void insertBatch(Connection c, List<Pending> batch) throws SQLException {
+        boolean conv = ConversationMigration.hasColumn();
+        String sql = conv
+                ? "INSERT INTO messages(sender, recipient, body, status, conversation_id) VALUES(?,?,?,?,?)"
+                : "INSERT INTO messages(sender, recipient, body, status) VALUES(?,?,?,?)";
+        long[] ids = new long[batch.size()];
+        c.setAutoCommit(false);
+        try {
+            try (PreparedStatement ps = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                for (Pending p : batch) {
+                    ps.setString(1, p.sender);
+                    ps.setString(2, p.recipient);
+                    ps.setString(3, p.body);
+                    ps.setString(4, p.status);
+                    if (conv) ps.setLong(5, ConversationKey.of(p.sender, p.recipient));
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    for (int i = 0; i < ids.length && rs.next(); i++) ids[i] = rs.getLong(1);
+                }
+            }
+        } catch (SQLException e) {
+            try { c.rollback(); } catch (SQLException ignore) {}
+            c.setAutoCommit(true);
+            throw e;
+        }
+        List<Pending> rows = List.copyOf(batch); // batch của run() được dùng lại cho lô sau
+        if (FORWARD_BEFORE_COMMIT) callbacks.execute(() -> {
+            for (int i = 0; i < ids.length; i++) rows.get(i).done.complete(ids[i]);
+        });
+        try {
+            c.commit();
+        } catch (SQLException e) {
+            // đã chuyển tiếp: không ghi lại (id đã gửi đi), cache/chỉ mục không nhận dòng nào
+            try { c.rollback(); } catch (SQLException ignore) {}
+            if (!FORWARD_BEFORE_COMMIT) throw e;
+            Log.error("DB", "commit failed after forwarding " + rows.size() + " messages", e);
+            return;
+        } finally {
+            c.setAutoCommit(true);
+        }
+        callbacks.execute(() -> {
+            for (int i = 0; i < ids.length; i++) {
+                Pending p = rows.get(i);
+                if (p.onCommit != null) {
+                    try { p.onCommit.accept(ids[i]); }
+                    catch (RuntimeException e) { Log.error("DB", "onCommit failed for message " + ids[i], e); }
+                }
+                if (!FORWARD_BEFORE_COMMIT) p.done.complete(ids[i]);
+            }
+        });
+    }
+
+    private void fail(List<Pending> batch, SQLException e) {
+        List<Pending> rows = List.copyOf(batch);
+        callbacks.execute(() -> {
+            for (Pending p : rows) p.done.completeExceptionally(e);
+        });
+    }
+
+    /** Ghi nốt các dòng đang chờ rồi dừng thread. */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        queue.add(STOP);
+        try {
+            thread.join(5000);
+            // cho các callback của lô cuối (cache, chỉ mục) chạy xong trước khi người gọi đóng chỉ mục
+            callbacks.shutdown();
+            callbacks.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package server.dao;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache các tin gần nhất của từng hội thoại (khoá {@link ConversationKey}) để mở chat không phải xuống MySQL.
+ *
+ * - Mỗi hội thoại 1 ring buffer tối đa {@code rows} tin, id tăng dần. Cửa sổ luôn liền mạch: mọi tin có
+ *   id ≥ tin cũ nhất trong buffer đều có mặt; {@code atStart} = không còn tin nào cũ hơn trong DB.
+ * - Chỉ nạp từ DB ({@link #seed}) sau 1 lần trượt trang mới nhất; ghi mới chỉ nối vào hội thoại đã có
+ *   trong cache. Nạp bị huỷ nếu trong lúc truy vấn có ghi/sửa/xoá cùng hội thoại (tem theo dải khoá)
+ *   → không giữ cửa sổ thiếu tin (trừ -Dmsg.writer.forward=insert: tin chưa COMMIT lúc nạp có thể lọt).
+ * - Trang (limit, beforeId) được phục vụ từ cache khi cửa sổ có đủ {@code limit} tin trước beforeId,
+ *   hoặc có ít hơn nhưng đã tới đầu hội thoại.
+ * - Quá {@code conversations} hội thoại → bỏ hội thoại ít dùng gần đây nhất (LRU).
+ * Thread-safe; mọi thao tác ngắn, khoá chung 1 monitor.
+ */
+public final class RecentMessageCache {
+    private static final int STRIPES = 256;
+
+    private final int rows;
+    private final int conversations;
+    private final Map<Long, Window> map;
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder seeds = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** Ring buffer id tăng dần của 1 hội thoại. */
+    private static final class Window {
+        final MessageDao.HistoryRow[] ring;
+        int head, size;        // head = vị trí tin cũ nhất
+        boolean atStart;
+
+        Window(int cap) { ring = new MessageDao.HistoryRow[cap]; }
+
+        MessageDao.HistoryRow get(int i) { return ring[(head + i) % ring.length]; }
+
+        void set(int i, MessageDao.HistoryRow r) { ring[(head + i) % ring.length] = r; }
+
+        /** Thêm theo id (thường là cuối); đầy thì bỏ tin cũ nhất → không còn tới đầu hội thoại. */
+        void add(MessageDao.HistoryRow r) {
+            int i = size;
+            while (i > 0 && get(i - 1).id > r.id) i--;
+            if (i > 0 && get(i - 1).id == r.id) { set(i - 1, r); return; }
+            if (size == ring.length) {
+                if (i == 0) return; // cũ hơn cả cửa sổ đầy
+                head = (head + 1) % ring.length;
+                size--;
+                i--;
+                atStart = false;
+            }
+            for (int j = size; j > i; j--) set(j, get(j - 1));
+            set(i, r);
+            size++;
+        }
+
+        int indexOf(long id) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long v = get(mid).id;
+                if (v < id) lo = mid + 1; else if (v > id) hi = mid - 1; else return mid;
+            }
+            return -1;
+        }
+
+        void remove(int i) {
+            for (int j = i; j < size - 1; j++) set(j, get(j + 1));
+            set(size - 1, null);
+            size--;
+        }
+    }
+
+    public RecentMessageCache(int rows, int conversations) {
+        if (rows < 1 || conversations < 1) throw new IllegalArgumentException("rows/conversations < 1");
+        this.rows = rows;
+        this.conversations = conversations;
+        this.map = new LinkedHashMap<>(Math.min(conversations, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Window> eldest) {
+                if (size() <= RecentMessageCache.this.conversations) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /** Số tin tối đa giữ cho mỗi hội thoại; nạp cache nên lấy ít nhất ngần này tin. */
+    public int rowsPerConversation() { return rows; }
+
+    /** Tem hiện tại của hội thoại; đọc trước truy vấn DB rồi đưa vào {@link #seed}. */
+    public long stamp(long key) {
+        return stamps.get(stripe(key));
+    }
+
+    /**
+     * Trang {@code limit} tin mới nhất có id < beforeId (≤ 0 = mới nhất), cũ → mới;
+     * null nếu cửa sổ không đủ (phải xuống DB).
+     */
+    public List<MessageDao.HistoryRow> page(long key, int limit, long beforeId) {
+        long before = beforeId > 0 ? beforeId : Long.MAX_VALUE;
+        synchronized (this) {
+            Window w = map.get(key);
+            if (w != null) {
+                int end = w.size;
+                while (end > 0 && w.get(end - 1).id >= before) end--;
+                // cửa sổ liền mạch: đủ limit tin trước beforeId, hoặc không còn tin cũ hơn trong DB
+                if (end >= limit || w.atStart) {
+                    int from = Math.max(0, end - limit);
+                    List<MessageDao.HistoryRow> out = new ArrayList<>(end - from);
+                    for (int i = from; i < end; i++) out.add(w.get(i));
+                    hits.increment();
+                    return out;
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Nạp cửa sổ từ kết quả trang mới nhất ({@code newest}: cũ → mới, lấy với {@code limit}).
+     * Bỏ qua nếu tem đã đổi kể từ {@code stamp} (có ghi xen giữa).
+     */
+    public void seed(long key, long stamp, List<MessageDao.HistoryRow> newest, int limit) {
+        synchronized (this) {
+            if (stamps.get(stripe(key)) != stamp) return;
+            Window w = new Window(rows);
+            int from = Math.max(0, newest.size() - rows);
+            for (int i = from; i < newest.size(); i++) w.add(newest.get(i));
+            w.atStart = newest.size() < limit && from == 0;
+            map.put(key, w);
+            seeds.increment();
+        }
+    }
+
+    /** Tin mới đã có id: nối vào cửa sổ nếu hội thoại đang được cache. */
+    public void append(String sender, String recipient, long id, String body) {
+        if (id <= 0) return;
+        long key = ConversationKey.of(sender, recipient);
+        synchronized (this) {
+            stamps.incrementAndGet(stripe(key));
+            Window w = map.get(key);
+            if (w != null) w.add(new MessageDao.HistoryRow(id, sender, recipient, body, new Timestamp(System.currentTimeMillis())));
+        }
+    }
+
+    /** Đã sửa nội dung tin {@code id} của hội thoại a↔b. */
+    public void edit(String a, String b, long id, String newBody) {
+        long key = ConversationKey.of(a, b);
+        synchronized (this) {
+            stamps.incrementAndGet(stripe(key));
+            Window w = map.get(key);
+            if (w == null) return;
+            int i = w.indexOf(id);
+            if (i < 0) return;
+            MessageDao.HistoryRow r = w.get(i);
+            w.set(i, new MessageDao.HistoryRow(r.id, r.sender, r.recipient, newBody, r.createdAt));
+        }
+    }
+
+    /** Đã xoá tin {@code id} của hội thoại a↔b. */
+    public void remove(String a, String b, long id) {
+        long key = ConversationKey.of(a, b);
+        synchronized (this) {
+            stamps.incrementAndGet(stripe(key));
+            Window w = map.get(key);
+            if (w == null) return;
+            int i = w.indexOf(id);
+            if (i >= 0) w.remove(i);
+        }
+    }
+
+    public synchronized int size() { return map.size(); }
+
+    /** Tóm tắt số liệu; null nếu chưa có lần đọc nào. */
+    public String report() {
+        long h = hits.sum(), m = misses.sum();
+        if (h + m == 0) return null;
+        return String.format("conversations=%d/%d hits=%d misses=%d hitRate=%.1f%% seeds=%d evictions=%d",
+                size(), conversations, h, m, 100.0 * h / (h + m), seeds.sum(), evictions.sum());
+    }
+
+    private static int stripe(long key) {
+        return (int) (key ^ (key >>> 32)) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,409 @@
+package server.dao;
+
+import common.Log;
+import common.TextFold;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chỉ mục tìm kiếm toàn cục (mọi hội thoại của 1 user, cả tên file vì tin file có body "[FILE] tên")
+ * lưu ở bảng message_terms:
+ *
+ *   (owner, term, message_id) khoá chính, tf = số lần term xuất hiện, ts = created_at (epoch giây)
+ *
+ * Mỗi tin có 1 dòng cho mỗi (người tham gia × term đã {@link TextFold#fold}) → câu hỏi của 1 user là
+ * range scan trên khoá chính theo (owner, term), ngược theo message_id, không đụng bảng messages.
+ *
+ * - Ghi: thread "term-index" nhận thao tác thêm / xoá (sửa = xoá + thêm) qua hàng đợi, ghi theo lô
+ *   ngoài đường gửi DM. Lúc rỗi thì backfill tin cũ theo lô khoá chính, từ mới về cũ (tin gần đây tìm được
+ *   trước); tiến độ lưu ở message_terms_state nên khởi động lại thì chạy tiếp.
+ * - Tìm: token dài nhất (thường hiếm nhất) cho tối đa -Dsearch.all.candidates tin gần nhất làm ứng viên,
+ *   các token còn lại chỉ tra trong tập đó (token cuối ≥ 3 ký tự khớp theo đầu term khi câu hỏi kết thúc
+ *   giữa chữ); xếp hạng
+ *   Σ(1 + ln tf) + -Dsearch.all.recencyWeight × 0.5^(tuổi / -Dsearch.all.halfLifeDays),
+ *   rồi cắt trang. Con trỏ trang = "maxId:now:offset": các trang sau chỉ xét tin ≤ maxId và tính tuổi theo
+ *   cùng mốc thời gian của trang đầu nên thứ hạng không xô lệch giữa các trang.
+ * - Bảng không tạo được (quyền, DB cũ) → tắt, {@link #search} trả trang rỗng.
+ */
+public final class TermIndex implements AutoCloseable {
+    private static final int CANDIDATES = Integer.getInteger("search.all.candidates", 2000);
+    private static final double HALF_LIFE_SEC = Double.parseDouble(System.getProperty("search.all.halfLifeDays", "30")) * 86400;
+    private static final double RECENCY_WEIGHT = Double.parseDouble(System.getProperty("search.all.recencyWeight", "1"));
+    private static final int BACKFILL_BATCH = Integer.getInteger("search.all.backfillBatch", 500);
+    private static final long BACKFILL_PAUSE_MS = Long.getLong("search.all.backfillPauseMs", 50);
+    private static final int MAX_OPS = 256;
+    private static final int MAX_TERM = 64;
+    private static final int PREFIX_MIN = 3;
+
+    /** 1 trang kết quả: dòng theo thứ hạng + con trỏ trang kế ("" = hết). */
+    public record Page(List<MessageDao.HistoryRow> rows, String next) {}
+
+    // thao tác ghi; body == null → chỉ xoá
+    private record Op(long id, String sender, String recipient, String body, long ts) {}
+
+    private static final Op STOP = new Op(0, null, null, null, 0);
+
+    private final ConnectionPool pool;
+    private final LinkedBlockingQueue<Op> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean enabled;
+    private volatile boolean closed;
+    private long backfillBelow = -1; // chỉ thread ghi dùng; 0 = xong
+
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder searchNanos = new LongAdder();
+    private final LongAdder indexed = new LongAdder();
+
+    public TermIndex(ConnectionPool pool) {
+        this.pool = pool;
+        this.thread = new Thread(this::run, "term-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Tin mới (id đã có). */
+    public void add(long id, String sender, String recipient, String body, long createdAtMs) {
+        if (closed || id <= 0 || body == null) return;
+        queue.add(new Op(id, sender, recipient, body, createdAtMs / 1000));
+    }
+
+    /** Nội dung tin đã đổi; ts vẫn là lúc gửi gốc (sửa không làm tin "mới" lên trong xếp hạng). */
+    public void replace(long id, String sender, String recipient, String body, long createdAtMs) {
+        if (closed || id <= 0) return;
+        queue.add(new Op(id, null, null, null, 0));
+        if (body != null) queue.add(new Op(id, sender, recipient, body, createdAtMs / 1000));
+    }
+
+    public void remove(long id) {
+        if (closed || id <= 0) return;
+        queue.add(new Op(id, null, null, null, 0));
+    }
+
+    /* ===== Tìm ===== */
+
+    public Page search(String user, String q, int limit, String cursor) throws SQLException {
+        if (!enabled || user == null) return new Page(Collections.emptyList(), "");
+        String fq = TextFold.fold(q);
+        List<String> tokens = new ArrayList<>(new java.util.LinkedHashSet<>(TextFold.tokens(fq)));
+        if (tokens.isEmpty()) return new Page(Collections.emptyList(), "");
+        long t0 = System.nanoTime();
+
+        long maxId = Long.MAX_VALUE;
+        long now = System.currentTimeMillis() / 1000;
+        int offset = 0;
+        if (cursor != null && !cursor.isBlank()) {
+            String[] p = cursor.split(":");
+            try {
+                maxId = Long.parseLong(p[0]);
+                now = Long.parseLong(p[1]);
+                offset = Integer.parseInt(p[2]);
+            } catch (RuntimeException e) {
+                throw new SQLException("Bad search cursor: " + cursor);
+            }
+        }
+        int n = Math.max(1, limit);
+
+        // token dài nhất thường hiếm nhất: lấy ứng viên theo nó, các token sau chỉ tra trong tập ứng viên
+        String lastTok = tokens.get(tokens.size() - 1);
+        boolean lastPrefix = TextFold.endsInWord(fq) && lastTok.length() >= PREFIX_MIN;
+        tokens.sort((x, y) -> Integer.compare(y.length(), x.length()));
+
+        Map<Long, double[]> hits = null; // id → {Σ(1 + ln tf), ts}
+        try (Connection c = pool.get()) {
+            for (String t : tokens) {
+                boolean prefix = lastPrefix && t.equals(lastTok);
+                Map<Long, double[]> cur = postings(c, user, term(t), prefix, maxId, hits == null ? null : hits.keySet());
+                if (hits == null) {
+                    hits = cur;
+                } else {
+                    Map<Long, double[]> both = new HashMap<>(Math.min(hits.size(), cur.size()) * 2);
+                    for (Map.Entry<Long, double[]> e : cur.entrySet()) {
+                        double[] h = hits.get(e.getKey());
+                        if (h != null) both.put(e.getKey(), new double[]{ h[0] + e.getValue()[0], h[1] });
+                    }
+                    hits = both;
+                }
+                if (hits.isEmpty()) break;
+            }
+            if (hits == null || hits.isEmpty()) return finish(t0, new Page(Collections.emptyList(), ""));
+
+            if (maxId == Long.MAX_VALUE) maxId = Collections.max(hits.keySet());
+            List<Map.Entry<Long, double[]>> ranked = new ArrayList<>(hits.entrySet());
+            for (Map.Entry<Long, double[]> e : ranked) {
+                double age = Math.max(0, now - e.getValue()[1]);
+                e.getValue()[0] += RECENCY_WEIGHT * Math.pow(0.5, age / HALF_LIFE_SEC);
+            }
+            ranked.sort((x, y) -> {
+                int s = Double.compare(y.getValue()[0], x.getValue()[0]);
+                return s != 0 ? s : Long.compare(y.getKey(), x.getKey());
+            });
+
+            int from = Math.min(Math.max(0, offset), ranked.size());
+            int to = Math.min(ranked.size(), from + n);
+            List<Long> ids = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) ids.add(ranked.get(i).getKey());
+            String next = to < ranked.size() ? maxId + ":" + now + ":" + to : "";
+            return finish(t0, new Page(rows(c, ids), next));
+        }
+    }
+
+    private Page finish(long t0, Page p) {
+        searches.increment();
+        searchNanos.add(System.nanoTime() - t0);
+        return p;
+    }
+
+    /** Posting của 1 token cho {@code user}: tối đa CANDIDATES tin gần nhất, hoặc chỉ trong {@code within}. */
+    private static Map<Long, double[]> postings(Connection c, String user, String tok, boolean prefix, long maxId,
+                                                java.util.Set<Long> within) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT message_id, tf, ts FROM message_terms WHERE owner=? AND ")
+                .append(prefix ? "term LIKE ?" : "term=?").append(" AND message_id<=?");
+        if (within != null) {
+            sql.append(" AND message_id IN (");
+            for (int i = 0; i < within.size(); i++) sql.append(i == 0 ? "?" : ",?");
+            sql.append(')');
+        } else {
+            sql.append(" ORDER BY message_id DESC LIMIT ?");
+        }
+        Map<Long, double[]> out = new HashMap<>();
+        try (PreparedStatement ps = c.prepareStatement(sql.toString())) {
+            int i = 1;
+            ps.setString(i++, user);
+            ps.setString(i++, prefix ? tok + "%" : tok); // token chỉ có chữ/số → không có ký tự đại diện
+            ps.setLong(i++, maxId);
+            if (within != null) for (Long id : within) ps.setLong(i++, id);
+            else ps.setInt(i, CANDIDATES);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    double w = 1 + Math.log(Math.max(1, rs.getInt(2)));
+                    // khớp theo đầu term: 1 tin có thể có nhiều term cùng đầu → cộng dồn
+                    out.merge(rs.getLong(1), new double[]{ w, rs.getLong(3) }, (a, b) -> new double[]{ a[0] + b[0], a[1] });
+                }
+            }
+        }
+        return out;
+    }
+
+    // nội dung các tin theo đúng thứ tự xếp hạng; tin đã xoá (chỉ mục chưa kịp cập nhật) bị bỏ
+    private static List<MessageDao.HistoryRow> rows(Connection c, List<Long> ids) throws SQLException {
+        if (ids.isEmpty()) return Collections.emptyList();
+        StringBuilder sql = new StringBuilder("SELECT id, sender, recipient, body, created_at FROM messages WHERE id IN (");
+        for (int i = 0; i < ids.size(); i++) sql.append(i == 0 ? "?" : ",?");
+        sql.append(')');
+        Map<Long, MessageDao.HistoryRow> byId = new HashMap<>(ids.size() * 2);
+        try (PreparedStatement ps = c.prepareStatement(sql.toString())) {
+            for (int i = 0; i < ids.size(); i++) ps.setLong(i + 1, ids.get(i));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    byId.put(rs.getLong("id"), new MessageDao.HistoryRow(rs.getLong("id"), rs.getString("sender"),
+                            rs.getString("recipient"), rs.getString("body"), rs.getTimestamp("created_at")));
+                }
+            }
+        }
+        List<MessageDao.HistoryRow> out = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            MessageDao.HistoryRow r = byId.get(id);
+            if (r != null) out.add(r);
+        }
+        return out;
+    }
+
+    /* ===== Ghi ===== */
+
+    private void run() {
+        try {
+            enabled = createSchema();
+        } catch (SQLException e) {
+            Log.warn("SEARCH", "message_terms unavailable, global search disabled: " + e.getMessage());
+        }
+        List<Op> batch = new ArrayList<>(MAX_OPS);
+        while (true) {
+            try {
+                // rỗi thì backfill 1 lô rồi quay lại xem hàng đợi
+                Op first = enabled && backfillBelow != 0
+                        ? queue.poll(BACKFILL_PAUSE_MS, TimeUnit.MILLISECONDS)
+                        : queue.take();
+                if (first == STOP) break;
+                if (first == null) { backfill(); continue; }
+                batch.add(first);
+                Op p;
+                while (batch.size() < MAX_OPS && (p = queue.poll()) != null) {
+                    if (p == STOP) { closed = true; break; }
+                    batch.add(p);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (enabled) apply(batch);
+            batch.clear();
+            if (closed && queue.isEmpty()) break;
+        }
+        List<Op> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        rest.removeIf(o -> o == STOP);
+        if (enabled && !rest.isEmpty()) apply(rest);
+    }
+
+    private boolean createSchema() throws SQLException {
+        try (Connection c = pool.get(); Statement st = c.createStatement()) {
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS message_terms (
+                  owner VARCHAR(100) NOT NULL,
+                  term VARCHAR(64) NOT NULL,
+                  message_id BIGINT NOT NULL,
+                  tf SMALLINT NOT NULL,
+                  ts INT UNSIGNED NOT NULL,
+                  PRIMARY KEY (owner, term, message_id),
+                  KEY idx_message_terms_message (message_id)
+                ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_bin
+            """);
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS message_terms_state (
+                  id TINYINT PRIMARY KEY,
+                  backfill_below BIGINT NOT NULL
+                ) ENGINE=InnoDB
+            """);
+            try (ResultSet rs = st.executeQuery("SELECT backfill_below FROM message_terms_state WHERE id=1")) {
+                if (rs.next()) backfillBelow = rs.getLong(1);
+            }
+            if (backfillBelow < 0) {
+                // tin có id > max lúc này được ghi chỉ mục trực tiếp; phần ≤ max do backfill
+                long max = 0;
+                try (ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(id), 0) FROM messages")) {
+                    if (rs.next()) max = rs.getLong(1);
+                }
+                backfillBelow = max + 1;
+                st.executeUpdate("INSERT IGNORE INTO message_terms_state(id, backfill_below) VALUES(1, " + backfillBelow + ")");
+            }
+        }
+        Log.info("SEARCH", "message_terms ready" + (backfillBelow > 1 ? ", backfilling ids < " + backfillBelow : ""));
+        return true;
+    }
+
+    private void apply(List<Op> ops) {
+        try (Connection c = pool.get()) {
+            c.setAutoCommit(false);
+            try {
+                write(c, ops);
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            indexed.add(ops.size());
+        } catch (SQLException e) {
+            Log.warn("SEARCH", "term index update of " + ops.size() + " ops failed: " + e.getMessage());
+        }
+    }
+
+    // giữ đúng thứ tự: xoá của 1 id phải chạy trước lần thêm lại ngay sau nó
+    private static void write(Connection c, List<Op> ops) throws SQLException {
+        try (PreparedStatement del = c.prepareStatement("DELETE FROM message_terms WHERE message_id=?");
+             PreparedStatement ins = c.prepareStatement(
+                     "INSERT IGNORE INTO message_terms(owner, term, message_id, tf, ts) VALUES(?,?,?,?,?)")) {
+            boolean pendingIns = false;
+            for (Op op : ops) {
+                if (op.body == null) {
+                    if (pendingIns) { ins.executeBatch(); pendingIns = false; }
+                    del.setLong(1, op.id);
+                    del.executeUpdate();
+                    continue;
+                }
+                for (Map.Entry<String, Integer> t : termCounts(op.body).entrySet()) {
+                    for (String owner : owners(op)) {
+                        ins.setString(1, owner);
+                        ins.setString(2, t.getKey());
+                        ins.setLong(3, op.id);
+                        ins.setInt(4, Math.min(Short.MAX_VALUE, t.getValue()));
+                        ins.setLong(5, Math.max(0, op.ts));
+                        ins.addBatch();
+                        pendingIns = true;
+                    }
+                }
+            }
+            if (pendingIns) ins.executeBatch();
+        }
+    }
+
+    private static List<String> owners(Op op) {
+        if (op.recipient == null || op.recipient.isBlank() || op.recipient.equals(op.sender)) return List.of(op.sender);
+        return List.of(op.sender, op.recipient);
+    }
+
+    private static Map<String, Integer> termCounts(String body) {
+        Map<String, Integer> tf = new LinkedHashMap<>();
+        for (String t : TextFold.tokens(TextFold.fold(body))) tf.merge(term(t), 1, Integer::sum);
+        return tf;
+    }
+
+    private static String term(String token) {
+        return token.length() > MAX_TERM ? token.substring(0, MAX_TERM) : token;
+    }
+
+    // 1 lô tin cũ, từ mới về cũ; lỗi thì để lần rỗi sau thử lại
+    private void backfill() {
+        try (Connection c = pool.get()) {
+            List<Op> ops = new ArrayList<>(BACKFILL_BATCH);
+            try (PreparedStatement ps = c.prepareStatement(
+                    "SELECT id, sender, recipient, body, created_at FROM messages WHERE id<? ORDER BY id DESC LIMIT ?")) {
+                ps.setLong(1, backfillBelow);
+                ps.setInt(2, BACKFILL_BATCH);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        Timestamp at = rs.getTimestamp("created_at");
+                        ops.add(new Op(rs.getLong("id"), rs.getString("sender"), rs.getString("recipient"),
+                                rs.getString("body"), at == null ? 0 : at.getTime() / 1000));
+                    }
+                }
+            }
+            long below = ops.isEmpty() ? 0 : ops.get(ops.size() - 1).id;
+            c.setAutoCommit(false);
+            try {
+                write(c, ops);
+                try (PreparedStatement ps = c.prepareStatement("UPDATE message_terms_state SET backfill_below=? WHERE id=1")) {
+                    ps.setLong(1, below);
+                    ps.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            backfillBelow = below;
+            indexed.add(ops.size());
+            if (below == 0) Log.info("SEARCH", "message_terms backfill complete");
+        } catch (SQLException e) {
+            Log.warn("SEARCH", "term backfill failed below id " + backfillBelow + ": " + e.getMessage());
+        }
+    }
+
+    /** Tóm tắt số liệu; null nếu chưa có lần tìm nào. */
+    public String report() {
+        long s = searches.sum();
+        if (s == 0) return null;
+        return String.format("searches=%d avg=%.1fms indexed=%d queued=%d backfillBelow=%d",
+                s, searchNanos.sum() / 1e6 / s, indexed.sum(), queue.size(), backfillBelow);
+    }
+
+    /** Ghi nốt thao tác đang chờ rồi dừng thread. */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        queue.add(STOP);
+        try { thread.join(5000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+}
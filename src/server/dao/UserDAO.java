@@ -73,6 +73,26 @@ public class UserDAO {
         }
     }
     
+    /** Các user có id > afterId, tăng dần (nạp / làm mới {@code UserDirectory} theo keyset). */
+    public static List<User> listAfter(int afterId, int limit) throws SQLException {
+        String sql = "SELECT id, username FROM users WHERE id > ? ORDER BY id LIMIT ?";
+        try (Connection c = DBConnection.get();
+             PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setInt(1, afterId);
+            ps.setInt(2, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                List<User> list = new ArrayList<>();
+                while (rs.next()) {
+                    User u = new User();
+                    u.setId(rs.getInt("id"));
+                    u.setUsername(rs.getString("username"));
+                    list.add(u);
+                }
+                return list;
+            }
+        }
+    }
+
     public static List<User> searchUsers(String keyword, int excludeUserId) throws SQLException {
         String sql = "SELECT id, username FROM users " +
                      "WHERE id <> ? AND username LIKE ? ORDER BY username";
@@ -123,6 +143,56 @@ public class UserDAO {
         }
     }
 
+    /** Ghi dồn trạng thái do {@code PresenceService} gom lại: 1 batch UPDATE theo username. */
+    public static void savePresence(Map<String, Presence> batch) throws SQLException {
+        if (batch.isEmpty()) return;
+        String sql = "UPDATE users SET online=?, last_seen=? WHERE username=?";
+        try (Connection c = DBConnection.get();
+             PreparedStatement ps = c.prepareStatement(sql)) {
+            for (Map.Entry<String, Presence> e : batch.entrySet()) {
+                ps.setInt(1, e.getValue().online ? 1 : 0);
+                ps.setString(2, e.getValue().online ? null : e.getValue().lastSeenIso);
+                ps.setString(3, e.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /** Server vừa khởi động: không ai còn kết nối, mọi user đang "online" trong DB là dữ liệu cũ. */
+    public static int resetPresence(String lastSeenIso) throws SQLException {
+        String sql = "UPDATE users SET online=0, last_seen=? WHERE online=1";
+        try (Connection c = DBConnection.get();
+             PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, lastSeenIso);
+            return ps.executeUpdate();
+        }
+    }
+
+    /** last_seen theo username (user không tồn tại thì không có trong map). */
+    public static Map<String, Presence> getPresenceByUsernames(Collection<String> usernames) throws SQLException {
+        Map<String, Presence> map = new HashMap<>();
+        if (usernames.isEmpty()) return map;
+        List<String> names = new ArrayList<>(usernames);
+        try (Connection c = DBConnection.get()) {
+            for (int from = 0; from < names.size(); from += 500) {
+                List<String> part = names.subList(from, Math.min(names.size(), from + 500));
+                String sql = "SELECT username, online, last_seen FROM users WHERE username IN ("
+                        + String.join(",", Collections.nCopies(part.size(), "?")) + ")";
+                try (PreparedStatement ps = c.prepareStatement(sql)) {
+                    for (int i = 0; i < part.size(); i++) ps.setString(i + 1, part.get(i));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            map.put(rs.getString("username"),
+                                    new Presence(rs.getInt("online") == 1, rs.getString("last_seen")));
+                        }
+                    }
+                }
+            }
+        }
+        return map;
+    }
+
     public static Map<Integer, Presence> getPresenceOfAll() throws SQLException {
         String sql = "SELECT id, online, last_seen FROM users";
         Map<Integer, Presence> map = new HashMap<>();
@@ -0,0 +1,143 @@
+package server.dao;
+
+import common.TextFold;
+import common.User;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Danh bạ user giữ trong RAM cho USER_LIST / USER_SEARCH, thay cho client tự chạy listOthers /
+ * {@code LIKE '%k%'} qua JDBC (mỗi lần 1 kết nối mới).
+ *
+ * - Khoá sắp xếp = fold(username) + '\0' + username trong 1 TreeMap: liệt kê theo tên, và mọi tên có
+ *   cùng tiền tố là 1 đoạn liên tiếp (subMap) — tra tiền tố như trie nhưng không tốn 1 node mỗi ký tự.
+ * - Chuỗi con: chỉ mục trigram → user; câu ≥ 3 ký tự chỉ xét user của trigram hiếm nhất rồi xác nhận
+ *   bằng contains, câu 1–2 ký tự quét danh sách (vẫn trong RAM).
+ * - Kết quả tìm: khớp đầu tên trước, rồi khớp giữa tên, mỗi nhóm theo tên; phân trang bằng offset.
+ * - Nạp hết lúc khởi động; {@link #refresh} chỉ đọc user có id > id lớn nhất đã có (tài khoản mới).
+ * Không phân biệt hoa/thường và dấu ({@link TextFold}), như collation của cột username.
+ */
+public final class UserDirectory {
+    private static final int LOAD_PAGE = 1000;
+    private static final int GRAM = 3;
+
+    /** 1 trang kết quả; {@code next} = offset trang kế, -1 nếu hết. */
+    public record Page(List<User> users, int next) {}
+
+    private record Entry(int id, String username, String folded, String key) {}
+
+    private static final Comparator<Entry> BY_KEY = Comparator.comparing(Entry::key);
+
+    private final TreeMap<String, Entry> sorted = new TreeMap<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<String, List<Entry>> grams = new HashMap<>();
+    private int maxId;
+
+    private final LongAdder lists = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder added = new LongAdder();
+
+    /** Đọc các user mới (id > id lớn nhất đã nạp); lần đầu = nạp toàn bộ. Trả số user thêm vào. */
+    public int refresh() throws SQLException {
+        int after;
+        synchronized (this) { after = maxId; }
+        int n = 0;
+        while (true) {
+            List<User> page = UserDAO.listAfter(after, LOAD_PAGE);
+            synchronized (this) {
+                for (User u : page) if (add(u.getId(), u.getUsername())) n++;
+            }
+            if (page.size() < LOAD_PAGE) break;
+            after = page.get(page.size() - 1).getId();
+        }
+        added.add(n);
+        return n;
+    }
+
+    public synchronized boolean contains(String username) {
+        return byName.containsKey(username);
+    }
+
+    private boolean add(int id, String username) {
+        if (username == null || byName.containsKey(username)) return false;
+        String folded = TextFold.fold(username);
+        Entry e = new Entry(id, username, folded, folded + '\0' + username);
+        sorted.put(e.key(), e);
+        byName.put(username, e);
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i + GRAM <= folded.length(); i++) {
+            String g = folded.substring(i, i + GRAM);
+            if (seen.add(g)) grams.computeIfAbsent(g, k -> new ArrayList<>()).add(e);
+        }
+        if (id > maxId) maxId = id;
+        return true;
+    }
+
+    /** Mọi user trừ {@code exclude}, theo tên. */
+    public Page list(String exclude, int offset, int limit) {
+        lists.increment();
+        synchronized (this) {
+            return slice(sorted.values(), exclude, offset, limit);
+        }
+    }
+
+    /** User có tên chứa {@code q} (không dấu, không phân biệt hoa/thường), trừ {@code exclude}. */
+    public Page search(String q, String exclude, int offset, int limit) {
+        String fq = TextFold.fold(q == null ? "" : q.trim());
+        if (fq.isEmpty()) return list(exclude, offset, limit);
+        searches.increment();
+        synchronized (this) {
+            List<Entry> hits = new ArrayList<>(sorted.subMap(fq, true, fq + Character.MAX_VALUE, true).values());
+            List<Entry> inner = new ArrayList<>();
+            for (Entry e : candidates(fq)) {
+                if (!e.folded().startsWith(fq) && e.folded().contains(fq)) inner.add(e);
+            }
+            if (fq.length() >= GRAM) inner.sort(BY_KEY); // posting theo thứ tự nạp
+            hits.addAll(inner);
+            return slice(hits, exclude, offset, limit);
+        }
+    }
+
+    // user có thể chứa fq ở giữa tên
+    private Collection<Entry> candidates(String fq) {
+        if (fq.length() < GRAM) return sorted.values();
+        List<Entry> best = null;
+        for (int i = 0; i + GRAM <= fq.length(); i++) {
+            List<Entry> p = grams.get(fq.substring(i, i + GRAM));
+            if (p == null) return List.of();
+            if (best == null || p.size() < best.size()) best = p;
+        }
+        return best;
+    }
+
+    private static Page slice(Collection<Entry> all, String exclude, int offset, int limit) {
+        List<User> out = new ArrayList<>(Math.min(limit, all.size()));
+        int skip = Math.max(0, offset), seen = 0;
+        for (Entry e : all) {
+            if (e.username().equals(exclude)) continue;
+            if (seen++ < skip) continue;
+            if (out.size() == limit) return new Page(out, offset + limit);
+            out.add(new User(e.id(), e.username(), null));
+        }
+        return new Page(out, -1);
+    }
+
+    /** Tóm tắt số liệu; null nếu chưa có truy vấn nào. */
+    public String report() {
+        long l = lists.sum(), s = searches.sum();
+        if (l + s == 0) return null;
+        int n;
+        synchronized (this) { n = byName.size(); }
+        return String.format("users=%d lists=%d searches=%d added=%d", n, l, s, added.sum());
+    }
+}
@@ -0,0 +1,268 @@
+package server.nio;
+
+import common.BufferPool;
+import common.Capabilities;
+import common.Frame;
+import common.FrameDecoder;
+import common.FrameEncoder;
+import common.FrameIO;
+import common.FrameInflater;
+import common.Log;
+import common.MessageType;
+import server.ClientHandler;
+import server.OutboundQueue;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1 kết nối non-blocking.
+ * - Đọc: event loop ghép frame dần dần (header 4 byte rồi tới thân), không chặn.
+ * - Xử lý: frame được đẩy sang executor, chạy TUẦN TỰ theo kết nối
+ *   (ClientHandler giữ state upload nên không được chạy song song).
+ * - Ghi: thread nào cũng gọi {@link #send(Frame)} được; event loop là writer duy nhất,
+ *   gom các frame đang chờ thành 1 lô rồi ghi 1 lần.
+ */
+public final class NioConnection {
+    // inbox quá dài thì tạm ngừng đọc để client không đẩy dữ liệu vô hạn vào heap
+    private static final int INBOX_PAUSE  = 256;
+    private static final int INBOX_RESUME = 64;
+
+    private final SocketChannel ch;
+    private final NioEventLoop loop;
+    private final Executor workers;
+    SelectionKey key;
+    private ClientHandler handler;
+
+    // ==== state đọc ====
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private ByteBuffer body; // buffer của BufferPool; null = đang đọc header
+    private final FrameInflater inflater = new FrameInflater();
+
+    // ==== inbox: xử lý tuần tự trên workers ====
+    private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboxSize = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile boolean readPaused = false;
+
+    // ==== outbound: chỉ event loop ghi ra socket ====
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final FrameEncoder encoder = new FrameEncoder(true); // direct buffer, chỉ event loop dùng
+    private ByteBuffer writing; // lô đã mã hoá đang ghi dở (view của encoder)
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    NioConnection(SocketChannel ch, NioEventLoop loop, Executor workers) {
+        this.ch = ch;
+        this.loop = loop;
+        this.workers = workers;
+    }
+
+    void attach(ClientHandler handler) { this.handler = handler; }
+
+    public SocketAddress remoteAddress() {
+        try { return ch.getRemoteAddress(); } catch (IOException e) { return null; }
+    }
+
+    /* ================= READ (event loop) ================= */
+
+    void onReadable(ByteBuffer readBuf) throws IOException {
+        while (!readPaused) {
+            readBuf.clear();
+            int n = ch.read(readBuf);
+            if (n < 0) { close(); return; }
+            if (n == 0) return;
+            readBuf.flip();
+            feed(readBuf);
+        }
+    }
+
+    private void feed(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (body == null) {
+                copy(src, header);
+                if (header.hasRemaining()) return;
+                int totalLen = header.getInt(0);
+                header.clear();
+                if (totalLen < 0 || totalLen > FrameIO.maxFrameLength())
+                    throw new IOException("Invalid totalLen: " + totalLen);
+                body = BufferPool.SHARED.acquire(totalLen);
+            }
+            copy(src, body);
+            if (body.hasRemaining()) return;
+
+            body.flip();
+            Frame f = FrameDecoder.decode(body, true, inflater);
+            body = null;
+            if (f.type == MessageType.BATCH) {
+                try { inflater.expand(f); } finally { f.release(); }
+                Frame g;
+                while ((g = inflater.poll()) != null) dispatchLater(g);
+            } else {
+                dispatchLater(f);
+            }
+        }
+    }
+
+    private void dispatchLater(Frame f) {
+        enqueue(() -> {
+            try { handler.dispatch(f); } finally { f.release(); }
+        });
+    }
+
+    private static void copy(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        if (n <= 0) return;
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + n);
+        dst.put(part);
+        src.position(src.position() + n);
+    }
+
+    /* ================= DISPATCH (workers) ================= */
+
+    private void enqueue(Runnable task) {
+        inbox.add(task);
+        if (inboxSize.incrementAndGet() >= INBOX_PAUSE && !readPaused) {
+            readPaused = true;
+            setInterest(SelectionKey.OP_READ, false);
+        }
+        if (draining.compareAndSet(false, true)) workers.execute(this::drainInbox);
+    }
+
+    private void drainInbox() {
+        while (true) {
+            Runnable t;
+            while ((t = inbox.poll()) != null) {
+                int left = inboxSize.decrementAndGet();
+                try {
+                    t.run();
+                } catch (Exception e) {
+                    Log.warn("NIO", "handler failed: " + e.getMessage());
+                }
+                if (readPaused && left <= INBOX_RESUME) {
+                    loop.execute(() -> {
+                        readPaused = false;
+                        setInterest(SelectionKey.OP_READ, true);
+                    });
+                }
+            }
+            draining.set(false);
+            // có task mới chen vào sau khi poll trả null → nhận lại quyền xử lý
+            if (inbox.isEmpty() || !draining.compareAndSet(false, true)) return;
+        }
+    }
+
+    /* ================= WRITE ================= */
+
+    /** Gọi được từ bất kỳ thread nào. */
+    public OutboundQueue.Result send(Frame f) {
+        return send(f, OutboundQueue.classify(f));
+    }
+
+    public OutboundQueue.Result send(Frame f, OutboundQueue.Kind kind) {
+        return send(f, kind, null);
+    }
+
+    /** {@code onWritten} chạy trên event loop sau khi lô chứa frame đã ghi hết ra socket. */
+    public OutboundQueue.Result send(Frame f, OutboundQueue.Kind kind, Runnable onWritten) {
+        if (closed.get()) return OutboundQueue.Result.DROPPED;
+        OutboundQueue.Result r = outbound.offer(f, kind, onWritten);
+        // chỉ xếp 1 task flush cho cả loạt frame đến dồn dập
+        if (r == OutboundQueue.Result.QUEUED && flushScheduled.compareAndSet(false, true))
+            loop.execute(this::flushOutbound);
+        return r;
+    }
+
+    public OutboundQueue outbound() { return outbound; }
+
+    /**
+     * Áp dụng định dạng đã thoả thuận ở LOGIN (metadata TLV, nén) cho chiều gửi, từ frame gửi sau lời gọi
+     * này; việc đổi chạy trên event loop (thread duy nhất dùng encoder) khi tới lượt trong hàng đợi gửi.
+     */
+    public void configure(Capabilities.Handshake hs) {
+        if (outbound.offerAction(() -> encoder.configure(hs)) && flushScheduled.compareAndSet(false, true))
+            loop.execute(this::flushOutbound);
+    }
+
+    void onWritable() throws IOException {
+        flushOutbound0();
+    }
+
+    private void flushOutbound() {
+        flushScheduled.set(false);
+        try {
+            flushOutbound0();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void flushOutbound0() throws IOException {
+        if (closed.get() || key == null) return;
+        while (true) {
+            if (writing == null) {
+                if (!encodeBatch()) {
+                    setInterest(SelectionKey.OP_WRITE, false);
+                    return;
+                }
+                writing = encoder.flip();
+            }
+            ch.write(writing);
+            if (writing.hasRemaining()) {
+                // socket đầy → chờ OP_WRITE
+                setInterest(SelectionKey.OP_WRITE, true);
+                return;
+            }
+            writing = null;
+            outbound.written();
+        }
+    }
+
+    /** Gom frame đang chờ vào encoder; false nếu hàng đợi rỗng. */
+    private boolean encodeBatch() throws IOException {
+        encoder.clear();
+        int n = 0;
+        Frame f;
+        while (n < OutboundQueue.MAX_BATCH && encoder.size() < OutboundQueue.MAX_BATCH_BYTES
+                && (f = outbound.poll()) != null) {
+            try { encoder.encodeOrReject(f, handler == null ? null : handler.getUsername()); } finally { f.release(); }
+            n++;
+        }
+        return n > 0;
+    }
+
+    private void setInterest(int op, boolean on) {
+        loop.execute(() -> {
+            if (key == null || !key.isValid()) return;
+            int ops = key.interestOps();
+            key.interestOps(on ? (ops | op) : (ops & ~op));
+        });
+    }
+
+    /* ================= CLOSE ================= */
+
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        loop.execute(() -> {
+            if (key != null) key.cancel();
+            try { ch.close(); } catch (IOException ignored) {}
+            outbound.clear();
+            writing = null;
+            // encoder/inflater chỉ event loop dùng: giải phóng Deflater/Inflater ngay tại đây
+            encoder.close();
+            inflater.close();
+        });
+        // cleanup đi sau các frame còn trong inbox để giữ đúng thứ tự
+        if (handler != null) enqueue(handler::disconnected);
+    }
+}
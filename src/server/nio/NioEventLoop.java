@@ -0,0 +1,100 @@
+package server.nio;
+
+import common.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 1 thread + 1 Selector phục vụ nhiều kết nối.
+ * Mọi thao tác trên SelectionKey/SocketChannel đều chạy trên thread này;
+ * thread khác muốn can thiệp thì gửi task qua {@link #execute(Runnable)}.
+ */
+final class NioEventLoop implements Runnable {
+    private static final int READ_BUF_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuf = ByteBuffer.allocateDirect(READ_BUF_SIZE);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() { thread.start(); }
+
+    boolean inLoop() { return Thread.currentThread() == thread; }
+
+    /** Chạy task trên thread của loop (ngay lập tức nếu đang ở trong loop). */
+    void execute(Runnable task) {
+        if (inLoop()) { task.run(); return; }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(SocketChannel ch, NioConnection conn) {
+        execute(() -> {
+            try {
+                conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                conn.close();
+            }
+        });
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isReadable()) conn.onReadable(readBuf);
+                        if (key.isValid() && key.isWritable()) conn.onWritable();
+                    } catch (IOException | CancelledKeyException e) {
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("NIO", "select failed: " + e.getMessage());
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection c) c.close();
+        }
+        runTasks();
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    private void runTasks() {
+        Runnable t;
+        while ((t = tasks.poll()) != null) {
+            try { t.run(); } catch (Exception e) {
+                Log.warn("NIO", "task failed: " + e.getMessage());
+            }
+        }
+    }
+}
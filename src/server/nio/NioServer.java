@@ -0,0 +1,61 @@
+package server.nio;
+
+import common.Log;
+import server.ClientHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.net.StandardSocketOptions;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * Chế độ server non-blocking: 1 thread accept + N event loop (Selector).
+ * Logic nghiệp vụ vẫn là {@link ClientHandler}, chỉ khác cách đọc/ghi frame.
+ */
+public final class NioServer {
+    private final int port;
+    private final NioEventLoop[] loops;
+    private final ExecutorService workers;
+    private final Function<NioConnection, ClientHandler> handlerFactory;
+    private ServerSocketChannel ssc;
+    private int next = 0;
+
+    public NioServer(int port, int loopCount, ExecutorService workers,
+                     Function<NioConnection, ClientHandler> handlerFactory) throws IOException {
+        this.port = port;
+        this.workers = workers;
+        this.handlerFactory = handlerFactory;
+        this.loops = new NioEventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) loops[i] = new NioEventLoop("nio-loop-" + i);
+    }
+
+    /** Chặn thread gọi để accept kết nối cho tới khi server đóng. */
+    public void run() throws IOException {
+        for (NioEventLoop l : loops) l.start();
+        ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(port));
+        System.out.println("✅ Server (NIO, " + loops.length + " loops) started at port " + port);
+
+        while (ssc.isOpen()) {
+            SocketChannel ch = ssc.accept();
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Log.info("NIO", "Client connected: " + ch.getRemoteAddress());
+
+            NioEventLoop loop = loops[next];
+            next = (next + 1) % loops.length;
+
+            NioConnection conn = new NioConnection(ch, loop, workers);
+            conn.attach(handlerFactory.apply(conn));
+            loop.register(ch, conn);
+        }
+    }
+
+    public void shutdown() {
+        try { if (ssc != null) ssc.close(); } catch (IOException ignored) {}
+        for (NioEventLoop l : loops) l.shutdown();
+    }
+}